@@ -20,15 +20,19 @@
 package at.bbgen.bbots;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Main class for bboTS.<br><br>
  * 
- * Command Line arguments: [config-file] [user-file]
+ * Command Line arguments: [config-file] [user-file]<br><br>
+ * 
+ * While running, type <i>metrics</i> to print all metrics and <i>reload</i> to reload the
+ * configuration and user files. Any other input stops bboTS.
  * 
  * @author Bernhard Eder <bbots@bbgen.net>
  *
@@ -44,8 +48,13 @@ public class BBOTSMain {
 	{
 		SProperties sProperties = null;
 		UserProperties userProperties = null;
-		List<BOTeamSwitcher> bots = new LinkedList<BOTeamSwitcher>();
-		TSConnection tsConnection = null;
+		BOTeamSwitcherManager manager = null;
+		ShardCoordinator shardCoordinator = null;
+		StateSnapshot snapshot = null;
+		Map<String, TSEndpoint> tsEndpoints = new LinkedHashMap<String, TSEndpoint>();
+		BOHandoffStage handoffStage = null;
+		BOHostResolver hostResolver = null;
+		ConfigReloader reloader = null;
 		
 		String configFileName = "config.properties";
 		String userFileName = "users.properties";
@@ -59,25 +68,89 @@ public class BBOTSMain {
 		{
 			sProperties = new SProperties(configFileName);
 			sProperties.parseProperties();
+			Log.configure(sProperties.getLogLevel(), sProperties.getLogLevels(), sProperties.getLogRepeatInterval());
+			if(sProperties.getBoCaptureFile() != null)
+			{
+				try
+				{
+					BOPacketCapture.start(new File(sProperties.getBoCaptureFile()));
+				} catch (IOException e)
+				{
+					System.out.println("Error while trying to open capture file: "+e.getMessage());
+				}
+			}
 			userProperties = new UserProperties(userFileName);
 			userProperties.parseUsers();
 			
-			tsConnection = new TSConnection(sProperties.getTsServerHost(), sProperties.getTsServerPort(), sProperties.getTsUsername(), sProperties.getTsPassword(), sProperties.getTsVServerID());
-			tsConnection.connect();
-
+			for(TSEndpointConfig endpointConfig : sProperties.getTsEndpoints().values())
+				tsEndpoints.put(endpointConfig.getName(), new TSEndpoint(endpointConfig, sProperties));
 			for(String server : sProperties.getServerNames())
 			{
-				BOTeamSwitcher bbots = new BOTeamSwitcher(sProperties, userProperties, tsConnection, server);
-				bbots.init();
-				bots.add(bbots);
+				TSConnection tsConnection = tsEndpoints.get(sProperties.getServerConfig(server).getTsServer()).getConnection();
+				for(int i=0;i<3;++i)
+				{
+					String password = sProperties.getTeamPassword(server, i);
+					if(password != null && sProperties.getTeamChannels(server, i) != -1)
+						tsConnection.setChannelPassword(sProperties.getTeamChannels(server, i), password);
+				}
+			}
+			// an endpoint which can not be reached is reconnected in the background,
+			// startup is only aborted if no endpoint can be reached
+			TSConnectionException tsError = null;
+			int tsConnected = 0;
+			for(TSEndpoint endpoint : tsEndpoints.values())
+			{
+				try
+				{
+					endpoint.start();
+					tsConnected++;
+				} catch (TSConnectionException e)
+				{
+					System.out.println("Error while trying to connect to the TS3 server "+endpoint.getName()+", retrying in the background: "+e.getMessage());
+					tsError = e;
+				}
+			}
+			if(tsConnected == 0 && tsError != null)
+				throw tsError;
+			
+			handoffStage = new BOHandoffStage(sProperties.isBoHandoffCoalesce(), sProperties.getBoHandoffCapacity());
+			handoffStage.start();
+			
+			hostResolver = new BOHostResolver(sProperties.getBoHostTTL());
+
+			manager = new BOTeamSwitcherManager(sProperties, userProperties, tsEndpoints, handoffStage, hostResolver, new GuidPresenceIndex(), sProperties.getBoStartupTimeout(), sProperties.getBoStartupRetryInterval());
+			if(sProperties.getSnapshotFile() != null)
+			{
+				snapshot = new StateSnapshot(new File(sProperties.getSnapshotFile()), manager, tsEndpoints);
+				try
+				{
+					snapshot.load();
+				} catch (IOException e)
+				{
+					System.out.println("Error while trying to load snapshot: "+e.getMessage());
+				}
+				manager.setSnapshot(snapshot);
+				snapshot.enableTimer(sProperties.getSnapshotInterval());
+			}
+			if(sProperties.getShardDirectory() != null)
+			{
+				// sharded mode: the coordinator decides which servers are handled by this process
+				shardCoordinator = new ShardCoordinator(new File(sProperties.getShardDirectory()), sProperties.getShardNodeID(), sProperties.getServerNames(), sProperties.getShardLeaseTime(), manager);
+				shardCoordinator.init();
+				shardCoordinator.start();
+			}
+			else
+			{
+				for(String server : sProperties.getServerNames())
+					manager.startServerAsync(server);
 			}
 			
+			reloader = new ConfigReloader(configFileName, sProperties, userProperties, manager, tsEndpoints, shardCoordinator);
+			if(sProperties.getConfigWatchInterval() > 0)
+				reloader.enableTimer(sProperties.getConfigWatchInterval());
+			
 			System.out.println("bboTS is up and running...");
 			
-		} catch (BOTeamSwitcherException e)
-		{
-			System.out.println("Error while trying to init BBOTS System: "+e.getMessage());
-			return;
 		} catch (SPropertiesException e)
 		{
 			System.out.println("Error while trying to init Properties System: "+e.getMessage());
@@ -90,20 +163,65 @@ public class BBOTSMain {
 		{
 			System.out.println("Error while trying to init TS Connection: "+e.getMessage());
 			return;
+		} catch (ShardCoordinatorException e)
+		{
+			System.out.println("Error while trying to join shard: "+e.getMessage());
+			return;
 		}
 		
 		BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
 		
+		// "metrics" prints all metrics, "reload" reloads the configuration, every other input stops bboTS
 		try
 		{
-			stdin.readLine();
+			String line;
+			while((line = stdin.readLine()) != null)
+			{
+				if(line.trim().equals("metrics"))
+				{
+					System.out.print(Metrics.dump());
+				}
+				else if(line.trim().equals("reload"))
+				{
+					try
+					{
+						reloader.reload();
+					} catch (SPropertiesException e)
+					{
+						System.out.println("Error while trying to reload configuration: "+e.getMessage());
+					} catch (UserPropertiesException e)
+					{
+						System.out.println("Error while trying to reload users: "+e.getMessage());
+					}
+				}
+				else
+					break;
+			}
 		} catch(IOException e) { }
 		
-		for(BOTeamSwitcher bbots : bots)
+		reloader.disableTimer();
+		
+		if(snapshot != null)
 		{
-			bbots.stopService();
+			snapshot.disableTimer();
+			try
+			{
+				snapshot.save();
+			} catch (IOException e)
+			{
+				System.out.println("Error while trying to write snapshot: "+e.getMessage());
+			}
 		}
+		if(shardCoordinator != null)
+			shardCoordinator.stopCoordinator();
+		manager.stopAll();
+		handoffStage.stopStage();
+		hostResolver.stop();
+		for(TSEndpoint endpoint : tsEndpoints.values())
+			endpoint.stop();
+		BOPacketCapture.stop();
 		
+		Log.shutdown();
 	}
 
 }
@@ -19,9 +19,14 @@
 
 package at.bbgen.bbots;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -35,15 +40,23 @@ public class BOConnection implements BOServerWorkerAction
 {
 	/**
 	 * Initializes all local data.
+	 * @param servername Label of the Black Ops server
 	 * @param boServerAddress BO server address
 	 * @param boServerPort RCon port
 	 * @param boServerPassword RCon password
 	 * @param boServerTimer timer period
+	 * @param handoffStage stage which passes the received user lists to this connection
+	 * @param presenceIndex index which gets all committed user lists
+	 * @param health circuit breaker which decides when requests are sent
 	 * 
 	 * @throws BOConnectionException Will be thrown if anything goes wrong.
 	 */
-	public BOConnection(InetAddress boServerAddress, int boServerPort, String boServerPassword, int boServerTimer) throws BOConnectionException
+	public BOConnection(String servername, InetAddress boServerAddress, int boServerPort, String boServerPassword, int boServerTimer, BOHandoffStage handoffStage, GuidPresenceIndex presenceIndex, BOServerHealth health) throws BOConnectionException
 	{
+		this.servername = servername;
+		this.handoffStage = handoffStage;
+		this.presenceIndex = presenceIndex;
+		this.health = health;
 		this.boServerPassword = boServerPassword;
 		this.boServerAddress = boServerAddress;
 		this.boServerPort = boServerPort;
@@ -51,8 +64,8 @@ public class BOConnection implements BOServerWorkerAction
 		boUsers = new HashMap<Integer, BOUser>();
 		try
 		{
-			boServerWorker = new BOServerWorker(this.boServerAddress, this.boServerPort, this.boServerPassword);
-			boServerWorker.registerAction(this);
+			boServerWorker = new BOServerWorker(servername, this.boServerAddress, this.boServerPort, this.boServerPassword);
+			boServerWorker.registerAction(handoffStage.register(servername, this));
 		} catch (BOWorkerException e)
 		{
 			throw new BOConnectionException("Error while trying to instance BOServerWorker: "+e.getMessage());
@@ -69,6 +82,8 @@ public class BOConnection implements BOServerWorkerAction
 	{
 		disableTimer();
 		boServerWorker.stopWorker();
+		handoffStage.unregister(servername);
+		presenceIndex.removeServer(servername);
 	}
 	
 	/**
@@ -80,7 +95,19 @@ public class BOConnection implements BOServerWorkerAction
 	}
 	
 	/**
-	 * Enables the timer, which scans periodically for new users
+	 * Changes the address of the BO server, e.g. because its DNS entry has changed.
+	 * @param boServerAddress new BO server address
+	 */
+	public void setServerAddress(InetAddress boServerAddress)
+	{
+		this.boServerAddress = boServerAddress;
+		boServerWorker.setServerAddress(boServerAddress);
+		health.reset();
+	}
+	
+	/**
+	 * Enables the timer, which scans periodically for new users.
+	 * While the server does not answer, it is only probed (see {@link BOServerHealth}).
 	 */
 	public void enableTimer()
 	{
@@ -92,13 +119,15 @@ public class BOConnection implements BOServerWorkerAction
 		{
 			public void run()
 			{
-				if(boServerWorker != null)
+				long now = System.currentTimeMillis();
+				if(boServerWorker != null && health.requestAllowed(now, boServerWorker.getLastAnswerTime(), boServerTimer))
 					try
 					{
+						health.requestSent(now);
 						boServerWorker.sendTeamStatusRequest();
 					} catch (BOWorkerException e)
 					{
-						System.out.println("Timer: Error while trying to sendRequest(): "+e.getMessage());
+						Log.error("bo", "Timer: Error while trying to sendRequest() to {}: {}", servername, e.getMessage());
 					}
 			}
 		}, boServerTimer, boServerTimer);
@@ -117,10 +146,14 @@ public class BOConnection implements BOServerWorkerAction
 
 	/**
 	 * Callback function as defined in {@link BOServerWorkerAction}
-	 * The internal Black Ops connection will call it, when there is a new user list available
+	 * The {@link BOHandoffStage} will call it, when there is a new user list available.
+	 * Replaces the current user list.
+	 * @param users new user list
+	 * @param receiveTime time when the user list has been received by the worker (milliseconds),
+	 * not when it has been delivered, so a user list which has waited in the handoff stage is not taken for a fresh one
 	 */
 	@Override
-	public void commitBOUsers(List<BOUser> users)
+	public void commitBOUsers(List<BOUser> users, long receiveTime)
 	{
 		HashMap<Integer, BOUser> newBoUsers = new HashMap<Integer, BOUser>();
 		for(BOUser user : users)
@@ -130,7 +163,41 @@ public class BOConnection implements BOServerWorkerAction
 		synchronized(this)
 		{
 			boUsers = newBoUsers;
+			usersVersion++;
+			usersTime = receiveTime;
 		}
+		presenceIndex.update(servername, newBoUsers, receiveTime);
+	}
+	
+	/**
+	 * Returns the current user list. The map is replaced by every commit and never changed afterwards.
+	 * @return Black Ops users by GUID (do not modify)
+	 */
+	public synchronized Map<Integer, BOUser> getUsers()
+	{
+		return boUsers;
+	}
+	
+	/**
+	 * Returns the version of the user list. It is incremented with every committed user list.
+	 * @return version of the user list
+	 */
+	public synchronized long getUsersVersion()
+	{
+		return usersVersion;
+	}
+	
+	/**
+	 * Returns when the current user list has been confirmed by the Black Ops server for the last time,
+	 * i.e. when it has been received or when an unchanged answer has been received afterwards.
+	 * Unchanged answers only confirm it if no newer user list is still waiting in the handoff stage.
+	 * @return time in milliseconds (0 = never)
+	 */
+	public synchronized long getUsersTime()
+	{
+		if(usersTime < boServerWorker.getLastChangeTime())
+			return usersTime;
+		return Math.max(usersTime, boServerWorker.getLastAnswerTime());
 	}
 	
 	/**
@@ -162,13 +229,73 @@ public class BOConnection implements BOServerWorkerAction
 		return retUser;
 	}
 
+	/**
+	 * Writes the current user list with its receive time and sequence number (see {@link StateSnapshot})
+	 * @param out destination
+	 * @throws IOException Will be thrown if the user list can not be written.
+	 */
+	public void writeSnapshot(DataOutput out) throws IOException
+	{
+		HashMap<Integer, BOUser> users;
+		long time;
+		long version;
+		synchronized(this)
+		{
+			users = boUsers;
+			time = usersTime;
+			version = usersVersion;
+		}
+		out.writeLong(time);
+		out.writeLong(version);
+		out.writeInt(users.size());
+		for(BOUser user : users.values())
+		{
+			out.writeInt(user.getId());
+			out.writeInt(user.getGuid());
+			out.writeByte(user.getTeam());
+		}
+	}
+	
+	/**
+	 * Restores a user list written by {@link #writeSnapshot(DataOutput)}
+	 * @param in source
+	 * @throws IOException Will be thrown if the user list can not be read.
+	 */
+	public void readSnapshot(DataInput in) throws IOException
+	{
+		long time = in.readLong();
+		long version = in.readLong();
+		int count = in.readInt();
+		List<BOUser> users = new LinkedList<BOUser>();
+		for(int i=0;i<count;++i)
+		{
+			BOUser user = new BOUser();
+			user.setId(in.readInt());
+			user.setGuid(in.readInt());
+			user.setTeam(in.readByte());
+			users.add(user);
+		}
+		synchronized(this)
+		{
+			usersVersion = version;
+		}
+		// keeps the receive time, so a restored user list is not taken for a fresh one
+		commitBOUsers(users, time);
+	}
+
+	private String servername;
+	private BOHandoffStage handoffStage;
+	private GuidPresenceIndex presenceIndex;
+	private BOServerHealth health;
 	private boolean timerEnabled;
 	private HashMap<Integer, BOUser> boUsers;
+	private long usersVersion;
+	private long usersTime;
 	private int boServerTimer;
 	private Timer requestTimer;
 	private BOServerWorker boServerWorker;
 	private String boServerPassword;
-	private InetAddress boServerAddress;
+	private volatile InetAddress boServerAddress;
 	private int boServerPort;
 }
 
@@ -0,0 +1,228 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * BOHandoffStage decouples the receive threads of all {@link BOServerWorker}s
+ * from the code which processes the received user lists.<br><br>
+ * A worker only puts the user list into a bounded queue of its server and
+ * returns to receiving immediately. One delivery thread passes the queued
+ * user lists with their receive times to the real {@link BOServerWorkerAction}s.<br>
+ * If the queue of a server is full, the oldest user list is dropped.
+ * In <i>coalesce</i> mode the queue only holds the latest user list of each
+ * server, because every user list is a complete snapshot anyway.<br>
+ * The queue depth (handoff.&lt;server&gt;.depth, handoff.depth) and the
+ * number of dropped user lists (handoff.&lt;server&gt;.dropped) are exported
+ * as {@link Metrics}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class BOHandoffStage extends Thread
+{
+	/**
+	 * Initializes all local data, but does not start the delivery thread.
+	 * @param coalesce true to keep only the latest user list of each server
+	 * @param capacity maximum number of user lists queued per server (ignored in coalesce mode)
+	 */
+	public BOHandoffStage(boolean coalesce, int capacity)
+	{
+		super("BOHandoffStage");
+		setDaemon(true);
+		this.capacity = coalesce ? 1 : Math.max(1, capacity);
+		queues = new HashMap<String, ServerQueue>();
+		ready = new LinkedList<ServerQueue>();
+		totalDepth = 0;
+		running = true;
+	}
+	
+	/**
+	 * Registers a server.
+	 * 
+	 * @param server Label of the Black Ops server
+	 * @param target the class the user lists of <i>server</i> are delivered to
+	 * @return the callback class to be registered at the {@link BOServerWorker} of <i>server</i>
+	 */
+	public BOServerWorkerAction register(String server, BOServerWorkerAction target)
+	{
+		final ServerQueue queue = new ServerQueue();
+		queue.server = server;
+		queue.target = target;
+		queue.lists = new LinkedList<Handoff>();
+		synchronized(this)
+		{
+			ServerQueue old = queues.put(server, queue);
+			if(old != null)
+				removeQueue(old);
+		}
+		return new BOServerWorkerAction()
+		{
+			@Override
+			public void commitBOUsers(List<BOUser> users, long receiveTime)
+			{
+				offer(queue, users, receiveTime);
+			}
+		};
+	}
+	
+	/**
+	 * Unregisters a server. User lists still queued for it are dropped.
+	 * @param server Label of the Black Ops server
+	 */
+	public synchronized void unregister(String server)
+	{
+		ServerQueue queue = queues.remove(server);
+		if(queue != null)
+			removeQueue(queue);
+	}
+	
+	/**
+	 * Stops the delivery thread
+	 */
+	public void stopStage()
+	{
+		running = false;
+		interrupt();
+	}
+	
+	/**
+	 * Delivers queued user lists, one server after the other.
+	 */
+	@Override
+	public void run()
+	{
+		while(running)
+		{
+			ServerQueue queue;
+			Handoff handoff;
+			try
+			{
+				synchronized(this)
+				{
+					// an empty queue is skipped, so an inconsistent ready list can not stop the delivery
+					do
+					{
+						while(ready.isEmpty())
+							wait();
+						queue = ready.removeFirst();
+					} while(queue.lists.isEmpty());
+					handoff = queue.lists.removeFirst();
+					totalDepth--;
+					if(!queue.lists.isEmpty())
+						ready.addLast(queue);
+					updateDepth(queue);
+				}
+			} catch (InterruptedException e)
+			{
+				continue;
+			}
+			
+			try
+			{
+				queue.target.commitBOUsers(handoff.users, handoff.receiveTime);
+			} catch (RuntimeException e)
+			{
+				Log.error("bo", "Error while trying to commit users of {}: {}", queue.server, e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Queues a user list. Called by the receive threads.
+	 * @param queue queue of the server
+	 * @param users received user list
+	 * @param receiveTime time when the user list has been received (milliseconds)
+	 */
+	private synchronized void offer(ServerQueue queue, List<BOUser> users, long receiveTime)
+	{
+		if(queues.get(queue.server) != queue)
+			return; // unregistered
+		
+		// a queue which already holds user lists is already in the ready list
+		if(queue.lists.isEmpty())
+			ready.addLast(queue);
+		else if(queue.lists.size() >= capacity)
+		{
+			queue.lists.removeFirst();
+			totalDepth--;
+			Metrics.increment("handoff."+queue.server+".dropped");
+		}
+		Handoff handoff = new Handoff();
+		handoff.users = users;
+		handoff.receiveTime = receiveTime;
+		queue.lists.addLast(handoff);
+		totalDepth++;
+		updateDepth(queue);
+		notifyAll();
+	}
+	
+	/**
+	 * Removes all queued user lists of <i>queue</i>.
+	 * Must be called while holding the lock of this stage.
+	 * @param queue queue of the server
+	 */
+	private void removeQueue(ServerQueue queue)
+	{
+		totalDepth -= queue.lists.size();
+		queue.lists.clear();
+		ready.remove(queue);
+		updateDepth(queue);
+	}
+	
+	/**
+	 * Exports the queue depths.
+	 * Must be called while holding the lock of this stage.
+	 * @param queue queue of the server
+	 */
+	private void updateDepth(ServerQueue queue)
+	{
+		Metrics.set("handoff."+queue.server+".depth", queue.lists.size());
+		Metrics.set("handoff.depth", totalDepth);
+	}
+	
+	/**
+	 * Queued user lists of one server
+	 */
+	private static class ServerQueue
+	{
+		String server;
+		BOServerWorkerAction target;
+		LinkedList<Handoff> lists;
+	}
+	
+	/**
+	 * A queued user list and its receive time
+	 */
+	private static class Handoff
+	{
+		List<BOUser> users;
+		long receiveTime;
+	}
+	
+	private volatile boolean running;
+	private HashMap<String, ServerQueue> queues;
+	private LinkedList<ServerQueue> ready;
+	private int totalDepth;
+	private int capacity;
+}
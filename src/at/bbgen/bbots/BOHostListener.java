@@ -0,0 +1,34 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.net.InetAddress;
+
+/**
+ * Interface used to inform a class about a changed address of a Black Ops host.
+ * See {@link BOHostResolver}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public interface BOHostListener
+{
+	void addressChanged(String host, InetAddress address);
+}
@@ -0,0 +1,222 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BOHostResolver caches the addresses of the Black Ops hosts.<br><br>
+ * Every address is valid for <i>ttl</i> milliseconds. Watched hosts are
+ * resolved again by the resolver thread before their address expires
+ * (refresh-ahead), so the poll threads never wait for DNS. If the address
+ * of a watched host changes, its {@link BOHostListener}s are informed.
+ * If a lookup fails, the last known address is kept.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class BOHostResolver
+{
+	/**
+	 * Initializes the cache and starts the resolver thread.
+	 * @param ttl time (milliseconds) a resolved address is valid
+	 */
+	public BOHostResolver(long ttl)
+	{
+		this.ttl = Math.max(1000, ttl);
+		entries = new HashMap<String, HostEntry>();
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "BOHostResolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long refreshInterval = Math.max(1, this.ttl/4);
+		refresher.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				refreshWatched();
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Returns the address of <i>host</i>. Only blocks if the host is not cached
+	 * or its address has expired.
+	 * 
+	 * @param host hostname or IP
+	 * @return the address of <i>host</i>
+	 * @throws UnknownHostException Will be thrown if the host can not be resolved.
+	 */
+	public InetAddress resolve(String host) throws UnknownHostException
+	{
+		synchronized(this)
+		{
+			HostEntry entry = entries.get(host);
+			if(entry != null && entry.address != null && System.currentTimeMillis() - entry.resolved < ttl)
+			{
+				Metrics.increment("dns.hits");
+				return entry.address;
+			}
+		}
+		Metrics.increment("dns.misses");
+		return lookup(host);
+	}
+	
+	/**
+	 * Keeps <i>host</i> resolved in the background and informs <i>listener</i> about address changes.
+	 * @param host hostname or IP
+	 * @param listener the class to inform
+	 */
+	public synchronized void watch(String host, BOHostListener listener)
+	{
+		getEntry(host).listeners.add(listener);
+	}
+	
+	/**
+	 * Stops informing <i>listener</i> about <i>host</i>. See {@link #watch(String, BOHostListener)}
+	 * @param host hostname or IP
+	 * @param listener the class which has been informed
+	 */
+	public synchronized void unwatch(String host, BOHostListener listener)
+	{
+		HostEntry entry = entries.get(host);
+		if(entry != null)
+			entry.listeners.remove(listener);
+	}
+	
+	/**
+	 * Stops the resolver thread
+	 */
+	public void stop()
+	{
+		refresher.shutdownNow();
+	}
+	
+	/**
+	 * Resolves <i>host</i> (blocking) and updates the cache
+	 * @param host hostname or IP
+	 * @return the new address
+	 * @throws UnknownHostException Will be thrown if the host can not be resolved.
+	 */
+	private InetAddress lookup(String host) throws UnknownHostException
+	{
+		InetAddress address;
+		try
+		{
+			address = InetAddress.getByName(host);
+		} catch (UnknownHostException e)
+		{
+			Metrics.increment("dns.failures");
+			throw e;
+		}
+		
+		List<BOHostListener> changed = null;
+		synchronized(this)
+		{
+			HostEntry entry = getEntry(host);
+			if(entry.address != null && !entry.address.equals(address))
+				changed = new LinkedList<BOHostListener>(entry.listeners);
+			entry.address = address;
+			entry.resolved = System.currentTimeMillis();
+		}
+		
+		if(changed != null)
+		{
+			Metrics.increment("dns.changes");
+			Log.info("dns", "Address of {} has changed to {}.", host, address.getHostAddress());
+			for(BOHostListener listener : changed)
+				listener.addressChanged(host, address);
+		}
+		return address;
+	}
+	
+	/**
+	 * Resolves all watched hosts whose address expires before the next run.
+	 */
+	private void refreshWatched()
+	{
+		List<String> hosts = new LinkedList<String>();
+		synchronized(this)
+		{
+			long now = System.currentTimeMillis();
+			for(Map.Entry<String, HostEntry> entry : entries.entrySet())
+			{
+				if(!entry.getValue().listeners.isEmpty() && now - entry.getValue().resolved >= ttl - ttl/4)
+					hosts.add(entry.getKey());
+			}
+		}
+		for(String host : hosts)
+		{
+			try
+			{
+				lookup(host);
+			} catch (UnknownHostException e)
+			{
+				Log.warn("dns", "Error while trying to resolve {}, keeping last address: {}", host, e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the entry of <i>host</i> and creates it if needed.
+	 * Must be called while holding the lock of this resolver.
+	 * @param host hostname or IP
+	 * @return cache entry
+	 */
+	private HostEntry getEntry(String host)
+	{
+		HostEntry entry = entries.get(host);
+		if(entry == null)
+		{
+			entry = new HostEntry();
+			entry.listeners = new LinkedList<BOHostListener>();
+			entries.put(host, entry);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Cached address of one host
+	 */
+	private static class HostEntry
+	{
+		InetAddress address;
+		long resolved;
+		List<BOHostListener> listeners;
+	}
+	
+	private long ttl;
+	private HashMap<String, HostEntry> entries;
+	private ScheduledExecutorService refresher;
+}
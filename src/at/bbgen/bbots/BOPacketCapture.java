@@ -0,0 +1,162 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * BOPacketCapture appends every datagram received from the Black Ops servers to a file.<br><br>
+ * The capture can be fed back through the parser by {@link BOPacketReplay}.
+ * Only one capture is active per process, see {@link #start(File)}.<br><br>
+ * File format (all numbers big endian):
+ * <pre>
+ * file     := magic(int 0x42424350) version(short 1) record*
+ * record   := label | datagram
+ * label    := 1(byte) id(short) name(modified UTF-8)
+ * datagram := 2(byte) id(short) time(long, milliseconds) length(int) data(byte[length])
+ * </pre>
+ * A label record assigns an id to a server label before its first datagram.
+ * Appending to an existing capture starts a new session, which assigns its ids again.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class BOPacketCapture
+{
+	/**
+	 * Opens the capture file. New files get a header, existing files are appended.
+	 * @param file capture file
+	 * @throws IOException Will be thrown if the file can not be opened.
+	 */
+	private BOPacketCapture(File file) throws IOException
+	{
+		boolean newFile = !file.exists() || file.length() == 0;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+		if(newFile)
+		{
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+		}
+		labels = new HashMap<String, Integer>();
+	}
+	
+	/**
+	 * Starts capturing all received datagrams to <i>file</i>. A running capture is stopped first.
+	 * @param file capture file
+	 * @throws IOException Will be thrown if the file can not be opened.
+	 */
+	public static synchronized void start(File file) throws IOException
+	{
+		stop();
+		active = new BOPacketCapture(file);
+	}
+	
+	/**
+	 * Stops the running capture and closes its file.
+	 */
+	public static synchronized void stop()
+	{
+		BOPacketCapture capture = active;
+		active = null;
+		if(capture != null)
+			capture.close();
+	}
+	
+	/**
+	 * Appends a datagram to the running capture. Does nothing if no capture is running.
+	 * @param server Label of the Black Ops server
+	 * @param data buffer containing the datagram
+	 * @param length length of the datagram
+	 */
+	public static void record(String server, byte[] data, int length)
+	{
+		BOPacketCapture capture = active;
+		if(capture != null)
+			capture.write(server, data, length);
+	}
+	
+	/**
+	 * Writes a datagram record and, if needed, the label record of <i>server</i>.
+	 * @param server Label of the Black Ops server
+	 * @param data buffer containing the datagram
+	 * @param length length of the datagram
+	 */
+	private synchronized void write(String server, byte[] data, int length)
+	{
+		if(closed)
+			return;
+		try
+		{
+			Integer id = labels.get(server);
+			if(id == null)
+			{
+				id = labels.size();
+				labels.put(server, id);
+				out.writeByte(RECORD_LABEL);
+				out.writeShort(id);
+				out.writeUTF(server);
+			}
+			out.writeByte(RECORD_DATAGRAM);
+			out.writeShort(id);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(length);
+			out.write(data, 0, length);
+			Metrics.increment("capture.datagrams");
+			Metrics.add("capture.bytes", length);
+		} catch (IOException e)
+		{
+			Log.error("bo", "Error while trying to write capture, capture stopped: {}", e.getMessage());
+			close();
+		}
+	}
+	
+	/**
+	 * Flushes and closes the capture file.
+	 */
+	private synchronized void close()
+	{
+		if(closed)
+			return;
+		closed = true;
+		try
+		{
+			out.close();
+		} catch (IOException e)
+		{
+			Log.error("bo", "Error while trying to close capture: {}", e.getMessage());
+		}
+	}
+	
+	static final int MAGIC = 0x42424350;
+	static final int VERSION = 1;
+	static final int RECORD_LABEL = 1;
+	static final int RECORD_DATAGRAM = 2;
+	
+	private static volatile BOPacketCapture active = null;
+	
+	private DataOutputStream out;
+	private HashMap<String, Integer> labels;
+	private boolean closed;
+}
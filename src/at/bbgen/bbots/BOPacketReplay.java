@@ -0,0 +1,273 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * BOPacketReplay feeds a capture written by {@link BOPacketCapture} back through the
+ * teamStatus parser of {@link BOServerWorker}. Every server label gets its own parser,
+ * so split answers are reassembled like they were while capturing.<br><br>
+ * 
+ * Command Line arguments: [capture-file] [options]<br>
+ * Options:
+ * <ul>
+ * <li><i>realtime</i>: keeps the gaps between the datagrams (at most 10 seconds),
+ * otherwise the datagrams are fed as fast as possible</li>
+ * <li><i>nofingerprint</i>: parses every answer, even if id, GUID and team of all users are unchanged</li>
+ * <li><i>dump</i>: prints every committed user list as
+ * <i>label time id:guid:team ...</i>, which can be compared between two versions</li>
+ * </ul>
+ * A summary with throughput is printed at the end.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class BOPacketReplay
+{
+	/**
+	 * Initializes all local data.
+	 * @param file capture file
+	 * @param realtime true if the gaps between the datagrams are kept
+	 * @param fingerprinting true if unchanged answers are skipped, see {@link BOServerWorker#setFingerprinting(boolean)}
+	 * @param dump stream for the committed user lists or {@code null}
+	 */
+	public BOPacketReplay(File file, boolean realtime, boolean fingerprinting, PrintStream dump)
+	{
+		this.file = file;
+		this.realtime = realtime;
+		this.fingerprinting = fingerprinting;
+		this.dump = dump;
+		parsers = new HashMap<String, Parser>();
+	}
+	
+	/**
+	 * Replays the whole capture file.
+	 * @throws IOException Will be thrown if the file can not be read or is not a capture.
+	 * @throws BOWorkerException Will be thrown if a parser can not be created.
+	 */
+	public void replay() throws IOException, BOWorkerException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try
+		{
+			if(in.readInt() != BOPacketCapture.MAGIC)
+				throw new IOException(file+" is not a capture file.");
+			int version = in.readShort();
+			if(version != BOPacketCapture.VERSION)
+				throw new IOException("Unsupported capture version "+version+".");
+			
+			HashMap<Integer, Parser> ids = new HashMap<Integer, Parser>();
+			long lastTime = -1;
+			long start = System.nanoTime();
+			while(true)
+			{
+				int type;
+				try
+				{
+					type = in.readByte();
+				} catch (EOFException e)
+				{
+					break;
+				}
+				
+				if(type == BOPacketCapture.RECORD_LABEL)
+				{
+					int id = in.readShort();
+					String label = in.readUTF();
+					Parser parser = parsers.get(label);
+					if(parser == null)
+					{
+						parser = new Parser(label);
+						parsers.put(label, parser);
+					}
+					ids.put(id, parser);
+				}
+				else if(type == BOPacketCapture.RECORD_DATAGRAM)
+				{
+					int id = in.readShort();
+					long time = in.readLong();
+					int length = in.readInt();
+					Parser parser = ids.get(id);
+					if(parser == null)
+						throw new IOException("Datagram for undefined label "+id+".");
+					if(length < 0 || length > BOServerWorker.BUFFERSIZE)
+						throw new IOException("Invalid datagram length "+length+".");
+					
+					// the receive buffer is reused by BOServerWorker, so the old content stays behind the datagram
+					in.readFully(parser.buffer, 0, length);
+					
+					if(realtime && lastTime != -1)
+					{
+						long gap = Math.min(Math.max(time-lastTime, 0), MAX_GAP);
+						if(gap > 0)
+						{
+							try
+							{
+								Thread.sleep(gap);
+							} catch (InterruptedException e)
+							{
+								Thread.currentThread().interrupt();
+								break;
+							}
+						}
+					}
+					lastTime = time;
+					
+					parser.time = time;
+					parser.worker.processDatagram(parser.buffer, length);
+					datagrams++;
+					bytes += length;
+				}
+				else
+					throw new IOException("Unknown record type "+type+".");
+			}
+			elapsedNanos = System.nanoTime() - start;
+		} finally
+		{
+			try { in.close(); } catch(IOException e) { }
+			for(Parser parser : parsers.values())
+				parser.worker.stopWorker();
+		}
+	}
+	
+	/**
+	 * Returns a summary of the last replay
+	 * @return number of datagrams, commits, users and the throughput
+	 */
+	public String getSummary()
+	{
+		double seconds = elapsedNanos / 1e9;
+		return datagrams+" datagrams ("+bytes+" bytes) from "+parsers.size()+" servers, "
+			+commits+" user lists, "+users+" users in "+String.format("%.3f", seconds)+"s"
+			+(seconds > 0 ? String.format(" (%.0f datagrams/s)", datagrams/seconds) : "");
+	}
+	
+	/**
+	 * Replays a capture file
+	 * 
+	 * @param args command Line Arguments. See {@link BOPacketReplay}
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: BOPacketReplay [capture-file] [realtime] [nofingerprint] [dump]");
+			return;
+		}
+		boolean realtime = false;
+		boolean fingerprinting = true;
+		boolean dump = false;
+		for(int i=1;i<args.length;++i)
+		{
+			if(args[i].equals("realtime"))
+				realtime = true;
+			else if(args[i].equals("nofingerprint"))
+				fingerprinting = false;
+			else if(args[i].equals("dump"))
+				dump = true;
+			else
+			{
+				System.out.println("Unknown option: "+args[i]);
+				return;
+			}
+		}
+		
+		BOPacketReplay replay = new BOPacketReplay(new File(args[0]), realtime, fingerprinting, dump ? System.out : null);
+		try
+		{
+			replay.replay();
+		} catch (IOException e)
+		{
+			System.out.println("Error while trying to replay capture: "+e.getMessage());
+		} catch (BOWorkerException e)
+		{
+			System.out.println("Error while trying to create parser: "+e.getMessage());
+		}
+		System.out.println(replay.getSummary());
+		Log.shutdown();
+	}
+	
+	/**
+	 * Parser state of one server label
+	 */
+	private class Parser implements BOServerWorkerAction
+	{
+		/**
+		 * Creates a parser which is never started and does not send requests.
+		 * @param label Label of the Black Ops server
+		 * @throws BOWorkerException Will be thrown if the worker can not be created.
+		 */
+		public Parser(String label) throws BOWorkerException
+		{
+			this.label = label;
+			buffer = new byte[BOServerWorker.BUFFERSIZE];
+			worker = new BOServerWorker(label, InetAddress.getLoopbackAddress(), 0, "");
+			worker.registerAction(this);
+			worker.setFingerprinting(fingerprinting);
+		}
+		
+		/**
+		 * Counts and, if enabled, prints the committed user list.
+		 * @param boUsers committed user list
+		 * @param receiveTime not used, the capture time of the datagram is printed instead
+		 */
+		public void commitBOUsers(List<BOUser> boUsers, long receiveTime)
+		{
+			commits++;
+			users += boUsers.size();
+			if(dump != null)
+			{
+				StringBuilder sb = new StringBuilder();
+				sb.append(label).append(' ').append(time);
+				for(BOUser boUser : boUsers)
+					sb.append(' ').append(boUser.getId()).append(':').append(boUser.getGuid()).append(':').append(boUser.getTeam());
+				dump.println(sb);
+			}
+		}
+		
+		private String label;
+		private byte[] buffer;
+		private BOServerWorker worker;
+		private long time;
+	}
+	
+	private static final long MAX_GAP = 10000;
+	
+	private File file;
+	private boolean realtime;
+	private boolean fingerprinting;
+	private PrintStream dump;
+	private HashMap<String, Parser> parsers;
+	private long datagrams;
+	private long bytes;
+	private long commits;
+	private long users;
+	private long elapsedNanos;
+}
@@ -0,0 +1,146 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.Random;
+
+/**
+ * BOServerHealth is a circuit breaker for the teamStatus requests of one Black Ops server.<br><br>
+ * It is asked before every request. If <i>failureThreshold</i> requests in a row have not
+ * been answered until the next request is due, the server is considered down and only
+ * probed from time to time. The time between two probes doubles after every unanswered
+ * probe (up to <i>maxBackoff</i>) and is randomized by up to one half, so servers which
+ * went down together are not probed together. The first answer returns to normal polling.<br><br>
+ * Metrics: bo.&lt;server&gt;.down (1 while the server is considered down),
+ * bo.&lt;server&gt;.missedReplies, bo.&lt;server&gt;.circuitOpened and bo.&lt;server&gt;.probes.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class BOServerHealth
+{
+	/**
+	 * Initializes the health state of a server, which is considered up.
+	 * @param servername Label of the Black Ops server
+	 * @param failureThreshold number of unanswered requests in a row after which the server is considered down
+	 * @param maxBackoff maximum time between two probes (milliseconds)
+	 */
+	public BOServerHealth(String servername, int failureThreshold, long maxBackoff)
+	{
+		this.servername = servername;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.maxBackoff = Math.max(1, maxBackoff);
+		this.random = new Random();
+		Metrics.set("bo."+servername+".down", 0);
+	}
+	
+	/**
+	 * Decides if a request may be sent now. If it returns true, the request has to be
+	 * reported by {@link #requestSent(long)}.
+	 * @param now current time (milliseconds)
+	 * @param lastAnswerTime time of the last answer of the server (milliseconds, 0 = never)
+	 * @param interval normal polling interval (milliseconds)
+	 * @return true if the request should be sent
+	 */
+	public synchronized boolean requestAllowed(long now, long lastAnswerTime, long interval)
+	{
+		// late answers count as well, so a probed server comes back as soon as it answers
+		if(lastRequest > 0 && lastAnswerTime >= lastRequest)
+		{
+			missedReplies = 0;
+			if(down)
+			{
+				down = false;
+				Metrics.set("bo."+servername+".down", 0);
+				Log.info("bo", "{} answers again, polling resumed.", servername);
+			}
+		}
+		else if(requestPending)
+		{
+			missedReplies++;
+			Metrics.increment("bo."+servername+".missedReplies");
+			if(!down && missedReplies >= failureThreshold)
+			{
+				down = true;
+				backoff = interval;
+				nextProbe = now;
+				Metrics.set("bo."+servername+".down", 1);
+				Metrics.increment("bo."+servername+".circuitOpened");
+				Log.warn("bo", "{} has not answered {} requests, only probing it from now on.", servername, Integer.valueOf(missedReplies));
+			}
+		}
+		requestPending = false;
+		
+		if(!down)
+			return true;
+		if(now < nextProbe)
+			return false;
+		
+		backoff = Math.min(backoff*2, maxBackoff);
+		nextProbe = now + backoff - (long)(random.nextDouble()*backoff/2);
+		Metrics.increment("bo."+servername+".probes");
+		return true;
+	}
+	
+	/**
+	 * Reports a sent request
+	 * @param now time of the request (milliseconds)
+	 */
+	public synchronized void requestSent(long now)
+	{
+		lastRequest = now;
+		requestPending = true;
+	}
+	
+	/**
+	 * Considers the server up again, e.g. because its address has changed.
+	 * Normal polling resumes with the next request.
+	 */
+	public synchronized void reset()
+	{
+		requestPending = false;
+		missedReplies = 0;
+		if(down)
+		{
+			down = false;
+			Metrics.set("bo."+servername+".down", 0);
+		}
+	}
+	
+	/**
+	 * Returns if the server is considered down
+	 * @return true if the server is only probed
+	 */
+	public synchronized boolean isDown()
+	{
+		return down;
+	}
+	
+	private String servername;
+	private int failureThreshold;
+	private long maxBackoff;
+	private Random random;
+	private boolean requestPending;
+	private long lastRequest;
+	private int missedReplies;
+	private boolean down;
+	private long backoff;
+	private long nextProbe;
+}
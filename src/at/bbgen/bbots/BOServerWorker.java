@@ -26,6 +26,7 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -34,7 +35,7 @@ import java.util.List;
  * It uses an asynchronous call:<br>
  * After initializing the class, the superior class have to call {@link #registerAction(BOServerWorkerAction)} to set the callback class.<br>
  * Then after calling {@link #sendTeamStatusRequest()} the data will be transmitted to the server.<be>
- * When all data is received, the class will call {@link BOServerWorkerAction#commitBOUsers(List)} and inform its superior class about the received user list.
+ * When all data is received, the class will call {@link BOServerWorkerAction#commitBOUsers(List, long)} and inform its superior class about the received user list.
  * 
  * @author Bernhard Eder <bbots@bbgen.net>
  *
@@ -44,13 +45,21 @@ public class BOServerWorker extends Thread
 	/**
 	 * Initializes all local data but does not send anything to the server yet.
 	 * 
+	 * @param serverName Label of the BO server
 	 * @param serverAddress Adress of the BO server
 	 * @param serverPort Port of the RCon interface
 	 * @param password RCon Password
 	 * @throws BOWorkerException Will be thrown if the socket can not be opened.
 	 */
-	public BOServerWorker(InetAddress serverAddress, int serverPort, String password) throws BOWorkerException
+	public BOServerWorker(String serverName, InetAddress serverAddress, int serverPort, String password) throws BOWorkerException
 	{
+		this.serverName = serverName;
+		this.unchangedMetric = "bo."+serverName+".unchangedAnswers";
+		this.changedMetric = "bo."+serverName+".changedAnswers";
+		this.ratioMetric = "bo."+serverName+".unchangedRatio";
+		this.fingerprinting = true;
+		this.columnStarts = new int[16];
+		this.columnEnds = new int[16];
 		this.serverAddress = serverAddress;
 		this.serverPort = serverPort;
 		this.password = password;
@@ -84,6 +93,15 @@ public class BOServerWorker extends Thread
 		}
 	}
 	
+	/**
+	 * Changes the address of the BO server. The next request is sent to the new address.
+	 * @param serverAddress new address of the BO server
+	 */
+	public void setServerAddress(InetAddress serverAddress)
+	{
+		this.serverAddress = serverAddress;
+	}
+	
 	/**
 	 * Registers the callback class. See {@link BOServerWorker} for more details.
 	 * 
@@ -112,182 +130,315 @@ public class BOServerWorker extends Thread
 			{
 				DatagramPacket packet = new DatagramPacket(buf, buf.length);
 				socket.receive(packet);
-				//String received = new String(packet.getData(), 0, packet.getLength());
-				//System.out.println("Quote of the Moment: " + received);
-				
+				BOPacketCapture.record(serverName, packet.getData(), packet.getLength());
+				processDatagram(packet.getData(), packet.getLength());
+			} catch (IOException e)
+			{
+				if(!socket.isClosed())
+					Log.error("bo", "Error while trying to receive UDP packages: {}", e.getMessage());
+				else
+					return;
+			}
+		}
+	}
+	
+	/**
+	 * Analyzes a received datagram. A teamStatus answer may be split into two datagrams,
+	 * the first one is kept until the second one arrives. When the answer is complete,
+	 * the user list is committed to the callback class.<br>
+	 * Is also used by {@link BOPacketReplay} to feed captured datagrams.
+	 * 
+	 * @param data buffer containing the datagram
+	 * @param length length of the datagram
+	 * @throws UnsupportedEncodingException Will be thrown if US-ASCII is not supported.
+	 */
+	void processDatagram(byte[] data, int length) throws UnsupportedEncodingException
+	{
+		//String received = new String(data, 0, length);
+		//System.out.println("Quote of the Moment: " + received);
+		
 
-				List<BOUser> users = new LinkedList<BOUser>();
-				
-				
-				int count_0a = 0;
-				
-				//System.out.println(getHex(packet.getData()));
-				
-				// analyze if the current package contains 0x0a 0x0a:
-				boolean contains2LF = false;
-				twoLFLoop:
-				for(int i=0;i<packet.getLength()-1; ++i)
+		List<BOUser> users = new LinkedList<BOUser>();
+		
+		
+		int count_0a = 0;
+		
+		//System.out.println(getHex(data));
+		
+		// analyze if the current package contains 0x0a 0x0a:
+		boolean contains2LF = false;
+		twoLFLoop:
+		for(int i=0;i<length-1; ++i)
+		{
+			if(data[i] == 0x0a && data[i+1] == 0x0a)
+			{
+				contains2LF = true;
+				break twoLFLoop;
+			}
+		}
+		
+		
+		byte[] analyzePacket = new byte[0];
+		
+		if(!contains2LF)
+		{
+			tempPackage = new byte[length];
+			System.arraycopy(data, 0, tempPackage, 0, length);
+			tempPackageLength = length;
+		}
+		else
+		{
+			if(tempPackage != null)
+			{
+				// TODO: presumption: package order is not reversed -> implement checking for "print.map"
+				analyzePacket = new byte[tempPackageLength+length  -12];
+				System.arraycopy(tempPackage, 0, analyzePacket, 0, tempPackageLength-1);
+				System.arraycopy(data, 11, analyzePacket, tempPackageLength-1, length-11);
+				tempPackage = null;
+			}
+			else
+				analyzePacket = data;
+			
+			// skip parsing if id, GUID and team of all users are unchanged
+			long receiveTime = System.currentTimeMillis();
+			lastAnswerTime = receiveTime;
+			if(fingerprinting)
+			{
+				long fingerprint = fingerprint(analyzePacket);
+				if(hasFingerprint && fingerprint == lastFingerprint)
 				{
-					if(packet.getData()[i] == 0x0a && packet.getData()[i+1] == 0x0a)
-					{
-						contains2LF = true;
-						break twoLFLoop;
-					}
+					unchangedAnswers++;
+					Metrics.increment(unchangedMetric);
+					Metrics.set(ratioMetric, unchangedAnswers*100/(unchangedAnswers+changedAnswers));
+					return;
 				}
+				lastFingerprint = fingerprint;
+				hasFingerprint = true;
+				changedAnswers++;
+				Metrics.increment(changedMetric);
+				Metrics.set(ratioMetric, unchangedAnswers*100/(unchangedAnswers+changedAnswers));
+			}
+			
+			packetLoop:
+			for(int i=0; i<analyzePacket.length; ++i)
+			{
+				if(analyzePacket[i] == 0x0a)
+					count_0a++;
 				
-				
-				byte[] analyzePacket = new byte[0];
-				
-				if(!contains2LF)
+				if(analyzePacket[i] == 0x0a && analyzePacket[i+1] == 0x0a)
 				{
-					tempPackage = new byte[packet.getLength()];
-					System.arraycopy(packet.getData(), 0, tempPackage, 0, packet.getLength());
-					tempPackageLength = packet.getLength();
+					//System.out.println("i="+i);
+					//System.out.println("got 0x0a 0x0a");
+					break packetLoop;
 				}
-				else
+				
+				if(analyzePacket[i] == 0x0a && count_0a > 3)
 				{
-					if(tempPackage != null)
+					// geting length:
+					int j=0;
+					for(j=i+1;j<analyzePacket.length;++j)
+					{
+						if(analyzePacket[j] == 0x0a)
+							break;
+					}
+					
+					byte[] line = new byte[j-i-1];
+					System.arraycopy(analyzePacket, i+1, line, 0, j-i-1);
+					
+					String sLine = new String(line, "US-ASCII");
+					
+					ArrayList<String> parameters = splitParameter(sLine);
+					
+					if(parameters.size() < 10)
 					{
-						// TODO: presumption: package order is not reversed -> implement checking for "print.map"
-						analyzePacket = new byte[tempPackageLength+packet.getLength()  -12];
-						System.arraycopy(tempPackage, 0, analyzePacket, 0, tempPackageLength-1);
-						System.arraycopy(packet.getData(), 11, analyzePacket, tempPackageLength-1, packet.getLength()-11);
-						tempPackage = null;
+						i += 1;
+						continue packetLoop;
 					}
-					else
-						analyzePacket = packet.getData();
 					
-					packetLoop:
-					for(int i=0; i<analyzePacket.length; ++i)
+					//System.out.println("i="+i);
+					//System.out.println("|"+getHex(getParameter(data, i, 94).getBytes()));
+					/**** ID ****/
+					String sId = parameters.get(0);
+					//System.out.println("id = "+getHex(sId.getBytes()));
+					int id = -1;
+					try
 					{
-						if(analyzePacket[i] == 0x0a)
-							count_0a++;
+						id = Integer.parseInt(sId.trim());
+					} catch (NumberFormatException e)
+					{
+						Log.warn("bo", "Error while trying to convert id ({}): {}", sId, e.getMessage());
 						
-						if(analyzePacket[i] == 0x0a && analyzePacket[i+1] == 0x0a)
-						{
-							//System.out.println("i="+i);
-							//System.out.println("got 0x0a 0x0a");
-							break packetLoop;
-						}
+						i+=1;
+						continue packetLoop;
+					}
+					
+					if(id < 1) // just the democlient
+					{
+						i+=1;
+						continue packetLoop;
+					}
+					
+					/**** Score ****/
+					
+					/**** Ping ****/
+					
+					/**** GUID ****/
+					//String sGUID = getParameter(analyzePacket, i+OFF_GUID, LENGTH_GUID);
+					String sGUID = parameters.get(3);
+					int guid = -1;
+					try
+					{
+						guid = Integer.parseInt(sGUID.trim());
+					}	catch (NumberFormatException e)
+					{
+						Log.warn("bo", "Error while trying to convert guid ({}): {}", sGUID, e.getMessage());
 						
-						if(analyzePacket[i] == 0x0a && count_0a > 3)
-						{
-							// geting length:
-							int j=0;
-							for(j=i+1;j<analyzePacket.length;++j)
-							{
-								if(analyzePacket[j] == 0x0a)
-									break;
-							}
-							
-							byte[] line = new byte[j-i-1];
-							System.arraycopy(analyzePacket, i+1, line, 0, j-i-1);
-							
-							String sLine = new String(line, "US-ASCII");
-							
-							ArrayList<String> parameters = splitParameter(sLine);
-							
-							if(parameters.size() < 10)
-							{
-								i += 1;
-								continue packetLoop;
-							}
-							
-							//System.out.println("i="+i);
-							//System.out.println("|"+getHex(getParameter(packet.getData(), i, 94).getBytes()));
-							/**** ID ****/
-							String sId = parameters.get(0);
-							//System.out.println("id = "+getHex(sId.getBytes()));
-							int id = -1;
-							try
-							{
-								id = Integer.parseInt(sId.trim());
-							} catch (NumberFormatException e)
-							{
-								System.out.println("Error while trying to convert id ("+sId+"): "+e.getMessage());
-								
-								i+=1;
-								continue packetLoop;
-							}
-							
-							if(id < 1) // just the democlient
-							{
-								i+=1;
-								continue packetLoop;
-							}
-							
-							/**** Score ****/
-							
-							/**** Ping ****/
-							
-							/**** GUID ****/
-							//String sGUID = getParameter(analyzePacket, i+OFF_GUID, LENGTH_GUID);
-							String sGUID = parameters.get(3);
-							int guid = -1;
-							try
-							{
-								guid = Integer.parseInt(sGUID.trim());
-							}	catch (NumberFormatException e)
-							{
-								System.out.println("Error while trying to convert guid ("+sGUID+"): "+e.getMessage());
-								
-								i+=1;
-								continue packetLoop;
-							}
-							
-							
-							/**** Nickname ****/
-							
-							/**** Team ****/
-							//String sTeam = getParameter(analyzePacket, i+OFF_TEAM, LENGTH_TEAM);
-							String sTeam = parameters.get(parameters.size()-5);
-							int team = -1;
-							try
-							{
-								team = Integer.parseInt(sTeam.trim());
-							} catch (NumberFormatException e)
-							{
-								System.out.println("Error while trying to convert team ("+sTeam+"): "+e.getMessage());
-								i+=1;
-								continue packetLoop;
-							}
-							if(team > 2 || team < 0)
-								continue packetLoop; // invalid team -> ignore (probably CNCT?)
-							
-							BOUser boUser = new BOUser();
-							boUser.setId(id);
-							boUser.setGuid(guid);
-							boUser.setTeam(team);
-							
-							if(id > 0)
-							{
-								users.add(boUser);
-								//System.out.println("Added user: "+boUser);
-							}
-							
-							i += 1;
-							
-						}
+						i+=1;
+						continue packetLoop;
+					}
+					
+					
+					/**** Nickname ****/
+					
+					/**** Team ****/
+					//String sTeam = getParameter(analyzePacket, i+OFF_TEAM, LENGTH_TEAM);
+					String sTeam = parameters.get(parameters.size()-5);
+					int team = -1;
+					try
+					{
+						team = Integer.parseInt(sTeam.trim());
+					} catch (NumberFormatException e)
+					{
+						Log.warn("bo", "Error while trying to convert team ({}): {}", sTeam, e.getMessage());
+						i+=1;
+						continue packetLoop;
 					}
+					if(team > 2 || team < 0)
+						continue packetLoop; // invalid team -> ignore (probably CNCT?)
+					
+					BOUser boUser = new BOUser();
+					boUser.setId(id);
+					boUser.setGuid(guid);
+					boUser.setTeam(team);
 					
+					if(id > 0)
+					{
+						users.add(boUser);
+						//System.out.println("Added user: "+boUser);
+					}
 					
-					if(boActionClass != null)
-						boActionClass.commitBOUsers(users);
-					else
-						System.out.println("Cannot commit to boActionClass: boActionClass == null");
+					i += 1;
 					
 				}
-
-			} catch (IOException e)
+			}
+			
+			
+			if(boActionClass != null)
 			{
-				if(!socket.isClosed())
-					System.out.println("Error while trying to receive UDP packages.");
-				else
-					return;
+				lastChangeTime = receiveTime;
+				boActionClass.commitBOUsers(users, receiveTime);
 			}
+			else
+				Log.error("bo", "Cannot commit to boActionClass: boActionClass == null");
+			
 		}
 	}
 	
+	/**
+	 * Calculates a FNV-1a hash over id, GUID and team of all user lines of a complete
+	 * teamStatus answer. Lines are selected and split like in {@link #processDatagram(byte[], int)},
+	 * but without creating any objects.
+	 * @param packet complete teamStatus answer
+	 * @return fingerprint of the answer
+	 */
+	private long fingerprint(byte[] packet)
+	{
+		long hash = FNV_OFFSET_BASIS;
+		int count_0a = 0;
+		for(int i=0;i<packet.length;++i)
+		{
+			if(packet[i] != 0x0a)
+				continue;
+			count_0a++;
+			if(i+1 < packet.length && packet[i+1] == 0x0a)
+				break;
+			if(count_0a <= 3)
+				continue;
+			
+			// split the following line into columns
+			int columns = 0;
+			int j = i+1;
+			while(j < packet.length && packet[j] != 0x0a)
+			{
+				if(packet[j] == 0x20)
+				{
+					j++;
+					continue;
+				}
+				if(columns == columnStarts.length)
+				{
+					columnStarts = Arrays.copyOf(columnStarts, columns*2);
+					columnEnds = Arrays.copyOf(columnEnds, columns*2);
+				}
+				columnStarts[columns] = j;
+				while(j < packet.length && packet[j] != 0x20 && packet[j] != 0x0a)
+					j++;
+				columnEnds[columns++] = j;
+			}
+			if(columns < 10)
+				continue;
+			
+			hash = hashColumn(hash, packet, 0);
+			hash = hashColumn(hash, packet, 3);
+			hash = hashColumn(hash, packet, columns-5);
+			hash = (hash ^ 0x0a) * FNV_PRIME;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Adds a column found by {@link #fingerprint(byte[])} and a separator to <i>hash</i>
+	 * @param hash current hash
+	 * @param packet complete teamStatus answer
+	 * @param column index of the column
+	 * @return new hash
+	 */
+	private long hashColumn(long hash, byte[] packet, int column)
+	{
+		for(int i=columnStarts[column];i<columnEnds[column];++i)
+			hash = (hash ^ (packet[i] & 0xff)) * FNV_PRIME;
+		return (hash ^ 0x20) * FNV_PRIME;
+	}
+	
+	/**
+	 * Enables or disables skipping of unchanged answers (enabled by default).
+	 * @param fingerprinting true if unchanged answers are skipped
+	 */
+	public void setFingerprinting(boolean fingerprinting)
+	{
+		this.fingerprinting = fingerprinting;
+		hasFingerprint = false;
+	}
+	
+	/**
+	 * Returns when the last user list was passed to the {@link BOServerWorkerAction}, i.e. when the last
+	 * complete teamStatus answer was received which was not skipped as unchanged
+	 * @return time in milliseconds or 0 if no user list has been passed yet
+	 */
+	public long getLastChangeTime()
+	{
+		return lastChangeTime;
+	}
+	
+	/**
+	 * Returns when the last complete teamStatus answer was received, even if it was unchanged
+	 * @return time in milliseconds or 0 if no answer has been received yet
+	 */
+	public long getLastAnswerTime()
+	{
+		return lastAnswerTime;
+	}
+	
 	/**
 	 * Is used to split the columns returned by the rcon protocol
 	 * @param sLine a whole line given by the rcon protocol (e.g. by the teamStatus request)
@@ -331,7 +482,7 @@ public class BOServerWorker extends Thread
 			return new String(data, start, count, "US-ASCII");
 		} catch (UnsupportedEncodingException e)
 		{
-			System.out.println("unsupported encoding: "+e.getMessage());
+			Log.error("bo", "unsupported encoding: {}", e.getMessage());
 			return "";
 		}
 	}
@@ -390,10 +541,25 @@ public class BOServerWorker extends Thread
 	
 	private byte[] sendTeamStatusPackage;
 	private DatagramSocket socket;
-	private static final int BUFFERSIZE = 32768;
+	static final int BUFFERSIZE = 32768;
 	private BOServerWorkerAction boActionClass;
 	private String password;
-	private InetAddress serverAddress;
+	private String serverName;
+	private volatile boolean fingerprinting;
+	private boolean hasFingerprint;
+	private long lastFingerprint;
+	private long unchangedAnswers;
+	private long changedAnswers;
+	private volatile long lastAnswerTime;
+	private volatile long lastChangeTime;
+	private int[] columnStarts;
+	private int[] columnEnds;
+	private String unchangedMetric;
+	private String changedMetric;
+	private String ratioMetric;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private volatile InetAddress serverAddress;
 	private int serverPort;
 }
 
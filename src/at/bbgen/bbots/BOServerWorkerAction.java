@@ -29,5 +29,10 @@ import java.util.List;
  */
 public interface BOServerWorkerAction
 {
-	void commitBOUsers(List<BOUser> users);
+	/**
+	 * Will be called with every received user list
+	 * @param users the received user list
+	 * @param receiveTime time when the user list has been received (milliseconds)
+	 */
+	void commitBOUsers(List<BOUser> users, long receiveTime);
 }
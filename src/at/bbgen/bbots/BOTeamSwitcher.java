@@ -19,11 +19,12 @@
 
 package at.bbgen.bbots;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -42,16 +43,80 @@ public class BOTeamSwitcher
 	 * @param sProperties service properties class
 	 * @param userProperties user properties class
 	 * @param tsConnection connection to the TS server
+	 * @param moveDispatcher dispatcher which sends the moves to the TS server
+	 * @param handoffStage stage which passes the received Black Ops user lists
+	 * @param hostResolver resolver for the Black Ops host
+	 * @param presenceIndex index which decides on which server a player is
 	 * @param servername Label of this Black Ops server instance
 	 */
-	public BOTeamSwitcher(SProperties sProperties, UserProperties userProperties, TSConnection tsConnection, String servername)
+	public BOTeamSwitcher(SProperties sProperties, UserProperties userProperties, TSConnection tsConnection, TSMoveDispatcher moveDispatcher, BOHandoffStage handoffStage, BOHostResolver hostResolver, GuidPresenceIndex presenceIndex, String servername)
 	{
 		this.sProperties = sProperties;
 		this.userProperties = userProperties;
 		this.servername = servername;
+		this.reconcileInterval = sProperties.getTsReconcileInterval();
+		this.maxRosterAge = sProperties.getBoMaxRosterAge();
+		this.joinView = new TeamJoinView();
+		this.moveBuffers = new TSUser[3][16];
+		this.moveCounts = new int[3];
+		this.skippedTicksMetric = "switcher."+servername+".skippedTicks";
+		this.staleSkipsMetric = "switcher."+servername+".staleSkips";
+		this.heldMovesMetric = "switcher."+servername+".heldMoves";
+		this.rejectedMovesMetric = "switcher."+servername+".rejectedMoves";
 		boConnection = null;
 		this.tsConnection = tsConnection;
+		this.moveDispatcher = moveDispatcher;
+		this.moveClass = moveDispatcher.getMoveClass(servername);
+		this.handoffStage = handoffStage;
+		this.hostResolver = hostResolver;
+		this.presenceIndex = presenceIndex;
+		this.hostListener = new BOHostListener()
+		{
+			public void addressChanged(String host, InetAddress address)
+			{
+				if(boConnection != null)
+					boConnection.setServerAddress(address);
+			}
+		};
 		scanTimer = null;
+		config = sProperties.getServerConfig(servername);
+		moveClass.setWeight(config.getMovePriority());
+		transitionFilter = new TeamTransitionFilter(config.getTeamDwellTimes(), getRetention(config), "switcher."+servername+".suppressedMoves");
+	}
+	
+	/**
+	 * Applies a changed configuration without restarting. The connection to the
+	 * Black Ops server has to be the same (see {@link ServerConfig#hasSameConnection(ServerConfig)}).
+	 * 
+	 * @param config new configuration of this server
+	 */
+	public void updateConfig(ServerConfig config)
+	{
+		transitionFilter.setDwellTimes(config.getTeamDwellTimes(), getRetention(config));
+		moveClass.setWeight(config.getMovePriority());
+		this.config = config;
+	}
+	
+	/**
+	 * Returns the current configuration of this server
+	 * @return compiled configuration
+	 */
+	public ServerConfig getConfig()
+	{
+		return config;
+	}
+	
+	/**
+	 * Returns how long the transition state of an unseen player is kept
+	 * @param config configuration of this server
+	 * @return retention in milliseconds
+	 */
+	private long getRetention(ServerConfig config)
+	{
+		long maxDwellTime = 0;
+		for(long dwellTime : config.getTeamDwellTimes())
+			maxDwellTime = Math.max(maxDwellTime, dwellTime);
+		return maxDwellTime + 2L*sProperties.getTsScanInterval();
 	}
 	
 	/**
@@ -60,12 +125,40 @@ public class BOTeamSwitcher
 	 * @throws BOTeamSwitcherException Thrown if anyting goes wrong
 	 */
 	public void init() throws BOTeamSwitcherException
+	{
+		init(null);
+	}
+	
+	/**
+	 * Initializes and connects. If a snapshot of a previous run is given,
+	 * the last user list and transition states are restored and the first
+	 * switching takes place immediately.
+	 * 
+	 * @param snapshot state written by {@link #writeSnapshot(DataOutput)} or {@code null}
+	 * @throws BOTeamSwitcherException Thrown if anyting goes wrong
+	 */
+	public void init(DataInput snapshot) throws BOTeamSwitcherException
 	{
 		try
 		{
-			InetAddress boServerHost = InetAddress.getByName(sProperties.getBoServerHost(servername));
+			InetAddress boServerHost = hostResolver.resolve(config.getBoServerHost());
+			
+			boConnection = new BOConnection(servername, boServerHost, config.getBoServerPort(), config.getBoServerPassword(), config.getBoScanInterval(), handoffStage, presenceIndex,
+					new BOServerHealth(servername, sProperties.getBoFailureThreshold(), sProperties.getBoMaxBackoff()));
 			
-			boConnection = new BOConnection(boServerHost, sProperties.getBoServerPort(servername), sProperties.getBoServerPassword(servername), sProperties.getBoScanInterval(servername));
+			long firstScan = sProperties.getTsScanInterval();
+			if(snapshot != null)
+			{
+				try
+				{
+					boConnection.readSnapshot(snapshot);
+					transitionFilter.readSnapshot(snapshot);
+					firstScan = 0;
+				} catch (IOException e)
+				{
+					System.out.println("Error while trying to restore snapshot of "+servername+": "+e.getMessage());
+				}
+			}
 			
 			scanTimer = new Timer();
 			scanTimer.scheduleAtFixedRate(new TimerTask()
@@ -74,9 +167,10 @@ public class BOTeamSwitcher
 				{
 					timerCall();
 				}
-			}, sProperties.getTsScanInterval(), sProperties.getTsScanInterval());
+			}, firstScan, sProperties.getTsScanInterval());
 			
 			boConnection.startBOWorker();
+			hostResolver.watch(config.getBoServerHost(), hostListener);
 			
 		} catch (UnknownHostException e)
 		{
@@ -88,40 +182,78 @@ public class BOTeamSwitcher
 	}
 	
 	/**
-	 * Stops this service and all threads created by it
+	 * Stops this service and all threads created by it.
+	 * The shared TS connection stays connected.
 	 */
 	public void stopService()
 	{
 		scanTimer.cancel();
-		
-		try
-		{
-			tsConnection.disconnect();
-		} catch (TSConnectionException e)
-		{
-			System.out.println("Error while trying to disconnect from TS3 Connection: "+e.getMessage());
-		}
-		
+		hostResolver.unwatch(config.getBoServerHost(), hostListener);
 		boConnection.stopAll();
 	}
 
+	/**
+	 * Writes the current user list and the transition states (see {@link StateSnapshot})
+	 * @param out destination
+	 * @throws IOException Will be thrown if the state can not be written.
+	 */
+	public void writeSnapshot(DataOutput out) throws IOException
+	{
+		boConnection.writeSnapshot(out);
+		transitionFilter.writeSnapshot(out);
+	}
+	
 	/**
 	 * Will be called every TSScanningInterval seconds
-	 * Does all the magical switching.
+	 * Does all the magical switching.<br>
+	 * The changes of the client list, the Black Ops user list, the user file and the
+	 * configuration are applied to the {@link TeamJoinView}. The pass is skipped if nothing has
+	 * changed and no moves are pending. Otherwise the team of every playing client is fed into
+	 * the {@link TeamTransitionFilter}, so a player who returns to their stable team resets
+	 * their candidate team and stays known to the filter.
+	 * At least every TSReconcileInterval milliseconds the view is built again from scratch.<br>
+	 * The moves are collected in buffers of this switcher, so a pass which does not change
+	 * anything does not allocate.
 	 */
 	private void timerCall()
 	{
+		ServerConfig config = this.config;
 		try
 		{
-			List<TSUser> tsUsers = tsConnection.getClientList();
-			List<TSUser> tsUsersI = new LinkedList<TSUser>(); // interesting users = users with known guid=tsUID reference
-			for(TSUser tsUser : tsUsers)
+			TSClientList tsUsers;
+			long tsVersion;
+			// retrieved outside the lock, because it may wait for the flood protection
+			tsConnection.getClientList();
+			synchronized(tsConnection)
+			{
+				tsUsers = tsConnection.getCachedClientList();
+				tsVersion = tsConnection.getClientListVersion();
+			}
+			IntObjectMap<BOUser> boUsers;
+			long boVersion;
+			// only the players which are on this server according to all Black Ops servers
+			synchronized(presenceIndex)
+			{
+				boUsers = presenceIndex.getRoster(servername);
+				boVersion = presenceIndex.getVersion(servername);
+			}
+			long userVersion = userProperties.getVersion();
+			long now = System.currentTimeMillis();
+			
+			if(now - lastFullPass >= reconcileInterval)
+			{
+				joinView.invalidate();
+				lastFullPass = now;
+			}
+			boolean changed = joinView.update(tsUsers, tsVersion, boUsers, boVersion, userProperties, userVersion, config);
+			if(!changed && !joinView.hasPendingMoves())
 			{
-				if(userProperties.getUser(tsUser.getClientUniqueId()) != null && sProperties.isListeningChannel(servername, tsUser.getChannelId()))
-					tsUsersI.add(tsUser);
+				Metrics.increment(skippedTicksMetric);
+				return;
 			}
 			
-			if(tsUsersI.isEmpty())
+			// interesting users = users with known guid=tsUID reference
+			if(joinView.getInterestingCount() == 0)
 			{
 				boConnection.disableTimer();
 				return;
@@ -130,77 +262,150 @@ public class BOTeamSwitcher
 			{
 				boConnection.enableTimer();
 			}
+			
+			// don't move anybody based on an old user list
+			long rosterAge = now - boConnection.getUsersTime();
+			if(maxRosterAge > 0 && rosterAge > maxRosterAge)
+			{
+				Metrics.increment(staleSkipsMetric);
+				if(!stale)
+				{
+					Log.warn("switcher", "User list of {} is older than {} ms, switching paused.", servername, Long.valueOf(maxRosterAge));
+					stale = true;
+				}
+				return;
+			}
+			if(stale)
+			{
+				Log.info("switcher", "User list of {} is up to date again, switching resumed.", servername);
+				stale = false;
+			}
 
 			
-			ArrayList<LinkedList<TSUser>> moveList = new ArrayList<LinkedList<TSUser>>();
 			for(int i=0;i<3;++i)
-				moveList.add(new LinkedList<TSUser>());
-			
-			int userPlayingCount = 0;
+				moveCounts[i] = 0;
+			int heldMoves = 0;
 			
-			for(TSUser tsUser : tsUsersI)
+			for(TeamJoinView.Entry entry = joinView.getFirstPlaying(); entry != null; entry = entry.getNextPlaying())
 			{
-				BOUser boUser = null;
-				String tsUID = tsUser.getClientUniqueId();
-				int guid = userProperties.getUser(tsUID).getBoGUID();
-				boUser = boConnection.getUser(guid);
-				if(boUser == null)
-					continue;
-				
+				TSUser tsUser = entry.getTsUser();
 				int curChannel = tsUser.getChannelId();
-				int newChannel = -1;
-				try
+				int newChannel = config.getTeamChannel(entry.getTeam());
+				
+				int stableTeam = transitionFilter.update(entry.getGuid(), entry.getTeam(), now);
+				if(stableTeam != entry.getTeam())
 				{
-					newChannel = sProperties.getTeamChannels(servername, boUser.getTeam());
-					
-					userPlayingCount++;
-					
+					// player is in a transient state -> don't move (counted once by the filter)
 					if(newChannel != -1 && newChannel != curChannel)
-					{
-						if(boUser.getTeam() < 3)
-							moveList.get(boUser.getTeam()).add(tsUser);
-					}
-				} catch (SPropertiesException e)
+						heldMoves++;
+					if(stableTeam == -1)
+						continue;
+					newChannel = config.getTeamChannel(stableTeam);
+				}
+				
+				if(newChannel != -1 && newChannel != curChannel)
 				{
-					System.out.println("Error while trying to retrieve team channel: "+e.getMessage());
+					if(stableTeam < 3)
+						addMove(stableTeam, tsUser);
 				}
 			}
 			
+			transitionFilter.removeUnseen(now);
+			Metrics.set(heldMovesMetric, heldMoves);
+			
 			// don't switch if only less than [minPlr] players are playing
-			if(userPlayingCount < sProperties.getMinimumPlayers(servername))
+			if(joinView.getPlayingCount() < config.getMinimumPlayers())
 				return;
 			
 			for(int i=0;i<3;++i)
 			{
-				int newChannel;
-				try
+				int newChannel = config.getTeamChannel(i);
+				if(newChannel == -1)
+					continue;
+				
+				if(moveCounts[i] < 1)
+					continue; // nothing to move
+				
+				// skip moves which would fail anyway
+				TSChannel channel = tsConnection.getChannel(newChannel);
+				if(channel == null)
 				{
-					newChannel = sProperties.getTeamChannels(servername, i);
-					if(newChannel == -1)
-						continue;
-					
-					if(moveList.get(i).size() < 1)
-						continue; // nothing to move
-					
-					tsConnection.moveUserList(moveList.get(i), newChannel, null); // TODO: implement password
-					
-				} catch (SPropertiesException e)
+					Metrics.add(rejectedMovesMetric, moveCounts[i]);
+					Log.warn("switcher", "Error while trying to move users of {}: channel {} does not exist.", servername, Integer.valueOf(newChannel));
+					continue;
+				}
+				String password = tsConnection.getChannelPassword(channel);
+				int freeSlots = channel.getFreeSlots();
+				
+				TSUser[] moves = moveBuffers[i];
+				for(int j=0;j<moveCounts[i];++j)
 				{
-					System.out.println("Error while trying to retrieve team channel: "+e.getMessage());
+					if(freeSlots-- <= 0)
+					{
+						Metrics.increment(rejectedMovesMetric);
+						continue;
+					}
+					moveDispatcher.submit(moveClass, moves[j], newChannel, password);
 				}
 			}
 			
 		} catch (TSConnectionException e)
 		{
-			System.out.println("Error while trying to move users: "+e.getMessage());
+			Log.error("switcher", "Error while trying to move users of {}: {}", servername, e.getMessage());
 		}
 		
 	}
 	
+	/**
+	 * Adds a move to the buffer of a team. The buffer grows if needed and is kept for the next passes.
+	 * @param team target team
+	 * @param tsUser the user to be moved
+	 */
+	private void addMove(int team, TSUser tsUser)
+	{
+		TSUser[] moves = moveBuffers[team];
+		if(moveCounts[team] == moves.length)
+		{
+			moves = Arrays.copyOf(moves, moves.length*2);
+			moveBuffers[team] = moves;
+		}
+		moves[moveCounts[team]++] = tsUser;
+	}
+	
+	/**
+	 * Runs one pass on the calling thread, see {@link #timerCall()}.
+	 * Only used by {@link SwitcherTickBenchmark}.
+	 */
+	void tick()
+	{
+		timerCall();
+	}
+	
 	private String servername;
+	private volatile ServerConfig config;
+	private TeamTransitionFilter transitionFilter;
 	private Timer scanTimer;
-	private BOConnection boConnection;
+	private volatile BOConnection boConnection;
 	private TSConnection tsConnection;
+	private TSMoveDispatcher moveDispatcher;
+	private TSMoveDispatcher.MoveClass moveClass;
+	private BOHandoffStage handoffStage;
+	private BOHostResolver hostResolver;
+	private GuidPresenceIndex presenceIndex;
+	private BOHostListener hostListener;
 	private SProperties sProperties;
 	private UserProperties userProperties;
+	
+	// only used by the timer thread
+	private TeamJoinView joinView;
+	private long lastFullPass;
+	private long reconcileInterval;
+	private long maxRosterAge;
+	private boolean stale;
+	private TSUser[][] moveBuffers;
+	private int[] moveCounts;
+	private String skippedTicksMetric;
+	private String staleSkipsMetric;
+	private String heldMovesMetric;
+	private String rejectedMovesMetric;
 }
@@ -0,0 +1,317 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BOTeamSwitcherManager starts and stops the {@link BOTeamSwitcher}s of
+ * this process. All switchers share the handoff stage, the switchers of the
+ * same TS endpoint (see {@link TSEndpoint}) also share its connection and move dispatcher.<br><br>
+ * {@link #startServerAsync(String)} initializes switchers in parallel, so
+ * a slow DNS lookup or an unreachable host only delays its own server.
+ * A server which fails to start is retried in the background. A server which
+ * does not start within the startup timeout is only reported, its attempt keeps
+ * running and is retried if it fails.<br>
+ * The state of a server restored from the snapshot is kept until its switcher has started.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class BOTeamSwitcherManager implements ShardListener
+{
+	/**
+	 * Initializes all local data. Does not start any switcher.
+	 * 
+	 * @param sProperties service properties class
+	 * @param userProperties user properties class
+	 * @param tsEndpoints all TS endpoints by name
+	 * @param handoffStage stage which passes the received Black Ops user lists
+	 * @param hostResolver resolver for the Black Ops hosts
+	 * @param presenceIndex index which decides on which server a player is
+	 * @param startupTimeout time (milliseconds) after which a starting server is reported
+	 * @param retryInterval time (milliseconds) to wait before a failed server is started again
+	 */
+	public BOTeamSwitcherManager(SProperties sProperties, UserProperties userProperties, Map<String, TSEndpoint> tsEndpoints, BOHandoffStage handoffStage, BOHostResolver hostResolver, GuidPresenceIndex presenceIndex, long startupTimeout, long retryInterval)
+	{
+		this.sProperties = sProperties;
+		this.userProperties = userProperties;
+		this.tsEndpoints = tsEndpoints;
+		this.handoffStage = handoffStage;
+		this.hostResolver = hostResolver;
+		this.presenceIndex = presenceIndex;
+		this.startupTimeout = startupTimeout;
+		this.retryInterval = retryInterval;
+		switchers = new HashMap<String, BOTeamSwitcher>();
+		wanted = new HashSet<String>();
+		starting = new HashSet<String>();
+		snapshot = null;
+		
+		ThreadFactory daemonFactory = new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "BOTeamSwitcherManager");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		startupExecutor = Executors.newCachedThreadPool(daemonFactory);
+		retryScheduler = Executors.newSingleThreadScheduledExecutor(daemonFactory);
+	}
+	
+	/**
+	 * Sets the snapshot which contains the state of a previous run.
+	 * Switchers started afterwards restore their state from it.
+	 * @param snapshot loaded snapshot or {@code null}
+	 */
+	public synchronized void setSnapshot(StateSnapshot snapshot)
+	{
+		this.snapshot = snapshot;
+	}
+	
+	/**
+	 * Starts the switcher of <i>server</i> in the background and returns immediately.
+	 * If the start fails, it is retried until the server is stopped.
+	 * 
+	 * @param server Label of the Black Ops server
+	 */
+	public void startServerAsync(final String server)
+	{
+		synchronized(this)
+		{
+			wanted.add(server);
+		}
+		final Future<?> attempt = startupExecutor.submit(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					startServer(server);
+				} catch (BOTeamSwitcherException e)
+				{
+					startFailed(server, e.getMessage());
+				} catch (RuntimeException e)
+				{
+					startFailed(server, e.toString());
+				}
+			}
+		});
+		
+		retryScheduler.schedule(new Runnable()
+		{
+			public void run()
+			{
+				if(!attempt.isDone())
+				{
+					// report only: the attempt keeps running, it registers the switcher
+					// if it succeeds late and schedules a retry if it fails
+					Metrics.increment("startup.timeouts");
+					System.out.println("Starting "+server+" takes longer than "+startupTimeout+"ms.");
+				}
+			}
+		}, startupTimeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Starts the switcher of <i>server</i> if it is not running or starting yet.
+	 * Blocks until the switcher is initialized.
+	 * 
+	 * @param server Label of the Black Ops server
+	 * @throws BOTeamSwitcherException Will be thrown if the switcher can not be started.
+	 */
+	public void startServer(String server) throws BOTeamSwitcherException
+	{
+		StateSnapshot snapshot;
+		SProperties sProperties;
+		TSEndpoint endpoint;
+		synchronized(this)
+		{
+			if(switchers.containsKey(server) || starting.contains(server))
+				return;
+			ServerConfig config = this.sProperties.getServerConfig(server);
+			endpoint = config != null ? tsEndpoints.get(config.getTsServer()) : null;
+			if(endpoint == null)
+				throw new BOTeamSwitcherException("TS server of '"+server+"' is not connected (restart required).");
+			wanted.add(server);
+			starting.add(server);
+			snapshot = this.snapshot;
+			sProperties = this.sProperties;
+		}
+		
+		Metrics.increment("startup."+server+".attempts");
+		BOTeamSwitcher bbots = new BOTeamSwitcher(sProperties, userProperties, endpoint.getConnection(), endpoint.getMoveDispatcher(), handoffStage, hostResolver, presenceIndex, server);
+		try
+		{
+			bbots.init(snapshot != null ? snapshot.getServerState(server) : null);
+		} finally
+		{
+			synchronized(this)
+			{
+				starting.remove(server);
+			}
+		}
+		
+		synchronized(this)
+		{
+			if(wanted.contains(server))
+			{
+				switchers.put(server, bbots);
+				Metrics.set("switchers.running", switchers.size());
+				if(snapshot != null)
+					snapshot.removeServerState(server);
+				return;
+			}
+		}
+		bbots.stopService(); // stopped while starting
+	}
+	
+	/**
+	 * Stops the switcher of <i>server</i> if it is running. Pending retries are dropped.
+	 * @param server Label of the Black Ops server
+	 */
+	public void stopServer(String server)
+	{
+		BOTeamSwitcher bbots;
+		synchronized(this)
+		{
+			wanted.remove(server);
+			bbots = switchers.remove(server);
+			Metrics.set("switchers.running", switchers.size());
+		}
+		if(bbots != null)
+			bbots.stopService();
+	}
+	
+	/**
+	 * Stops all switchers.
+	 */
+	public void stopAll()
+	{
+		retryScheduler.shutdownNow();
+		startupExecutor.shutdownNow();
+		for(String server : getRunningServers())
+			stopServer(server);
+	}
+	
+	/**
+	 * Returns the labels of all running switchers
+	 * @return list of server labels
+	 */
+	public synchronized List<String> getRunningServers()
+	{
+		return new LinkedList<String>(switchers.keySet());
+	}
+
+	/**
+	 * Replaces the service properties. Used by switchers started afterwards.
+	 * @param sProperties new service properties
+	 */
+	public synchronized void setProperties(SProperties sProperties)
+	{
+		this.sProperties = sProperties;
+	}
+	
+	/**
+	 * Returns the switcher of <i>server</i>
+	 * @param server Label of the Black Ops server
+	 * @return the running switcher or {@code null}
+	 */
+	public synchronized BOTeamSwitcher getSwitcher(String server)
+	{
+		return switchers.get(server);
+	}
+
+	/**
+	 * Reports a failed start and schedules a retry
+	 * @param server Label of the Black Ops server
+	 * @param message reason of the failure
+	 */
+	private void startFailed(String server, String message)
+	{
+		Metrics.increment("startup.failures");
+		System.out.println("Error while trying to start "+server+" (retrying in "+retryInterval+"ms): "+message);
+		scheduleRetry(server, retryInterval);
+	}
+	
+	/**
+	 * Starts <i>server</i> again after <i>delay</i> if it is still wanted and not running.
+	 * @param server Label of the Black Ops server
+	 * @param delay delay in milliseconds
+	 */
+	private void scheduleRetry(final String server, long delay)
+	{
+		if(retryScheduler.isShutdown())
+			return;
+		retryScheduler.schedule(new Runnable()
+		{
+			public void run()
+			{
+				boolean retry;
+				synchronized(BOTeamSwitcherManager.this)
+				{
+					retry = wanted.contains(server) && !switchers.containsKey(server) && !starting.contains(server);
+				}
+				if(retry)
+					startServerAsync(server);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void serverAcquired(String server)
+	{
+		startServerAsync(server);
+		System.out.println("Starting switching for "+server+".");
+	}
+
+	@Override
+	public void serverReleased(String server)
+	{
+		stopServer(server);
+		System.out.println("Stopped switching for "+server+".");
+	}
+	
+	private HashMap<String, BOTeamSwitcher> switchers;
+	private HashSet<String> wanted;
+	private HashSet<String> starting;
+	private StateSnapshot snapshot;
+	private ExecutorService startupExecutor;
+	private ScheduledExecutorService retryScheduler;
+	private long startupTimeout;
+	private long retryInterval;
+	private SProperties sProperties;
+	private UserProperties userProperties;
+	private Map<String, TSEndpoint> tsEndpoints;
+	private BOHandoffStage handoffStage;
+	private BOHostResolver hostResolver;
+	private GuidPresenceIndex presenceIndex;
+}
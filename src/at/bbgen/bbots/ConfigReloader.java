@@ -0,0 +1,204 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * ConfigReloader applies a changed configuration file at runtime.<br><br>
+ * A reload is triggered by the <i>reload</i> console command or, if enabled,
+ * by the timer which checks the modification time of the configuration and user files.
+ * The new configuration is compared with the old one server by server:
+ * <ul>
+ * <li>removed servers are stopped, added servers are started</li>
+ * <li>servers with a changed Black Ops connection (host, port, password,
+ * scanning interval) or TS endpoint are restarted</li>
+ * <li>all other changes (channels, passwords, dwell times, minimum players, move priorities)
+ * are applied in place</li>
+ * </ul>
+ * Changes of the Teamspeak settings, including added TS endpoints, still need a restart of bboTS.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class ConfigReloader
+{
+	/**
+	 * Initializes all local data.
+	 * @param configFileName file name of the service configuration
+	 * @param sProperties the currently used service properties
+	 * @param userProperties user properties class
+	 * @param manager the manager of all switchers
+	 * @param tsEndpoints all TS endpoints by name
+	 * @param shardCoordinator the shard coordinator or {@code null} if sharding is disabled
+	 */
+	public ConfigReloader(String configFileName, SProperties sProperties, UserProperties userProperties, BOTeamSwitcherManager manager, Map<String, TSEndpoint> tsEndpoints, ShardCoordinator shardCoordinator)
+	{
+		this.configFile = new File(configFileName);
+		this.sProperties = sProperties;
+		this.userProperties = userProperties;
+		this.manager = manager;
+		this.tsEndpoints = tsEndpoints;
+		this.shardCoordinator = shardCoordinator;
+		configModified = configFile.lastModified();
+		usersModified = userProperties.getFile().lastModified();
+		watchTimer = null;
+	}
+	
+	/**
+	 * Reads the configuration and user files again and applies all changes.
+	 * 
+	 * @throws SPropertiesException Will be thrown if the new configuration is invalid. Nothing is changed in this case.
+	 * @throws UserPropertiesException Will be thrown if the new user file is invalid.
+	 */
+	public synchronized void reload() throws SPropertiesException, UserPropertiesException
+	{
+		configModified = configFile.lastModified();
+		usersModified = userProperties.getFile().lastModified();
+		
+		SProperties newProperties = new SProperties(configFile.getPath());
+		newProperties.parseProperties();
+		userProperties.parseUsers();
+		
+		List<String> oldServers = sProperties.getServerNames();
+		List<String> newServers = newProperties.getServerNames();
+		Set<String> running = new HashSet<String>(manager.getRunningServers());
+		
+		manager.setProperties(newProperties);
+		Log.configure(newProperties.getLogLevel(), newProperties.getLogLevels(), newProperties.getLogRepeatInterval());
+		for(String server : newServers)
+		{
+			ServerConfig config = newProperties.getServerConfig(server);
+			TSEndpoint endpoint = tsEndpoints.get(config.getTsServer());
+			if(endpoint == null)
+				continue;
+			for(int i=0;i<config.getTeamCount();++i)
+			{
+				if(config.getTeamPassword(i) != null && config.getTeamChannel(i) != -1)
+					endpoint.getConnection().setChannelPassword(config.getTeamChannel(i), config.getTeamPassword(i));
+			}
+		}
+		
+		// removed and added servers
+		if(shardCoordinator != null)
+		{
+			shardCoordinator.setServerNames(newServers);
+		}
+		else
+		{
+			for(String server : oldServers)
+			{
+				if(!newServers.contains(server))
+				{
+					manager.stopServer(server);
+					System.out.println("Reload: stopped "+server+".");
+				}
+			}
+			for(String server : newServers)
+			{
+				if(!oldServers.contains(server))
+				{
+					manager.startServerAsync(server);
+					System.out.println("Reload: starting "+server+".");
+				}
+			}
+		}
+		
+		// changed servers
+		for(String server : newServers)
+		{
+			BOTeamSwitcher bbots = manager.getSwitcher(server);
+			if(bbots == null || !running.contains(server))
+				continue;
+			
+			ServerConfig newConfig = newProperties.getServerConfig(server);
+			if(bbots.getConfig().hasSameConnection(newConfig))
+			{
+				bbots.updateConfig(newConfig);
+			}
+			else
+			{
+				manager.stopServer(server);
+				manager.startServerAsync(server);
+				System.out.println("Reload: restarting "+server+".");
+			}
+		}
+		
+		sProperties = newProperties;
+		Metrics.increment("config.reloads");
+		System.out.println("Configuration reloaded.");
+	}
+	
+	/**
+	 * Enables the timer, which checks periodically if the configuration or user file has changed
+	 * @param interval timer period (milliseconds)
+	 */
+	public synchronized void enableTimer(long interval)
+	{
+		if(watchTimer != null)
+			return;
+		watchTimer = new Timer("ConfigReloader", true);
+		watchTimer.scheduleAtFixedRate(new TimerTask()
+		{
+			public void run()
+			{
+				if(configFile.lastModified() == configModified && userProperties.getFile().lastModified() == usersModified)
+					return;
+				try
+				{
+					reload();
+				} catch (SPropertiesException e)
+				{
+					System.out.println("Error while trying to reload configuration: "+e.getMessage());
+				} catch (UserPropertiesException e)
+				{
+					System.out.println("Error while trying to reload users: "+e.getMessage());
+				}
+			}
+		}, interval, interval);
+	}
+	
+	/**
+	 * Stops the timer. See {@link #enableTimer(long)}
+	 */
+	public synchronized void disableTimer()
+	{
+		if(watchTimer == null)
+			return;
+		watchTimer.cancel();
+		watchTimer = null;
+	}
+	
+	private File configFile;
+	private long configModified;
+	private long usersModified;
+	private SProperties sProperties;
+	private UserProperties userProperties;
+	private BOTeamSwitcherManager manager;
+	private Map<String, TSEndpoint> tsEndpoints;
+	private ShardCoordinator shardCoordinator;
+	private Timer watchTimer;
+}
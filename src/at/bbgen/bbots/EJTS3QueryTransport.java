@@ -0,0 +1,186 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Vector;
+
+import at.bbgen.ejts3serverquery.EJTS3ServerQuery;
+import at.bbgen.ejts3serverquery.EJTS3ServerQueryException;
+
+/**
+ * {@link TSQueryTransport} using the blocking EJTS3ServerQuery library.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class EJTS3QueryTransport implements TSQueryTransport
+{
+	/**
+	 * Initializes the EJTS3ServerQuery library. Does not connect.
+	 */
+	public EJTS3QueryTransport()
+	{
+		ts3Query = new EJTS3ServerQuery();
+	}
+
+	@Override
+	public void connect(String host, int port) throws TSQueryException
+	{
+		try
+		{
+			ts3Query.connectTS3Query(host, port);
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void login(String username, String password) throws TSQueryException
+	{
+		try
+		{
+			ts3Query.loginTS3(username, password);
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void selectVirtualServer(int virtualServer) throws TSQueryException
+	{
+		try
+		{
+			ts3Query.selectVirtualServer(virtualServer);
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void setDisplayName(String displayName) throws TSQueryException
+	{
+		try
+		{
+			ts3Query.setDisplayName(displayName);
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() throws TSQueryException
+	{
+		try
+		{
+			ts3Query.closeTS3Connection();
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return ts3Query.isConnected();
+	}
+
+	@Override
+	public void keepAlive() throws TSQueryException
+	{
+		HashMap<String, String> reply;
+		try
+		{
+			reply = ts3Query.doCommand("whoami");
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+		if(reply == null)
+			throw new TSQueryException("empty reply");
+		if(!"0".equals(reply.get("id")))
+			throw new TSQueryException("error id="+reply.get("id")+" msg="+reply.get("msg"));
+	}
+
+	@Override
+	public String getRawClientList() throws TSQueryException
+	{
+		HashMap<String, String> reply;
+		try
+		{
+			reply = ts3Query.doCommand("clientlist -uid");
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+		if(reply == null)
+			throw new TSQueryException("empty reply");
+		if(!"0".equals(reply.get("id")))
+			throw new TSQueryException("error id="+reply.get("id")+" msg="+reply.get("msg"));
+		String response = reply.get("response");
+		return response != null ? response.trim() : "";
+	}
+
+	@Override
+	public List<HashMap<String, String>> getChannelList() throws TSQueryException
+	{
+		Vector<HashMap<String, String>> dataChannelList;
+		try
+		{
+			dataChannelList = ts3Query.getList(EJTS3ServerQuery.LISTMODE_CHANNELLIST, "-flags,-limits");
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+		if(dataChannelList == null)
+			throw new TSQueryException("empty reply");
+		return dataChannelList;
+	}
+
+	@Override
+	public void moveClients(int[] clientIds, int count, int channelId, String password) throws TSQueryException
+	{
+		try
+		{
+			if(count == 1)
+				ts3Query.moveClient(clientIds[0], channelId, password);
+			else
+			{
+				// the library only takes a list
+				List<Integer> clientIdList = new ArrayList<Integer>(count);
+				for(int i=0;i<count;++i)
+					clientIdList.add(clientIds[i]);
+				ts3Query.moveClientList(clientIdList, channelId, password);
+			}
+		} catch (EJTS3ServerQueryException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+	}
+
+	private EJTS3ServerQuery ts3Query;
+}
@@ -0,0 +1,239 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * GuidPresenceIndex knows on which Black Ops server each player is.<br><br>
+ * Every {@link BOConnection} reports its user lists. The index remembers since when
+ * each server has been listing each player. A player listed by more than one server
+ * (e.g. after hopping servers while the old server has not dropped them yet) belongs
+ * to the server which started listing them most recently, i.e. the server they have
+ * hopped to. Ownership is decided by these times, not by the order of the reports,
+ * so it does not change while both servers keep listing the player. If the owner drops
+ * the player, the player goes to the server which still lists them and started listing
+ * them most recently.<br>
+ * presence.conflicts counts how often a server started listing a player owned by another server.<br><br>
+ * The switchers only see the players of their own server (see {@link #getRoster(String)}),
+ * so every player is moved by exactly one switcher.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class GuidPresenceIndex
+{
+	/**
+	 * Initializes an empty index
+	 */
+	public GuidPresenceIndex()
+	{
+		presence = new HashMap<Integer, String>();
+		servers = new HashMap<String, ServerState>();
+	}
+	
+	/**
+	 * Reports the current user list of a server.
+	 * @param server Label of the Black Ops server
+	 * @param users current users by GUID
+	 * @param now time of the sighting (milliseconds), used as first sighting of newly listed players
+	 */
+	public synchronized void update(String server, Map<Integer, BOUser> users, long now)
+	{
+		ServerState state = servers.get(server);
+		if(state == null)
+		{
+			state = new ServerState();
+			servers.put(server, state);
+		}
+		Map<Integer, Long> oldFirstSeen = state.firstSeen;
+		HashMap<Integer, Long> firstSeen = new HashMap<Integer, Long>();
+		for(Integer guid : users.keySet())
+		{
+			Long since = oldFirstSeen.get(guid);
+			firstSeen.put(guid, since != null ? since : Long.valueOf(now));
+		}
+		state.reported = users;
+		state.firstSeen = firstSeen;
+		
+		Set<String> changed = new HashSet<String>();
+		changed.add(server);
+		
+		// the server which started listing the player most recently wins
+		for(Integer guid : users.keySet())
+		{
+			String owner = presence.get(guid);
+			if(server.equals(owner))
+				continue;
+			if(owner == null)
+			{
+				presence.put(guid, server);
+				continue;
+			}
+			if(!oldFirstSeen.containsKey(guid))
+				Metrics.increment("presence.conflicts");
+			ServerState ownerState = servers.get(owner);
+			Long ownerSince = ownerState != null ? ownerState.firstSeen.get(guid) : null;
+			if(ownerSince == null || firstSeen.get(guid).longValue() > ownerSince.longValue())
+			{
+				presence.put(guid, server);
+				changed.add(owner);
+			}
+		}
+		
+		// players which have left this server
+		for(Integer guid : oldFirstSeen.keySet())
+		{
+			if(!users.containsKey(guid) && server.equals(presence.get(guid)))
+				reassign(guid, changed);
+		}
+		
+		rebuild(changed);
+	}
+	
+	/**
+	 * Removes a server, e.g. because its switcher has been stopped.
+	 * @param server Label of the Black Ops server
+	 */
+	public synchronized void removeServer(String server)
+	{
+		ServerState state = servers.remove(server);
+		if(state == null)
+			return;
+		Set<String> changed = new HashSet<String>();
+		for(Integer guid : state.reported.keySet())
+		{
+			if(server.equals(presence.get(guid)))
+				reassign(guid, changed);
+		}
+		rebuild(changed);
+	}
+	
+	/**
+	 * Returns on which server a player is
+	 * @param guid Black Ops GUID of the player
+	 * @return Label of the server or {@code null} if the player is not on any server
+	 */
+	public synchronized String getServer(int guid)
+	{
+		return presence.get(guid);
+	}
+	
+	/**
+	 * Returns the players which belong to <i>server</i>. The map is replaced on every change and never changed afterwards.
+	 * It is keyed by primitive GUIDs, so the switcher can look players up without allocating.
+	 * @param server Label of the Black Ops server
+	 * @return users by GUID (do not modify)
+	 */
+	public synchronized IntObjectMap<BOUser> getRoster(String server)
+	{
+		ServerState state = servers.get(server);
+		if(state == null)
+			return EMPTY_ROSTER;
+		return state.owned;
+	}
+	
+	/**
+	 * Returns the version of the roster of <i>server</i>. It is incremented with every change of the roster.
+	 * To get a roster and its version consistently, synchronize on this index.
+	 * @param server Label of the Black Ops server
+	 * @return version of the roster
+	 */
+	public synchronized long getVersion(String server)
+	{
+		ServerState state = servers.get(server);
+		if(state == null)
+			return 0;
+		return state.version;
+	}
+	
+	/**
+	 * Gives a player to the server which still lists them and started listing them most recently,
+	 * or removes the player if no server lists them.
+	 * @param guid Black Ops GUID of the player
+	 * @param changed gets the labels of all servers whose roster has changed
+	 */
+	private void reassign(Integer guid, Set<String> changed)
+	{
+		String owner = presence.remove(guid);
+		if(owner != null)
+			changed.add(owner);
+		
+		String newOwner = null;
+		long newSince = Long.MIN_VALUE;
+		for(Map.Entry<String, ServerState> entry : servers.entrySet())
+		{
+			Long since = entry.getValue().firstSeen.get(guid);
+			if(!entry.getKey().equals(owner) && since != null && since.longValue() > newSince)
+			{
+				newOwner = entry.getKey();
+				newSince = since.longValue();
+			}
+		}
+		if(newOwner != null)
+		{
+			presence.put(guid, newOwner);
+			changed.add(newOwner);
+		}
+	}
+	
+	/**
+	 * Builds the rosters of the given servers again
+	 * @param changed labels of the servers
+	 */
+	private void rebuild(Set<String> changed)
+	{
+		for(String server : changed)
+		{
+			ServerState state = servers.get(server);
+			if(state == null)
+				continue;
+			IntObjectMap<BOUser> owned = new IntObjectMap<BOUser>();
+			for(Map.Entry<Integer, BOUser> entry : state.reported.entrySet())
+			{
+				if(server.equals(presence.get(entry.getKey())))
+					owned.put(entry.getKey().intValue(), entry.getValue());
+			}
+			state.owned = owned;
+			state.version++;
+		}
+		Metrics.set("presence.players", presence.size());
+	}
+	
+	/**
+	 * The reported user list of one server, since when it lists each player and the players it owns
+	 */
+	private static class ServerState
+	{
+		private Map<Integer, BOUser> reported = Collections.emptyMap();
+		private Map<Integer, Long> firstSeen = Collections.emptyMap();
+		private IntObjectMap<BOUser> owned = EMPTY_ROSTER;
+		private long version;
+	}
+	
+	private static final IntObjectMap<BOUser> EMPTY_ROSTER = new IntObjectMap<BOUser>();
+	
+	private HashMap<Integer, String> presence;
+	private HashMap<String, ServerState> servers;
+}
@@ -0,0 +1,228 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.Arrays;
+
+/**
+ * IntObjectMap is a hash map with primitive int keys.<br><br>
+ * Unlike a {@code HashMap<Integer, V>} it does not box its keys and does not allocate
+ * entries, so lookups, updates of existing keys and removals never allocate. It uses
+ * open addressing with linear probing. {@code null} values are not allowed.<br>
+ * The slots can be walked without an iterator: see {@link #capacity()}, {@link #valueAt(int)},
+ * {@link #keyAt(int)} and {@link #removeAt(int)}.<br>
+ * The map is not synchronized.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ * @param <V> type of the values
+ */
+public class IntObjectMap<V>
+{
+	/**
+	 * Initializes an empty map
+	 */
+	public IntObjectMap()
+	{
+		keys = new int[16];
+		values = new Object[16];
+		size = 0;
+	}
+	
+	/**
+	 * Returns the value of <i>key</i>
+	 * @param key the key
+	 * @return the value or {@code null} if the key is not contained
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		int mask = keys.length - 1;
+		for(int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask)
+		{
+			if(keys[slot] == key)
+				return (V)values[slot];
+		}
+		return null;
+	}
+	
+	/**
+	 * Sets the value of <i>key</i>
+	 * @param key the key
+	 * @param value the new value (not {@code null})
+	 * @return the old value or {@code null} if the key has not been contained
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if(value == null)
+			throw new NullPointerException("null values are not allowed");
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		for(; values[slot] != null; slot = (slot + 1) & mask)
+		{
+			if(keys[slot] == key)
+			{
+				V old = (V)values[slot];
+				values[slot] = value;
+				return old;
+			}
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if(++size > keys.length*3/4)
+			resize(keys.length*2);
+		return null;
+	}
+	
+	/**
+	 * Removes <i>key</i>
+	 * @param key the key
+	 * @return the removed value or {@code null} if the key has not been contained
+	 */
+	public V remove(int key)
+	{
+		int mask = keys.length - 1;
+		for(int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask)
+		{
+			if(keys[slot] == key)
+				return removeAt(slot);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the number of keys
+	 * @return number of keys
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Removes all keys. The capacity is kept.
+	 */
+	public void clear()
+	{
+		Arrays.fill(values, null);
+		size = 0;
+	}
+	
+	/**
+	 * Returns the number of slots. Slots are numbered from 0 to capacity()-1.
+	 * @return number of slots
+	 */
+	public int capacity()
+	{
+		return keys.length;
+	}
+	
+	/**
+	 * Returns the key stored in a slot
+	 * @param slot slot number
+	 * @return the key, only valid if {@link #valueAt(int)} is not {@code null}
+	 */
+	public int keyAt(int slot)
+	{
+		return keys[slot];
+	}
+	
+	/**
+	 * Returns the value stored in a slot
+	 * @param slot slot number
+	 * @return the value or {@code null} if the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot)
+	{
+		return (V)values[slot];
+	}
+	
+	/**
+	 * Removes the key stored in a slot. Following keys may be moved into this slot,
+	 * so a loop over all slots has to look at the same slot again. A key may be
+	 * visited twice by such a loop, but none is skipped.
+	 * @param slot slot number
+	 * @return the removed value or {@code null} if the slot has been empty
+	 */
+	@SuppressWarnings("unchecked")
+	public V removeAt(int slot)
+	{
+		V old = (V)values[slot];
+		if(old == null)
+			return null;
+		size--;
+		
+		// move following keys of the same probe sequence back into the hole
+		int mask = keys.length - 1;
+		int hole = slot;
+		for(int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask)
+		{
+			int home = hash(keys[next]) & mask;
+			if(((next - home) & mask) >= ((next - hole) & mask))
+			{
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+		values[hole] = null;
+		return old;
+	}
+	
+	/**
+	 * Rehashes all keys into a new table
+	 * @param capacity new number of slots (power of two)
+	 */
+	private void resize(int capacity)
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for(int i=0;i<oldKeys.length;++i)
+		{
+			if(oldValues[i] == null)
+				continue;
+			int slot = hash(oldKeys[i]) & mask;
+			while(values[slot] != null)
+				slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+	
+	/**
+	 * Spreads the bits of a key, so consecutive keys do not form clusters
+	 * @param key the key
+	 * @return hash of the key
+	 */
+	private static int hash(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private int[] keys;
+	private Object[] values;
+	private int size;
+}
@@ -0,0 +1,494 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log is an asynchronous logger for the threads which must not block on the console.<br><br>
+ * A log call only claims a slot in a preallocated ring buffer and stores the level,
+ * subsystem, message template and up to two arguments. The message is formatted and
+ * written by a background thread. If the ring buffer is full, the message is dropped
+ * and counted as <i>log.dropped</i>.<br><br>
+ * Each message (template and arguments) is printed at most once per repeat interval.
+ * Repeats within the interval are only counted and reported with the next printed
+ * message of the same template and arguments. So messages of different servers or
+ * endpoints do not suppress each other. The repeat states are kept in a fixed table
+ * indexed by the hash of the template and the arguments. A message whose slot is used
+ * by another message takes the slot over, so many different messages never make a
+ * log call slower or use more memory, they are only suppressed less.<br><br>
+ * The message template may contain up to two <i>{}</i> placeholders, which are
+ * replaced by the arguments. Every subsystem (e.g. <i>bo</i>, <i>ts</i>, <i>switcher</i>)
+ * can have its own level, see {@link #configure(int, Map, long)}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class Log
+{
+	/** Level for errors */
+	public static final int ERROR = 0;
+	/** Level for warnings */
+	public static final int WARN = 1;
+	/** Level for informational messages */
+	public static final int INFO = 2;
+	/** Level for debug messages */
+	public static final int DEBUG = 3;
+	
+	/**
+	 * Not used. Log only provides static methods.
+	 */
+	private Log()
+	{
+		super();
+	}
+	
+	/**
+	 * Sets the levels and the repeat interval.
+	 * @param defaultLevel level of all subsystems without an own level
+	 * @param levels levels of single subsystems
+	 * @param repeatInterval minimum time between two messages with the same template and arguments (milliseconds)
+	 */
+	public static void configure(int defaultLevel, Map<String, Integer> levels, long repeatInterval)
+	{
+		subsystemLevels.clear();
+		subsystemLevels.putAll(levels);
+		Log.defaultLevel = defaultLevel;
+		Log.repeatInterval = repeatInterval;
+	}
+	
+	/**
+	 * Converts a level name (error, warn, info, debug) to a level.
+	 * @param name name of the level, not case sensitive
+	 * @return level or -1 if the name is unknown
+	 */
+	public static int parseLevel(String name)
+	{
+		for(int i=0;i<LEVEL_NAMES.length;++i)
+		{
+			if(LEVEL_NAMES[i].equalsIgnoreCase(name.trim()))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Checks if messages of <i>level</i> are written for <i>subsystem</i>
+	 * @param subsystem name of the subsystem
+	 * @param level level of the message
+	 * @return true if the message would be written
+	 */
+	public static boolean isEnabled(String subsystem, int level)
+	{
+		Integer subsystemLevel = subsystemLevels.get(subsystem);
+		if(subsystemLevel != null)
+			return level <= subsystemLevel.intValue();
+		else
+			return level <= defaultLevel;
+	}
+	
+	/**
+	 * Logs an error.
+	 * @param subsystem name of the subsystem
+	 * @param message message template
+	 */
+	public static void error(String subsystem, String message)
+	{
+		log(ERROR, subsystem, message, null, null);
+	}
+	
+	/**
+	 * Logs an error.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with one placeholder
+	 * @param arg argument for the placeholder
+	 */
+	public static void error(String subsystem, String message, Object arg)
+	{
+		log(ERROR, subsystem, message, arg, null);
+	}
+	
+	/**
+	 * Logs an error.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with two placeholders
+	 * @param arg1 argument for the first placeholder
+	 * @param arg2 argument for the second placeholder
+	 */
+	public static void error(String subsystem, String message, Object arg1, Object arg2)
+	{
+		log(ERROR, subsystem, message, arg1, arg2);
+	}
+	
+	/**
+	 * Logs a warning.
+	 * @param subsystem name of the subsystem
+	 * @param message message template
+	 */
+	public static void warn(String subsystem, String message)
+	{
+		log(WARN, subsystem, message, null, null);
+	}
+	
+	/**
+	 * Logs a warning.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with one placeholder
+	 * @param arg argument for the placeholder
+	 */
+	public static void warn(String subsystem, String message, Object arg)
+	{
+		log(WARN, subsystem, message, arg, null);
+	}
+	
+	/**
+	 * Logs a warning.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with two placeholders
+	 * @param arg1 argument for the first placeholder
+	 * @param arg2 argument for the second placeholder
+	 */
+	public static void warn(String subsystem, String message, Object arg1, Object arg2)
+	{
+		log(WARN, subsystem, message, arg1, arg2);
+	}
+	
+	/**
+	 * Logs an informational message.
+	 * @param subsystem name of the subsystem
+	 * @param message message template
+	 */
+	public static void info(String subsystem, String message)
+	{
+		log(INFO, subsystem, message, null, null);
+	}
+	
+	/**
+	 * Logs an informational message.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with one placeholder
+	 * @param arg argument for the placeholder
+	 */
+	public static void info(String subsystem, String message, Object arg)
+	{
+		log(INFO, subsystem, message, arg, null);
+	}
+	
+	/**
+	 * Logs an informational message.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with two placeholders
+	 * @param arg1 argument for the first placeholder
+	 * @param arg2 argument for the second placeholder
+	 */
+	public static void info(String subsystem, String message, Object arg1, Object arg2)
+	{
+		log(INFO, subsystem, message, arg1, arg2);
+	}
+	
+	/**
+	 * Logs a debug message.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with one placeholder
+	 * @param arg argument for the placeholder
+	 */
+	public static void debug(String subsystem, String message, Object arg)
+	{
+		log(DEBUG, subsystem, message, arg, null);
+	}
+	
+	/**
+	 * Logs a debug message.
+	 * @param subsystem name of the subsystem
+	 * @param message message template with two placeholders
+	 * @param arg1 argument for the first placeholder
+	 * @param arg2 argument for the second placeholder
+	 */
+	public static void debug(String subsystem, String message, Object arg1, Object arg2)
+	{
+		log(DEBUG, subsystem, message, arg1, arg2);
+	}
+	
+	/**
+	 * Writes all pending messages and stops the writer thread.
+	 */
+	public static void shutdown()
+	{
+		running = false;
+		LockSupport.unpark(writer);
+		try
+		{
+			writer.join(1000);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Puts a message into the ring buffer unless it is disabled, suppressed as repeat or the buffer is full.
+	 * @param level level of the message
+	 * @param subsystem name of the subsystem
+	 * @param message message template
+	 * @param arg1 argument for the first placeholder or {@code null}
+	 * @param arg2 argument for the second placeholder or {@code null}
+	 */
+	private static void log(int level, String subsystem, String message, Object arg1, Object arg2)
+	{
+		if(!isEnabled(subsystem, level))
+			return;
+		
+		long now = System.currentTimeMillis();
+		Repeat repeat = repeats[repeatSlot(message, arg1, arg2)];
+		boolean repeated;
+		long sequence = -1;
+		long suppressed = 0;
+		synchronized(repeat)
+		{
+			if(!repeat.matches(message, arg1, arg2))
+			{
+				// the slot is used by another message -> take it over
+				repeat.message = message;
+				repeat.arg1 = arg1;
+				repeat.arg2 = arg2;
+				repeat.lastWritten = Long.MIN_VALUE/2;
+				repeat.suppressed = 0;
+			}
+			
+			// repeat suppression
+			repeated = now - repeat.lastWritten < repeatInterval;
+			if(repeated)
+				repeat.suppressed++;
+			else
+			{
+				sequence = claimSequence();
+				// only if a slot has been claimed, so a dropped message does not suppress its repeats
+				if(sequence != -1)
+				{
+					repeat.lastWritten = now;
+					suppressed = repeat.suppressed;
+					repeat.suppressed = 0;
+				}
+			}
+		}
+		if(repeated)
+		{
+			Metrics.increment("log.suppressed");
+			return;
+		}
+		if(sequence == -1)
+		{
+			Metrics.increment("log.dropped");
+			return;
+		}
+		
+		Entry entry = entries[(int)(sequence & (BUFFER_SIZE-1))];
+		entry.level = level;
+		entry.subsystem = subsystem;
+		entry.message = message;
+		entry.arg1 = arg1;
+		entry.arg2 = arg2;
+		entry.suppressed = suppressed;
+		entry.published = sequence;
+		
+		if(writerParked)
+			LockSupport.unpark(writer);
+	}
+	
+	/**
+	 * Claims a slot of the ring buffer
+	 * @return sequence number of the slot or -1 if the buffer is full
+	 */
+	private static long claimSequence()
+	{
+		long sequence;
+		do
+		{
+			sequence = claimSequence.get();
+			if(sequence - readSequence >= BUFFER_SIZE)
+				return -1;
+		} while(!claimSequence.compareAndSet(sequence, sequence+1));
+		return sequence;
+	}
+	
+	/**
+	 * Returns the slot of the repeat table for a message
+	 * @param message message template
+	 * @param arg1 argument for the first placeholder or {@code null}
+	 * @param arg2 argument for the second placeholder or {@code null}
+	 * @return index into the repeat table
+	 */
+	private static int repeatSlot(String message, Object arg1, Object arg2)
+	{
+		int hash = message.hashCode();
+		hash = 31*hash + (arg1 != null ? arg1.hashCode() : 0);
+		hash = 31*hash + (arg2 != null ? arg2.hashCode() : 0);
+		hash ^= hash >>> 16;
+		return hash & (REPEAT_SLOTS-1);
+	}
+	
+	/**
+	 * Formats and writes all published entries until {@link #shutdown()} is called.
+	 */
+	private static void write()
+	{
+		StringBuilder sb = new StringBuilder(256);
+		while(true)
+		{
+			Entry entry = entries[(int)(readSequence & (BUFFER_SIZE-1))];
+			if(entry.published != readSequence)
+			{
+				if(!running)
+				{
+					out.flush();
+					return;
+				}
+				writerParked = true;
+				if(entry.published != readSequence)
+					LockSupport.parkNanos(WRITER_PARK_TIME);
+				writerParked = false;
+				continue;
+			}
+			
+			sb.setLength(0);
+			sb.append(LEVEL_NAMES[entry.level].toUpperCase()).append(" [").append(entry.subsystem).append("] ");
+			format(sb, entry.message, entry.arg1, entry.arg2);
+			if(entry.suppressed > 0)
+				sb.append(" (").append(entry.suppressed).append(" similar messages suppressed)");
+			out.println(sb);
+			
+			entry.message = null;
+			entry.arg1 = null;
+			entry.arg2 = null;
+			readSequence++;
+		}
+	}
+	
+	/**
+	 * Replaces the placeholders of <i>message</i> by the arguments.
+	 * @param sb buffer for the result
+	 * @param message message template
+	 * @param arg1 argument for the first placeholder
+	 * @param arg2 argument for the second placeholder
+	 */
+	private static void format(StringBuilder sb, String message, Object arg1, Object arg2)
+	{
+		int start = 0;
+		int argument = 0;
+		int index;
+		while((index = message.indexOf("{}", start)) != -1 && argument < 2)
+		{
+			sb.append(message, start, index);
+			sb.append(argument == 0 ? arg1 : arg2);
+			start = index+2;
+			argument++;
+		}
+		sb.append(message, start, message.length());
+	}
+	
+	/**
+	 * A slot of the ring buffer
+	 */
+	private static class Entry
+	{
+		private volatile long published = -1;
+		private int level;
+		private String subsystem;
+		private String message;
+		private Object arg1;
+		private Object arg2;
+		private long suppressed;
+	}
+	
+	/**
+	 * Repeat state of the message template and arguments which last used a slot of the repeat table.
+	 * Guarded by its own monitor.
+	 */
+	private static class Repeat
+	{
+		/**
+		 * Checks if this state belongs to a message
+		 * @param message message template
+		 * @param arg1 argument for the first placeholder or {@code null}
+		 * @param arg2 argument for the second placeholder or {@code null}
+		 * @return true if template and arguments are equal
+		 */
+		private boolean matches(String message, Object arg1, Object arg2)
+		{
+			return message.equals(this.message) && equal(arg1, this.arg1) && equal(arg2, this.arg2);
+		}
+		
+		/**
+		 * Compares two arguments
+		 * @param a first argument or {@code null}
+		 * @param b second argument or {@code null}
+		 * @return true if both are {@code null} or equal
+		 */
+		private static boolean equal(Object a, Object b)
+		{
+			return a == null ? b == null : a.equals(b);
+		}
+		
+		private String message;
+		private Object arg1;
+		private Object arg2;
+		private long lastWritten = Long.MIN_VALUE/2;
+		private long suppressed;
+	}
+	
+	private static final int BUFFER_SIZE = 4096; // has to be a power of two
+	private static final long WRITER_PARK_TIME = 50000000L; // 50ms
+	private static final int REPEAT_SLOTS = 1024; // has to be a power of two
+	private static final String[] LEVEL_NAMES = { "error", "warn", "info", "debug" };
+	
+	private static final Entry[] entries = new Entry[BUFFER_SIZE];
+	private static final AtomicLong claimSequence = new AtomicLong();
+	private static volatile long readSequence = 0;
+	private static final Repeat[] repeats = new Repeat[REPEAT_SLOTS];
+	private static final ConcurrentMap<String, Integer> subsystemLevels = new ConcurrentHashMap<String, Integer>();
+	private static volatile int defaultLevel = INFO;
+	private static volatile long repeatInterval = 10000;
+	private static final PrintStream out = System.out;
+	private static volatile boolean running = true;
+	private static volatile boolean writerParked = false;
+	private static final Thread writer;
+	
+	static
+	{
+		for(int i=0;i<BUFFER_SIZE;++i)
+			entries[i] = new Entry();
+		for(int i=0;i<REPEAT_SLOTS;++i)
+			repeats[i] = new Repeat();
+		writer = new Thread("Log")
+		{
+			public void run()
+			{
+				write();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+}
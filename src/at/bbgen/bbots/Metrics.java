@@ -0,0 +1,122 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics is a very small registry for named counters and gauges.<br><br>
+ * Every part of bboTS can increment or set values by name. The current
+ * values can be printed by typing <i>metrics</i> on the console.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class Metrics
+{
+	/**
+	 * Not used. Metrics only provides static methods.
+	 */
+	private Metrics()
+	{
+		super();
+	}
+	
+	/**
+	 * Increments the counter <i>name</i> by one.
+	 * @param name name of the counter
+	 */
+	public static void increment(String name)
+	{
+		getValue(name).incrementAndGet();
+	}
+	
+	/**
+	 * Adds <i>delta</i> to the counter <i>name</i>.
+	 * @param name name of the counter
+	 * @param delta value to be added
+	 */
+	public static void add(String name, long delta)
+	{
+		getValue(name).addAndGet(delta);
+	}
+	
+	/**
+	 * Sets the gauge <i>name</i> to <i>value</i>.
+	 * @param name name of the gauge
+	 * @param value new value
+	 */
+	public static void set(String name, long value)
+	{
+		getValue(name).set(value);
+	}
+	
+	/**
+	 * Returns the current value of the counter or gauge <i>name</i>.
+	 * @param name name of the counter or gauge
+	 * @return current value or 0 if it has never been set
+	 */
+	public static long get(String name)
+	{
+		AtomicLong value = values.get(name);
+		if(value != null)
+			return value.get();
+		else
+			return 0;
+	}
+	
+	/**
+	 * Returns all counters and gauges, one per line and sorted by name.
+	 * @return String representation of all metrics
+	 */
+	public static String dump()
+	{
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(values).entrySet())
+		{
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue().get()).append('\n');
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Returns the value holder for <i>name</i> and creates it if needed.
+	 * @param name name of the counter or gauge
+	 * @return value holder
+	 */
+	private static AtomicLong getValue(String name)
+	{
+		AtomicLong value = values.get(name);
+		if(value == null)
+		{
+			AtomicLong newValue = new AtomicLong();
+			value = values.putIfAbsent(name, newValue);
+			if(value == null)
+				value = newValue;
+		}
+		return value;
+	}
+	
+	private static final ConcurrentMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+}
@@ -0,0 +1,586 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking {@link TSQueryTransport} built on a {@link SocketChannel}.<br><br>
+ * Commands are queued with {@link #sendCommand(String)}, which returns a
+ * {@link TSQueryFuture} immediately. Any number of commands may be sent
+ * before the first reply arrives (pipelining). The TS3 server answers in
+ * order, so the replies are assigned to the waiting futures in the same order.<br>
+ * One I/O thread per connection writes the commands and parses the replies
+ * line by line while they arrive.<br>
+ * The methods of {@link TSQueryTransport} wait up to <i>commandTimeout</i>
+ * milliseconds for their reply.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class NIOQueryTransport implements TSQueryTransport, Runnable
+{
+	/**
+	 * Initializes all local data. Does not connect.
+	 * @param commandTimeout time (milliseconds) to wait for the reply of a synchronous command
+	 */
+	public NIOQueryTransport(long commandTimeout)
+	{
+		this.commandTimeout = commandTimeout;
+		awaiting = new LinkedList<TSQueryFuture>();
+		writeQueue = new LinkedList<ByteBuffer>();
+		lineBuffer = new byte[1024];
+		lineLength = 0;
+		channel = null;
+		selector = null;
+		ioThread = null;
+		open = false;
+	}
+	
+	/**
+	 * Queues a ServerQuery command.
+	 * 
+	 * @param command the command including all (escaped) parameters
+	 * @return future for the reply of the server
+	 */
+	public TSQueryFuture sendCommand(String command)
+	{
+		return sendCommand(command, false);
+	}
+	
+	/**
+	 * Queues a ServerQuery command.
+	 * 
+	 * @param command the command including all (escaped) parameters
+	 * @param raw true if the data lines of the reply are kept unparsed (see {@link TSQueryReply#getLines()})
+	 * @return future for the reply of the server
+	 */
+	private TSQueryFuture sendCommand(String command, boolean raw)
+	{
+		TSQueryFuture future = new TSQueryFuture(command, raw);
+		byte[] data;
+		try
+		{
+			data = (command+"\n").getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e)
+		{
+			future.fail(new TSQueryException("unsupported encoding: "+e.getMessage()));
+			return future;
+		}
+		Selector selector;
+		synchronized(lock)
+		{
+			if(!open)
+			{
+				future.fail(new TSQueryException("not connected"));
+				return future;
+			}
+			awaiting.add(future);
+			writeQueue.add(ByteBuffer.wrap(data));
+			selector = this.selector;
+		}
+		// a concurrent close() may have closed this selector already, waking it up is harmless then
+		selector.wakeup();
+		return future;
+	}
+
+	@Override
+	public void connect(String host, int port) throws TSQueryException
+	{
+		close();
+		joinIOThread();
+		TSQueryFuture banner = new TSQueryFuture("connect", false);
+		try
+		{
+			synchronized(lock)
+			{
+				selector = Selector.open();
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(new InetSocketAddress(host, port));
+				channel.register(selector, SelectionKey.OP_CONNECT);
+				bannerFuture = banner;
+				bannerLinesLeft = 2;
+				// the old I/O thread has stopped, so nobody else uses the line buffer
+				lineLength = 0;
+				open = true;
+				ioThread = new Thread(this, "NIOQueryTransport "+host+":"+port);
+				ioThread.setDaemon(true);
+				ioThread.start();
+			}
+		} catch (IOException e)
+		{
+			close();
+			throw new TSQueryException("Error while trying to connect: "+e.getMessage());
+		}
+		
+		await(banner);
+	}
+
+	@Override
+	public void login(String username, String password) throws TSQueryException
+	{
+		execute("login client_login_name="+escape(username)+" client_login_password="+escape(password));
+	}
+
+	@Override
+	public void selectVirtualServer(int virtualServer) throws TSQueryException
+	{
+		execute("use sid="+virtualServer);
+	}
+
+	@Override
+	public void setDisplayName(String displayName) throws TSQueryException
+	{
+		execute("clientupdate client_nickname="+escape(displayName));
+	}
+
+	@Override
+	public void close() throws TSQueryException
+	{
+		List<TSQueryFuture> failed;
+		synchronized(lock)
+		{
+			if(!open && channel == null)
+				return;
+			open = false;
+			try
+			{
+				if(channel != null)
+					channel.close();
+				if(selector != null)
+					selector.close();
+			} catch (IOException e) { }
+			channel = null;
+			
+			failed = new LinkedList<TSQueryFuture>(awaiting);
+			if(bannerFuture != null)
+				failed.add(bannerFuture);
+			awaiting.clear();
+			writeQueue.clear();
+			bannerFuture = null;
+		}
+		for(TSQueryFuture future : failed)
+			future.fail(new TSQueryException("connection closed"));
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		synchronized(lock)
+		{
+			return open && channel != null && channel.isConnected();
+		}
+	}
+
+	@Override
+	public void keepAlive() throws TSQueryException
+	{
+		execute("whoami");
+	}
+
+	@Override
+	public String getRawClientList() throws TSQueryException
+	{
+		TSQueryReply reply = await(sendCommand("clientlist -uid", true));
+		if(!reply.isOk())
+			throw new TSQueryException("error id="+reply.getErrorId()+" msg="+reply.getErrorMessage());
+		
+		List<String> lines = reply.getLines();
+		if(lines.size() == 1)
+			return lines.get(0);
+		StringBuilder sb = new StringBuilder();
+		for(String line : lines)
+		{
+			if(sb.length() > 0)
+				sb.append('|');
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public List<HashMap<String, String>> getChannelList() throws TSQueryException
+	{
+		return execute("channellist -flags -limits").getRecords();
+	}
+
+	@Override
+	public void moveClients(int[] clientIds, int count, int channelId, String password) throws TSQueryException
+	{
+		StringBuilder command = new StringBuilder("clientmove ");
+		for(int i=0;i<count;++i)
+		{
+			if(i > 0)
+				command.append('|');
+			command.append("clid=").append(clientIds[i]);
+		}
+		command.append(" cid=").append(channelId);
+		if(password != null)
+			command.append(" cpw=").append(escape(password));
+		execute(command.toString());
+	}
+	
+	/**
+	 * The I/O thread: connects, writes queued commands and parses replies.
+	 */
+	@Override
+	public void run()
+	{
+		Selector selector;
+		SocketChannel channel;
+		synchronized(lock)
+		{
+			selector = this.selector;
+			channel = this.channel;
+		}
+		ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+		
+		try
+		{
+			while(true)
+			{
+				synchronized(lock)
+				{
+					if(!open || channel != this.channel)
+						return;
+					SelectionKey key = channel.keyFor(selector);
+					if(key != null && key.isValid() && channel.isConnected())
+						key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+				
+				selector.select();
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid())
+						continue;
+					
+					if(key.isConnectable())
+					{
+						channel.finishConnect();
+						key.interestOps(SelectionKey.OP_READ);
+					}
+					if(key.isValid() && key.isWritable())
+					{
+						synchronized(lock)
+						{
+							while(!writeQueue.isEmpty())
+							{
+								ByteBuffer buffer = writeQueue.getFirst();
+								channel.write(buffer);
+								if(buffer.hasRemaining())
+									break;
+								writeQueue.removeFirst();
+							}
+						}
+					}
+					if(key.isValid() && key.isReadable())
+					{
+						readBuffer.clear();
+						int read = channel.read(readBuffer);
+						if(read < 0)
+							throw new IOException("connection closed by server");
+						readBuffer.flip();
+						while(readBuffer.hasRemaining())
+							consume(readBuffer.get());
+					}
+				}
+			}
+		} catch (Exception e)
+		{
+			boolean current;
+			synchronized(lock)
+			{
+				current = open && channel == this.channel;
+			}
+			if(current)
+			{
+				try
+				{
+					close();
+				} catch (TSQueryException e1) { }
+			}
+		}
+	}
+	
+	/**
+	 * Waits until the I/O thread of the previous connection has stopped.
+	 * It stops as soon as its selector has been closed by {@link #close()}.
+	 * @throws TSQueryException Will be thrown if the thread does not stop within the command timeout.
+	 */
+	private void joinIOThread() throws TSQueryException
+	{
+		Thread oldThread;
+		synchronized(lock)
+		{
+			oldThread = ioThread;
+			ioThread = null;
+		}
+		if(oldThread == null || oldThread == Thread.currentThread())
+			return;
+		try
+		{
+			oldThread.join(commandTimeout);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new TSQueryException("Interrupted while waiting for the old I/O thread");
+		}
+		if(oldThread.isAlive())
+		{
+			synchronized(lock)
+			{
+				ioThread = oldThread;
+			}
+			throw new TSQueryException("The I/O thread of the old connection has not stopped");
+		}
+	}
+	
+	/**
+	 * Assembles lines from the received bytes
+	 * @param b received byte
+	 * @throws UnsupportedEncodingException never
+	 */
+	private void consume(byte b) throws UnsupportedEncodingException
+	{
+		if(b == '\n')
+		{
+			String line = new String(lineBuffer, 0, lineLength, "UTF-8");
+			lineLength = 0;
+			processLine(line);
+		}
+		else if(b != '\r')
+		{
+			if(lineLength == lineBuffer.length)
+			{
+				byte[] newBuffer = new byte[lineBuffer.length*2];
+				System.arraycopy(lineBuffer, 0, newBuffer, 0, lineLength);
+				lineBuffer = newBuffer;
+			}
+			lineBuffer[lineLength++] = b;
+		}
+	}
+	
+	/**
+	 * Handles one line sent by the server
+	 * @param line the line without line separators
+	 */
+	private void processLine(String line)
+	{
+		if(line.length() == 0)
+			return;
+		
+		TSQueryFuture completed = null;
+		synchronized(lock)
+		{
+			if(bannerLinesLeft > 0)
+			{
+				if(--bannerLinesLeft == 0 && bannerFuture != null)
+				{
+					completed = bannerFuture;
+					completed.getReply().setError(0, "ok");
+					bannerFuture = null;
+				}
+			}
+			else if(line.startsWith("notify"))
+			{
+				return; // events are not used
+			}
+			else if(!awaiting.isEmpty())
+			{
+				TSQueryFuture head = awaiting.getFirst();
+				if(line.startsWith("error "))
+				{
+					HashMap<String, String> error = parseRecord(line.substring(6));
+					int errorId = -1;
+					try
+					{
+						errorId = Integer.parseInt(error.get("id"));
+					} catch (NumberFormatException e) { }
+					head.getReply().setError(errorId, error.get("msg"));
+					awaiting.removeFirst();
+					completed = head;
+				}
+				else if(head.getReply().isRaw())
+				{
+					head.getReply().getLines().add(line);
+				}
+				else
+				{
+					for(String record : line.split("\\|"))
+						head.getReply().getRecords().add(parseRecord(record));
+				}
+			}
+		}
+		if(completed != null)
+			completed.complete();
+	}
+	
+	/**
+	 * Sends a command and waits for its reply
+	 * @param command ServerQuery command
+	 * @return the reply of the server
+	 * @throws TSQueryException Will be thrown if there is no reply or the server returned an error.
+	 */
+	private TSQueryReply execute(String command) throws TSQueryException
+	{
+		TSQueryReply reply = await(sendCommand(command));
+		if(!reply.isOk())
+			throw new TSQueryException("error id="+reply.getErrorId()+" msg="+reply.getErrorMessage());
+		return reply;
+	}
+	
+	/**
+	 * Waits for a reply
+	 * @param future future of the command
+	 * @return the reply of the server
+	 * @throws TSQueryException Will be thrown if there is no reply within the command timeout.
+	 */
+	private TSQueryReply await(TSQueryFuture future) throws TSQueryException
+	{
+		try
+		{
+			return future.get(commandTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new TSQueryException("Interrupted while waiting for '"+future.getCommand()+"'");
+		} catch (ExecutionException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		} catch (TimeoutException e)
+		{
+			throw new TSQueryException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Parses one record (<i>key=value key=value ...</i>)
+	 * @param record the record
+	 * @return map of all properties
+	 */
+	private static HashMap<String, String> parseRecord(String record)
+	{
+		HashMap<String, String> properties = new HashMap<String, String>();
+		for(String property : record.split(" "))
+		{
+			if(property.length() == 0)
+				continue;
+			int pos = property.indexOf('=');
+			if(pos < 0)
+				properties.put(property, "");
+			else
+				properties.put(property.substring(0, pos), unescape(property.substring(pos+1)));
+		}
+		return properties;
+	}
+	
+	/**
+	 * Escapes a value as defined by the ServerQuery protocol
+	 * @param value the raw value
+	 * @return escaped value
+	 */
+	static String escape(String value)
+	{
+		StringBuilder sb = new StringBuilder(value.length());
+		for(int i=0;i<value.length();++i)
+		{
+			char c = value.charAt(i);
+			switch(c)
+			{
+				case '\\': sb.append("\\\\"); break;
+				case '/': sb.append("\\/"); break;
+				case ' ': sb.append("\\s"); break;
+				case '|': sb.append("\\p"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Reverts {@link #escape(String)}
+	 * @param value the escaped value
+	 * @return raw value
+	 */
+	static String unescape(String value)
+	{
+		if(value.indexOf('\\') < 0)
+			return value;
+		StringBuilder sb = new StringBuilder(value.length());
+		for(int i=0;i<value.length();++i)
+		{
+			char c = value.charAt(i);
+			if(c != '\\' || i+1 == value.length())
+			{
+				sb.append(c);
+				continue;
+			}
+			c = value.charAt(++i);
+			switch(c)
+			{
+				case 's': sb.append(' '); break;
+				case 'p': sb.append('|'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'a': sb.append((char)7); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'v': sb.append((char)11); break;
+				default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
+	private final Object lock = new Object();
+	private LinkedList<TSQueryFuture> awaiting;
+	private LinkedList<ByteBuffer> writeQueue;
+	private TSQueryFuture bannerFuture;
+	private int bannerLinesLeft;
+	private byte[] lineBuffer;
+	private int lineLength;
+	private SocketChannel channel;
+	private Selector selector;
+	private Thread ioThread;
+	private boolean open;
+	private long commandTimeout;
+}
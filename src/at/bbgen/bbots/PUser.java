@@ -38,7 +38,7 @@ public class PUser implements Serializable, Cloneable
 	 * @param tsUID Teamspeak UID
 	 * @param boGUID Black Ops GUID
 	 */
-	public PUser(String tsUID, int boGUID)
+	public PUser(TSUid tsUID, int boGUID)
 	{
 		this.tsUID = tsUID;
 		this.boGUID = boGUID;
@@ -57,7 +57,7 @@ public class PUser implements Serializable, Cloneable
 	 * Returns the Teamspeak UID
 	 * @return teamspeak UID
 	 */
-	public String getTsUID()
+	public TSUid getTsUID()
 	{
 		return tsUID;
 	}
@@ -66,7 +66,7 @@ public class PUser implements Serializable, Cloneable
 	 * Sets the Teamspeak UID
 	 * @param tsUID teamspeak UID
 	 */
-	public void setTsUID(String tsUID)
+	public void setTsUID(TSUid tsUID)
 	{
 		this.tsUID = tsUID;
 	}
@@ -89,6 +89,6 @@ public class PUser implements Serializable, Cloneable
 		this.boGUID = boGUID;
 	}
 
-	private String tsUID;
+	private TSUid tsUID;
 	private int boGUID;
 }
\ No newline at end of file
@@ -23,8 +23,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -48,8 +50,9 @@ import java.util.Properties;
  * BOServerNames = Ranked Unranked
  * 
  * ## Teamspeak Configuration ##
- * # One service instance can only be connected to exactly one ts3 server.
- * # The following arguments give details on how to connect.
+ * # The following arguments give details on how to connect to the ts3 server.
+ * # This is the endpoint "default", further ts3 (virtual) servers can be
+ * # added with TSServers (see below).
  * TSServerHost = 127.0.0.1
  * # The following describes the Serverquery Port
  * # This property is NOT the Port which you will enter in your TS3 client.
@@ -64,9 +67,108 @@ import java.util.Properties;
  * TSUsername = serveradmin
  * TSPassword = MySecretP4ssword
  * 
+ * # Additional ts3 servers or virtual servers, served by the same process.
+ * # Every endpoint gets its own ServerQuery connection. Username and password
+ * # default to TSUsername and TSPassword. A Black Ops server selects its
+ * # endpoint with [server].TSServer (default: default).
+ * TSServers = Clan
+ * Clan.TSServerHost = 127.0.0.1
+ * Clan.TSServerPort = 10011
+ * Clan.TSVServerID = 2
+ * 
  * # The service will scan every X milliseconds if something has changed
  * TSScanningInterval = 15000
  * 
+ * # The TS3 server bans query clients which send too many commands.
+ * # These values have to match (or be lower than) the server's flood settings
+ * # serverinstance_serverquery_flood_commands and _flood_time.
+ * # TSFloodBurst commands may be sent at once, it has to be lower than TSFloodCommands.
+ * # Defaults: 10, 3000, 2
+ * TSFloodCommands = 10
+ * TSFloodTime = 3000
+ * TSFloodBurst = 2
+ * # Maximum number of clients moved with one command (default: 50)
+ * TSMoveBatchSize = 50
+ * 
+ * # The channel list is cached and refreshed every X milliseconds (default: 300000)
+ * # or after a move has failed.
+ * TSChannelRefreshInterval = 300000
+ * 
+ * # A switcher skips its pass while nothing has changed, but runs a full pass
+ * # at least every TSReconcileInterval milliseconds (default: 30000, 0 = every pass)
+ * TSReconcileInterval = 30000
+ * 
+ * # A keepalive is sent after TSKeepaliveInterval idle milliseconds (default: 60000, 0 = never).
+ * # A lost connection is reconnected in the background, with pauses of up to
+ * # TSReconnectMaxBackoff milliseconds between the attempts (default: 60000)
+ * TSKeepaliveInterval = 60000
+ * TSReconnectMaxBackoff = 60000
+ * 
+ * # ServerQuery implementation: ejts3 (blocking EJTS3ServerQuery library, default)
+ * # or nio (non-blocking, pipelined). TSCommandTimeout (milliseconds) is only
+ * # used by nio.
+ * TSTransport = ejts3
+ * TSCommandTimeout = 10000
+ * 
+ * # All Black Ops servers are started in parallel. A server which can not be
+ * # started (e.g. unresolvable host) is retried every BOStartupRetryInterval
+ * # milliseconds (default: 30000). Starts taking longer than BOStartupTimeout
+ * # milliseconds (default: 10000) are reported, they are retried once they fail.
+ * BOStartupTimeout = 10000
+ * BOStartupRetryInterval = 30000
+ * 
+ * # The addresses of all BOServerHosts are cached for BOHostTTL milliseconds
+ * # (default: 300000) and resolved again in the background before they expire.
+ * BOHostTTL = 300000
+ * 
+ * # A switcher pauses while the last answer of its Black Ops server is older than
+ * # BOMaxRosterAge milliseconds (default: 30000, 0 = never pause)
+ * BOMaxRosterAge = 30000
+ * 
+ * # After BOFailureThreshold unanswered teamStatus requests in a row (default: 3)
+ * # a Black Ops server is only probed, with exponentially growing pauses of up to
+ * # BOMaxBackoff milliseconds (default: 300000)
+ * BOFailureThreshold = 3
+ * BOMaxBackoff = 300000
+ * 
+ * # Check every ConfigWatchInterval milliseconds if the configuration or user file
+ * # has changed and reload it (default: 0 = only on the "reload" console command)
+ * ConfigWatchInterval = 0
+ * 
+ * # Log level (error, warn, info, debug) of all subsystems (default: info),
+ * # LogLevel.[subsystem] overrides it for a single subsystem (bo, ts, switcher, dns).
+ * # A message is printed at most once per LogRepeatInterval milliseconds (default: 10000),
+ * # repeats are only counted.
+ * LogLevel = info
+ * LogLevel.bo = warn
+ * LogRepeatInterval = 10000
+ * 
+ * # Append every datagram received from the Black Ops servers to BOCaptureFile
+ * # (default: disabled). The capture can be replayed with BOPacketReplay.
+ * BOCaptureFile = capture.bin
+ * 
+ * # Several bboTS processes can split the Black Ops servers between them.
+ * # All of them need the same configuration and access to ShardDirectory,
+ * # which has to be on a local file system. Every process needs a unique
+ * # ShardNodeID (default: process ID and hostname). A process which has not
+ * # written a heartbeat for ShardLeaseTime milliseconds (default: 30000)
+ * # is treated as dead and its servers are taken over by the others.
+ * ShardDirectory = /var/lib/bbots/shard
+ * ShardNodeID = node1
+ * ShardLeaseTime = 30000
+ * 
+ * # The state of bboTS is written to SnapshotFile every SnapshotInterval
+ * # milliseconds (default: 60000) and on shutdown. After a restart switching
+ * # resumes immediately with this state. Disabled if SnapshotFile is not set.
+ * SnapshotFile = bbots.snapshot
+ * SnapshotInterval = 60000
+ * 
+ * # Received Black Ops user lists are queued before they are processed.
+ * # coalesce (default) only keeps the latest user list of each server,
+ * # dropoldest keeps up to BOHandoffCapacity user lists per server.
+ * BOHandoffMode = coalesce
+ * BOHandoffCapacity = 4
+ * 
  * 
  * ### Black Ops Servers ###
  * ## Ranked ##
@@ -79,6 +181,8 @@ import java.util.Properties;
  * Ranked.Team0 = 11
  * Ranked.Team1 = 12
  * Ranked.Team2 = 13
+ * # If a team channel has a password, it can be set as follows
+ * Ranked.Team2Password = MyChannelP4ssword
  * 
  * # The following describe the login data for the black ops server.
  * # These are the same as you may have entered in your Black Ops RCON tool
@@ -93,6 +197,19 @@ import java.util.Properties;
  * # The next property sets how many recognized players have to play on a server to get switched
  * Ranked.MinimumSwitchingPlayers = 3
  * 
+ * # A player is only switched after they have been in their new team for
+ * # at least TeamDwellTime milliseconds (default: 0). This avoids switching
+ * # players back and forth during the pre-match time and map changes.
+ * Ranked.TeamDwellTime = 5000
+ * # The dwell time can also be set for each team. Team0 is usually only a
+ * # transient state, so it should get a longer dwell time.
+ * Ranked.Team0DwellTime = 20000
+ * 
+ * # While the TS3 server can not keep up with the moves, the ServerQuery commands are
+ * # shared between the Black Ops servers in proportion to their MovePriority
+ * # (default: 1). Ranked gets four commands for every command of Unranked.
+ * Ranked.MovePriority = 4
+ * 
  * ## Unranked ##
  * Unranked.ListeningChannels = 20 21 22 23
  * # If you don't set the Team0 property, users who are currently connecting
@@ -106,6 +223,8 @@ import java.util.Properties;
  * 
  * Unranked.BOScanningInterval = 25000
  * Unranked.MinimumSwitchingPlayers = 3
+ * # The teams of this server are on the ts3 endpoint Clan
+ * Unranked.TSServer = Clan
  * 
  * }</pre>
  * 
@@ -127,12 +246,44 @@ public class SProperties
 		boServerPort = new HashMap<String, Integer>();
 		boServerPassword = new HashMap<String, String>();
 		boMinimumPlayers = new HashMap<String, Integer>();
+		teamDwellTimes = new HashMap<String, long[]>();
+		teamPasswords = new HashMap<String, String[]>();
+		serverConfigs = new HashMap<String, ServerConfig>();
+		tsEndpoints = new LinkedHashMap<String, TSEndpointConfig>();
 		tsServerHost = null;
 		tsServerPort = -1;
 		tsVServerID = -1;
 		tsUsername = null;
 		tsPassword = null;
 		tsScanInterval = -1;
+		tsFloodCommands = 10;
+		tsFloodTime = 3000;
+		tsFloodBurst = 2;
+		tsMoveBatchSize = 50;
+		tsTransport = "ejts3";
+		tsCommandTimeout = 10000;
+		tsChannelRefreshInterval = 300000;
+		tsReconcileInterval = 30000;
+		tsKeepaliveInterval = 60000;
+		tsReconnectMaxBackoff = 60000;
+		boHandoffCoalesce = true;
+		shardDirectory = null;
+		shardNodeID = ManagementFactory.getRuntimeMXBean().getName();
+		shardLeaseTime = 30000;
+		snapshotFile = null;
+		boStartupTimeout = 10000;
+		boStartupRetryInterval = 30000;
+		boHostTTL = 300000;
+		boMaxRosterAge = 30000;
+		boFailureThreshold = 3;
+		boMaxBackoff = 300000;
+		configWatchInterval = 0;
+		logLevel = Log.INFO;
+		logLevels = new HashMap<String, Integer>();
+		logRepeatInterval = 10000;
+		boCaptureFile = null;
+		snapshotInterval = 60000;
+		boHandoffCapacity = 4;
 		boScanInterval = new HashMap<String, Integer>();
 		serverNames = new LinkedList<String>();
 	}
@@ -224,6 +375,12 @@ public class SProperties
 				}
 				teamChannels.put(server, teamChans);
 				
+				/***** Team[0,1,2]Password *****/
+				String[] passwords = new String[3];
+				for(int i=0;i<3;++i)
+					passwords[i] = props.getProperty(server+".Team"+i+"Password");
+				teamPasswords.put(server, passwords);
+				
 
 				/***** BOServerHost *****/
 				String sboServerHost = props.getProperty(server+".BOServerHost");
@@ -301,6 +458,60 @@ public class SProperties
 				else
 					throw new SPropertiesException(getMandatoryExceptionString(server+".MinimumSwitchingPlayers"));
 				
+				
+				/***** TeamDwellTime, Team[0,1,2]DwellTime *****/
+				long dwellTime = 0;
+				String sDwellTime = props.getProperty(server+".TeamDwellTime");
+				if(sDwellTime != null)
+				{
+					try
+					{
+						dwellTime = Long.parseLong(sDwellTime);
+					} catch (NumberFormatException e)
+					{
+						throw new SPropertiesException("Setting '"+server+".TeamDwellTime' contains a non numeric value: "+e.getMessage());
+					}
+				}
+				long[] dwellTimes = new long[3];
+				for(int i=0;i<3;++i)
+				{
+					dwellTimes[i] = dwellTime;
+					String sTeamDwellTime = props.getProperty(server+".Team"+i+"DwellTime");
+					if(sTeamDwellTime != null)
+					{
+						try
+						{
+							dwellTimes[i] = Long.parseLong(sTeamDwellTime);
+						} catch (NumberFormatException e)
+						{
+							throw new SPropertiesException("Setting '"+server+".Team"+i+"DwellTime' contains a non numeric value: "+e.getMessage());
+						}
+					}
+				}
+				teamDwellTimes.put(server, dwellTimes);
+				
+				
+				/***** TSServer *****/
+				String tsServer = props.getProperty(server+".TSServer");
+				if(tsServer == null)
+					tsServer = TSEndpointConfig.DEFAULT;
+				else
+					tsServer = tsServer.trim();
+				
+				
+				/***** MovePriority *****/
+				int movePriority = parseOptionalInt(props, server+".MovePriority", 1);
+				if(movePriority < 1)
+					throw new SPropertiesException("Setting '"+server+".MovePriority' has to be at least 1.");
+				
+				
+				/***** compiled configuration *****/
+				int[] compiledTeamChannels = new int[3];
+				for(int i=0;i<3;++i)
+					compiledTeamChannels[i] = teamChans.get(i);
+				serverConfigs.put(server, new ServerConfig(server, listeningChannels.get(server), compiledTeamChannels, passwords, dwellTimes,
+						sboServerHost, boServerPort.get(server), sboServerPassword, boScanInterval.get(server), boMinimumPlayers.get(server), tsServer, movePriority));
+				
 			}
 
 			
@@ -371,6 +582,39 @@ public class SProperties
 				throw new SPropertiesException(getMandatoryExceptionString("TSPassword"));
 			
 			
+			/***** TSServers *****/
+			tsEndpoints.put(TSEndpointConfig.DEFAULT, new TSEndpointConfig(TSEndpointConfig.DEFAULT, tsServerHost, tsServerPort, tsVServerID, tsUsername, tsPassword));
+			String stsServers = props.getProperty("TSServers");
+			if(stsServers != null)
+			{
+				for(String endpoint : stsServers.trim().split("\\s+"))
+				{
+					if(endpoint.length() == 0)
+						continue;
+					if(tsEndpoints.containsKey(endpoint))
+						throw new SPropertiesException("Setting 'TSServers' contains '"+endpoint+"' more than once or the reserved name '"+TSEndpointConfig.DEFAULT+"'.");
+					
+					String host = props.getProperty(endpoint+".TSServerHost");
+					if(host == null)
+						throw new SPropertiesException(getMandatoryExceptionString(endpoint+".TSServerHost"));
+					if(props.getProperty(endpoint+".TSServerPort") == null)
+						throw new SPropertiesException(getMandatoryExceptionString(endpoint+".TSServerPort"));
+					if(props.getProperty(endpoint+".TSVServerID") == null)
+						throw new SPropertiesException(getMandatoryExceptionString(endpoint+".TSVServerID"));
+					int port = parseOptionalInt(props, endpoint+".TSServerPort", -1);
+					int vserver = parseOptionalInt(props, endpoint+".TSVServerID", -1);
+					String username = props.getProperty(endpoint+".TSUsername", tsUsername);
+					String password = props.getProperty(endpoint+".TSPassword", tsPassword);
+					tsEndpoints.put(endpoint, new TSEndpointConfig(endpoint, host.trim(), port, vserver, username, password));
+				}
+			}
+			for(ServerConfig config : serverConfigs.values())
+			{
+				if(!tsEndpoints.containsKey(config.getTsServer()))
+					throw new SPropertiesException("Setting '"+config.getName()+".TSServer' refers to the unknown TS server '"+config.getTsServer()+"'.");
+			}
+			
+			
 			/***** TSScanningInterval *****/
 			String sscanInterval = props.getProperty("TSScanningInterval");
 			if(sscanInterval != null)
@@ -389,6 +633,99 @@ public class SProperties
 				throw new SPropertiesException(getMandatoryExceptionString("TSScanningInterval"));
 			
 			
+			/***** TSFloodCommands, TSFloodTime, TSFloodBurst, TSMoveBatchSize *****/
+			tsFloodCommands = parseOptionalInt(props, "TSFloodCommands", tsFloodCommands);
+			tsFloodTime = parseOptionalInt(props, "TSFloodTime", tsFloodTime);
+			tsFloodBurst = parseOptionalInt(props, "TSFloodBurst", tsFloodBurst);
+			if(tsFloodCommands < 2)
+				throw new SPropertiesException("Setting 'TSFloodCommands' has to be at least 2.");
+			if(tsFloodTime < 1)
+				throw new SPropertiesException("Setting 'TSFloodTime' has to be at least 1.");
+			if(tsFloodBurst < 1 || tsFloodBurst >= tsFloodCommands)
+				throw new SPropertiesException("Setting 'TSFloodBurst' has to be at least 1 and lower than 'TSFloodCommands'.");
+			tsMoveBatchSize = parseOptionalInt(props, "TSMoveBatchSize", tsMoveBatchSize);
+			
+			
+			/***** TSTransport, TSCommandTimeout *****/
+			String stsTransport = props.getProperty("TSTransport");
+			if(stsTransport != null)
+			{
+				stsTransport = stsTransport.trim().toLowerCase();
+				if(!stsTransport.equals("ejts3") && !stsTransport.equals("nio"))
+					throw new SPropertiesException("Setting 'TSTransport' has to be 'ejts3' or 'nio'.");
+				tsTransport = stsTransport;
+			}
+			tsCommandTimeout = parseOptionalInt(props, "TSCommandTimeout", tsCommandTimeout);
+			tsChannelRefreshInterval = parseOptionalInt(props, "TSChannelRefreshInterval", tsChannelRefreshInterval);
+			tsReconcileInterval = parseOptionalInt(props, "TSReconcileInterval", tsReconcileInterval);
+			
+			
+			/***** TSKeepaliveInterval, TSReconnectMaxBackoff *****/
+			tsKeepaliveInterval = parseOptionalInt(props, "TSKeepaliveInterval", tsKeepaliveInterval);
+			tsReconnectMaxBackoff = parseOptionalInt(props, "TSReconnectMaxBackoff", tsReconnectMaxBackoff);
+			
+			
+			/***** BOHandoffMode, BOHandoffCapacity *****/
+			String sboHandoffMode = props.getProperty("BOHandoffMode");
+			if(sboHandoffMode != null)
+			{
+				sboHandoffMode = sboHandoffMode.trim().toLowerCase();
+				if(!sboHandoffMode.equals("coalesce") && !sboHandoffMode.equals("dropoldest"))
+					throw new SPropertiesException("Setting 'BOHandoffMode' has to be 'coalesce' or 'dropoldest'.");
+				boHandoffCoalesce = sboHandoffMode.equals("coalesce");
+			}
+			boHandoffCapacity = parseOptionalInt(props, "BOHandoffCapacity", boHandoffCapacity);
+			
+			
+			/***** ShardDirectory, ShardNodeID, ShardLeaseTime *****/
+			shardDirectory = props.getProperty("ShardDirectory");
+			String sshardNodeID = props.getProperty("ShardNodeID");
+			if(sshardNodeID != null)
+				shardNodeID = sshardNodeID.trim();
+			shardLeaseTime = parseOptionalInt(props, "ShardLeaseTime", shardLeaseTime);
+			
+			
+			/***** SnapshotFile, SnapshotInterval *****/
+			snapshotFile = props.getProperty("SnapshotFile");
+			snapshotInterval = parseOptionalInt(props, "SnapshotInterval", snapshotInterval);
+			
+			
+			/***** BOStartupTimeout, BOStartupRetryInterval *****/
+			boStartupTimeout = parseOptionalInt(props, "BOStartupTimeout", boStartupTimeout);
+			boStartupRetryInterval = parseOptionalInt(props, "BOStartupRetryInterval", boStartupRetryInterval);
+			boHostTTL = parseOptionalInt(props, "BOHostTTL", boHostTTL);
+			boMaxRosterAge = parseOptionalInt(props, "BOMaxRosterAge", boMaxRosterAge);
+			
+			
+			/***** BOFailureThreshold, BOMaxBackoff *****/
+			boFailureThreshold = parseOptionalInt(props, "BOFailureThreshold", boFailureThreshold);
+			boMaxBackoff = parseOptionalInt(props, "BOMaxBackoff", boMaxBackoff);
+			
+			
+			/***** ConfigWatchInterval *****/
+			configWatchInterval = parseOptionalInt(props, "ConfigWatchInterval", configWatchInterval);
+			
+			
+			/***** LogLevel, LogLevel.[subsystem], LogRepeatInterval *****/
+			for(String key : props.stringPropertyNames())
+			{
+				if(!key.equals("LogLevel") && !key.startsWith("LogLevel."))
+					continue;
+				int level = Log.parseLevel(props.getProperty(key));
+				if(level == -1)
+					throw new SPropertiesException("Setting '"+key+"' has to be 'error', 'warn', 'info' or 'debug'.");
+				if(key.equals("LogLevel"))
+					logLevel = level;
+				else
+					logLevels.put(key.substring("LogLevel.".length()), level);
+			}
+			logRepeatInterval = parseOptionalInt(props, "LogRepeatInterval", logRepeatInterval);
+			
+			
+			/***** BOCaptureFile *****/
+			boCaptureFile = props.getProperty("BOCaptureFile");
+			
+			
 	  } catch (IOException e)
 		{
 			throw new SPropertiesException("Error while parsing config file: "+e.getMessage());
@@ -408,6 +745,28 @@ public class SProperties
 		return "Mandatory Setting '"+property+"' not found in properties file("+filename+").";
 	}
 	
+	/**
+	 * Parses an optional numeric property
+	 * @param props properties
+	 * @param property Property name
+	 * @param defaultValue value to be used if the property is not set
+	 * @return the value of the property or <i>defaultValue</i>
+	 * @throws SPropertiesException Will be thrown if the property is not numeric.
+	 */
+	private int parseOptionalInt(Properties props, String property, int defaultValue) throws SPropertiesException
+	{
+		String value = props.getProperty(property);
+		if(value == null)
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e)
+		{
+			throw new SPropertiesException("Setting '"+property+"' contains a non numeric value: "+e.getMessage());
+		}
+	}
+	
 	/**
 	 * Gets the ScanningInterval for the Black Ops server <i>server</i>
 	 * @param server Label of the bo server
@@ -431,6 +790,258 @@ public class SProperties
 		return tsScanInterval;
 	}
 
+	/**
+	 * Gets the number of commands the TS server allows within {@link #getTsFloodTime()}
+	 * @return flood commands
+	 */
+	public int getTsFloodCommands()
+	{
+		return tsFloodCommands;
+	}
+	
+	/**
+	 * Gets the flood time of the TS server
+	 * @return flood time in milliseconds
+	 */
+	public int getTsFloodTime()
+	{
+		return tsFloodTime;
+	}
+	
+	/**
+	 * Gets the number of commands which may be sent at once
+	 * @return burst size
+	 */
+	public int getTsFloodBurst()
+	{
+		return tsFloodBurst;
+	}
+	
+	/**
+	 * Gets the maximum number of clients moved by one command
+	 * @return batch size
+	 */
+	public int getTsMoveBatchSize()
+	{
+		return tsMoveBatchSize;
+	}
+
+	/**
+	 * Gets the ServerQuery transport to be used
+	 * @return "ejts3" or "nio"
+	 */
+	public String getTsTransport()
+	{
+		return tsTransport;
+	}
+	
+	/**
+	 * Gets the time to wait for the reply of a ServerQuery command
+	 * @return command timeout in milliseconds
+	 */
+	public int getTsCommandTimeout()
+	{
+		return tsCommandTimeout;
+	}
+
+	/**
+	 * Gets how often the cached channel list is refreshed
+	 * @return refresh interval in milliseconds
+	 */
+	public int getTsChannelRefreshInterval()
+	{
+		return tsChannelRefreshInterval;
+	}
+	
+	/**
+	 * Gets how often a switcher runs a full pass even if nothing has changed
+	 * @return interval in milliseconds
+	 */
+	public int getTsReconcileInterval()
+	{
+		return tsReconcileInterval;
+	}
+	
+	/**
+	 * Gets after how many idle milliseconds a keepalive is sent to the TS3 server
+	 * @return idle time in milliseconds (0 = no keepalives)
+	 */
+	public int getTsKeepaliveInterval()
+	{
+		return tsKeepaliveInterval;
+	}
+	
+	/**
+	 * Gets the maximum pause between two attempts to reconnect to the TS3 server
+	 * @return maximum pause in milliseconds
+	 */
+	public int getTsReconnectMaxBackoff()
+	{
+		return tsReconnectMaxBackoff;
+	}
+	
+	/**
+	 * Returns true if only the latest Black Ops user list of each server is queued
+	 * @return true for coalesce mode, false for dropoldest mode
+	 */
+	public boolean isBoHandoffCoalesce()
+	{
+		return boHandoffCoalesce;
+	}
+	
+	/**
+	 * Gets the number of Black Ops user lists queued per server in dropoldest mode
+	 * @return queue capacity
+	 */
+	public int getBoHandoffCapacity()
+	{
+		return boHandoffCapacity;
+	}
+
+	/**
+	 * Gets the directory shared by all nodes in sharded mode
+	 * @return shard directory or {@code null} if sharding is disabled
+	 */
+	public String getShardDirectory()
+	{
+		return shardDirectory;
+	}
+	
+	/**
+	 * Gets the unique ID of this node in sharded mode
+	 * @return node ID
+	 */
+	public String getShardNodeID()
+	{
+		return shardNodeID;
+	}
+	
+	/**
+	 * Gets the time after which a node without heartbeat is treated as dead
+	 * @return lease time in milliseconds
+	 */
+	public int getShardLeaseTime()
+	{
+		return shardLeaseTime;
+	}
+
+	/**
+	 * Gets the file the state snapshot is written to
+	 * @return snapshot file or {@code null} if snapshots are disabled
+	 */
+	public String getSnapshotFile()
+	{
+		return snapshotFile;
+	}
+	
+	/**
+	 * Gets how often the state snapshot is written
+	 * @return snapshot interval in milliseconds
+	 */
+	public int getSnapshotInterval()
+	{
+		return snapshotInterval;
+	}
+
+	/**
+	 * Gets the time after which a starting Black Ops server is reported
+	 * @return startup timeout in milliseconds
+	 */
+	public int getBoStartupTimeout()
+	{
+		return boStartupTimeout;
+	}
+	
+	/**
+	 * Gets the time to wait before a failed Black Ops server is started again
+	 * @return retry interval in milliseconds
+	 */
+	public int getBoStartupRetryInterval()
+	{
+		return boStartupRetryInterval;
+	}
+
+	/**
+	 * Gets how long a resolved Black Ops host address is valid
+	 * @return TTL in milliseconds
+	 */
+	public int getBoHostTTL()
+	{
+		return boHostTTL;
+	}
+	
+	/**
+	 * Gets how old the user list of a Black Ops server may be before its switcher pauses
+	 * @return maximum age in milliseconds (0 = never pause)
+	 */
+	public int getBoMaxRosterAge()
+	{
+		return boMaxRosterAge;
+	}
+	
+	/**
+	 * Gets after how many unanswered requests in a row a Black Ops server is only probed
+	 * @return number of unanswered requests
+	 */
+	public int getBoFailureThreshold()
+	{
+		return boFailureThreshold;
+	}
+	
+	/**
+	 * Gets the maximum time between two probes of a Black Ops server which does not answer
+	 * @return maximum time in milliseconds
+	 */
+	public int getBoMaxBackoff()
+	{
+		return boMaxBackoff;
+	}
+
+	/**
+	 * Gets the interval in which the configuration and user files are checked for changes
+	 * @return interval in milliseconds, 0 if disabled
+	 */
+	public int getConfigWatchInterval()
+	{
+		return configWatchInterval;
+	}
+
+	/**
+	 * Gets the log level of all subsystems without an own level
+	 * @return level, see {@link Log}
+	 */
+	public int getLogLevel()
+	{
+		return logLevel;
+	}
+
+	/**
+	 * Gets the log levels of single subsystems
+	 * @return map subsystem -> level
+	 */
+	public Map<String, Integer> getLogLevels()
+	{
+		return logLevels;
+	}
+
+	/**
+	 * Gets the minimum time between two log messages with the same template
+	 * @return interval in milliseconds
+	 */
+	public int getLogRepeatInterval()
+	{
+		return logRepeatInterval;
+	}
+
+	/**
+	 * Gets the file to which all received Black Ops datagrams are appended
+	 * @return file name or {@code null} if capturing is disabled
+	 */
+	public String getBoCaptureFile()
+	{
+		return boCaptureFile;
+	}
+
 	/**
 	 * Gets the Username of the ServerQuery Account
 	 * @return TS username
@@ -568,6 +1179,20 @@ public class SProperties
 			return -1; //INVALID team channel
 	}
 	
+	/**
+	 * Gets the password of the channel of the Team identified by <i>team</i>
+	 * @param server Label of the Black Ops Server
+	 * @param team Team ID. Must be 0 (connecting, pre-match), 1 (Team 1) or 2 (Team 2)
+	 * @return the channel password or {@code null} if not set
+	 */
+	public String getTeamPassword(String server, int team)
+	{
+		String[] passwords = teamPasswords.get(server);
+		if(passwords == null || team < 0 || team > 2)
+			return null;
+		return passwords[team];
+	}
+	
 	/**
 	 * Gets the minimum recognized players to play on a server to enable switching
 	 * 
@@ -583,6 +1208,43 @@ public class SProperties
 			return minPlr;
 	}
 	
+	/**
+	 * Gets the dwell times of all teams for <i>server</i>.
+	 * A player has to be in a team for at least this time before they get switched.
+	 * 
+	 * @param server Label of the Black Ops Server
+	 * @return dwell times in milliseconds, indexed by the team ID
+	 */
+	public long[] getTeamDwellTimes(String server)
+	{
+		long[] dwellTimes = teamDwellTimes.get(server);
+		if(dwellTimes == null)
+			return new long[3];
+		else
+			return dwellTimes.clone();
+	}
+	
+	/**
+	 * Returns the compiled configuration of <i>server</i>.
+	 * Use this instead of the single getters on hot paths.
+	 * 
+	 * @param server Label of the Black Ops Server
+	 * @return compiled configuration or {@code null} if <i>server</i> is unknown
+	 */
+	public ServerConfig getServerConfig(String server)
+	{
+		return serverConfigs.get(server);
+	}
+	
+	/**
+	 * Returns the configuration of all TS endpoints, starting with {@link TSEndpointConfig#DEFAULT}
+	 * @return TS endpoint configurations by name
+	 */
+	public Map<String, TSEndpointConfig> getTsEndpoints()
+	{
+		return tsEndpoints;
+	}
+	
 	/**
 	 * Returns a list of all Black Ops Server Labels
 	 * @return list of all Black Ops server labels
@@ -595,6 +1257,34 @@ public class SProperties
 	private List<String> serverNames;
 	private Map<String, Integer> boScanInterval;
 	private int tsScanInterval;
+	private int tsFloodCommands;
+	private int tsFloodTime;
+	private int tsFloodBurst;
+	private int tsMoveBatchSize;
+	private String tsTransport;
+	private int tsCommandTimeout;
+	private int tsChannelRefreshInterval;
+	private int tsReconcileInterval;
+	private int tsKeepaliveInterval;
+	private int tsReconnectMaxBackoff;
+	private boolean boHandoffCoalesce;
+	private int boHandoffCapacity;
+	private String shardDirectory;
+	private String shardNodeID;
+	private int shardLeaseTime;
+	private String snapshotFile;
+	private int snapshotInterval;
+	private int boStartupTimeout;
+	private int boStartupRetryInterval;
+	private int boHostTTL;
+	private int boMaxRosterAge;
+	private int boFailureThreshold;
+	private int boMaxBackoff;
+	private int configWatchInterval;
+	private int logLevel;
+	private Map<String, Integer> logLevels;
+	private int logRepeatInterval;
+	private String boCaptureFile;
 	private String tsUsername;
 	private String tsPassword;
 	private int tsVServerID;
@@ -606,5 +1296,9 @@ public class SProperties
 	private Map<String, List<Integer>> listeningChannels;
 	private Map<String, ArrayList<Integer>> teamChannels;
 	private Map<String, Integer> boMinimumPlayers;
+	private Map<String, long[]> teamDwellTimes;
+	private Map<String, String[]> teamPasswords;
+	private Map<String, ServerConfig> serverConfigs;
+	private Map<String, TSEndpointConfig> tsEndpoints;
 	private String filename;
 }
@@ -0,0 +1,225 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * ServerConfig is the compiled, immutable configuration of one Black Ops server.<br><br>
+ * It is created by {@link SProperties} after parsing. The listening channels
+ * are kept in a bitset and the team channels in an array indexed by the team ID,
+ * so the checks done for every TS user on every tick are constant-time
+ * operations and never throw.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public final class ServerConfig
+{
+	/**
+	 * Initializes all data.
+	 * @param name Label of the Black Ops server
+	 * @param listeningChannels all listening channels
+	 * @param teamChannels channel ID of each team or -1, indexed by the team ID
+	 * @param teamPasswords channel password of each team or {@code null}, indexed by the team ID
+	 * @param teamDwellTimes dwell time (milliseconds) of each team, indexed by the team ID
+	 * @param boServerHost Host of the Black Ops server
+	 * @param boServerPort RCon port
+	 * @param boServerPassword RCon password
+	 * @param boScanInterval scanning interval of the Black Ops server (milliseconds)
+	 * @param minimumPlayers minimum recognized players to enable switching
+	 * @param tsServer name of the TS endpoint the teams of this server are on
+	 * @param movePriority weight of this server in the move dispatcher
+	 */
+	public ServerConfig(String name, List<Integer> listeningChannels, int[] teamChannels, String[] teamPasswords, long[] teamDwellTimes,
+			String boServerHost, int boServerPort, String boServerPassword, int boScanInterval, int minimumPlayers,
+			String tsServer, int movePriority)
+	{
+		this.name = name;
+		this.listeningChannels = new BitSet();
+		for(int channel : listeningChannels)
+		{
+			if(channel >= 0)
+				this.listeningChannels.set(channel);
+		}
+		this.teamChannels = teamChannels.clone();
+		this.teamPasswords = teamPasswords.clone();
+		this.teamDwellTimes = teamDwellTimes.clone();
+		this.boServerHost = boServerHost;
+		this.boServerPort = boServerPort;
+		this.boServerPassword = boServerPassword;
+		this.boScanInterval = boScanInterval;
+		this.minimumPlayers = minimumPlayers;
+		this.tsServer = tsServer;
+		this.movePriority = movePriority;
+	}
+	
+	/**
+	 * Checks if a given channel ID is a listening channel
+	 * @param channel Teamspeak channel ID
+	 * @return True if <i>channel</i> is a listening channel, otherwise false.
+	 */
+	public boolean isListeningChannel(int channel)
+	{
+		return channel >= 0 && listeningChannels.get(channel);
+	}
+	
+	/**
+	 * Gets the channel ID for the Team identified by <i>team</i>
+	 * @param team Team ID
+	 * @return the Teamspeak channel ID of the given team or -1 if not set or <i>team</i> is invalid.
+	 */
+	public int getTeamChannel(int team)
+	{
+		if(team < 0 || team >= teamChannels.length)
+			return -1;
+		return teamChannels[team];
+	}
+	
+	/**
+	 * Gets the channel password for the Team identified by <i>team</i>
+	 * @param team Team ID
+	 * @return the channel password or {@code null} if not set or <i>team</i> is invalid.
+	 */
+	public String getTeamPassword(int team)
+	{
+		if(team < 0 || team >= teamPasswords.length)
+			return null;
+		return teamPasswords[team];
+	}
+	
+	/**
+	 * Gets the number of teams
+	 * @return number of teams (including Team0)
+	 */
+	public int getTeamCount()
+	{
+		return teamChannels.length;
+	}
+	
+	/**
+	 * Gets the dwell times of all teams
+	 * @return dwell times in milliseconds, indexed by the team ID
+	 */
+	public long[] getTeamDwellTimes()
+	{
+		return teamDwellTimes.clone();
+	}
+
+	/**
+	 * Checks if the connection to the Black Ops server is configured the same way.
+	 * If not, the switcher has to be restarted to apply <i>other</i>.
+	 * 
+	 * @param other another configuration of the same server
+	 * @return true if host, port, password, scanning interval and TS endpoint are equal
+	 */
+	public boolean hasSameConnection(ServerConfig other)
+	{
+		return boServerHost.equals(other.boServerHost) && boServerPort == other.boServerPort
+				&& boServerPassword.equals(other.boServerPassword) && boScanInterval == other.boScanInterval
+				&& tsServer.equals(other.tsServer);
+	}
+	
+	/**
+	 * Gets the label of the Black Ops server
+	 * @return label of the server
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Gets the host of the Black Ops server
+	 * @return host name or IP address
+	 */
+	public String getBoServerHost()
+	{
+		return boServerHost;
+	}
+
+	/**
+	 * Gets the RCon port of the Black Ops server
+	 * @return RCon port
+	 */
+	public int getBoServerPort()
+	{
+		return boServerPort;
+	}
+
+	/**
+	 * Gets the RCon password of the Black Ops server
+	 * @return RCon password
+	 */
+	public String getBoServerPassword()
+	{
+		return boServerPassword;
+	}
+
+	/**
+	 * Gets the scanning interval of the Black Ops server
+	 * @return scanning interval in milliseconds
+	 */
+	public int getBoScanInterval()
+	{
+		return boScanInterval;
+	}
+
+	/**
+	 * Gets the minimum number of recognized players to enable switching
+	 * @return minimum number of players
+	 */
+	public int getMinimumPlayers()
+	{
+		return minimumPlayers;
+	}
+
+	/**
+	 * Returns the TS endpoint the team channels of this server are on
+	 * @return name of the endpoint (see {@link TSEndpointConfig})
+	 */
+	public String getTsServer()
+	{
+		return tsServer;
+	}
+
+	/**
+	 * Returns the weight of this server in the move dispatcher (see {@link TSMoveDispatcher})
+	 * @return weight, at least 1
+	 */
+	public int getMovePriority()
+	{
+		return movePriority;
+	}
+
+	private final String name;
+	private final BitSet listeningChannels;
+	private final int[] teamChannels;
+	private final String[] teamPasswords;
+	private final long[] teamDwellTimes;
+	private final String boServerHost;
+	private final int boServerPort;
+	private final String boServerPassword;
+	private final int boScanInterval;
+	private final int minimumPlayers;
+	private final String tsServer;
+	private final int movePriority;
+}
@@ -0,0 +1,430 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * ShardCoordinator splits the Black Ops servers between several bboTS processes.<br><br>
+ * All processes share one local directory. Every process (node) holds a lock
+ * on its own node file and writes a heartbeat into it. A node whose heartbeat is
+ * older than the lease time is ignored. A node file which can be locked by somebody
+ * else and whose heartbeat is older than the lease time belongs to a dead node and
+ * is removed. A node file is created and locked under a temporary name and renamed
+ * afterwards, so other nodes never see the file of a joining node unlocked.<br>
+ * The servers are assigned to the living nodes by consistent hashing, so only
+ * a few servers move when a node joins or dies. Before a node starts switching
+ * for a server, it has to lock the server file, which the previous owner only
+ * releases after it has stopped. So every server is handled by at most one node.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class ShardCoordinator extends Thread
+{
+	/**
+	 * Initializes all local data. Does not join the shard yet.
+	 * @param directory shared directory
+	 * @param nodeId unique ID of this node
+	 * @param serverNames labels of all Black Ops servers
+	 * @param leaseTime time (milliseconds) after which a node without heartbeat is ignored
+	 * @param listener the class to inform about acquired and released servers
+	 */
+	public ShardCoordinator(File directory, String nodeId, List<String> serverNames, long leaseTime, ShardListener listener)
+	{
+		super("ShardCoordinator");
+		setDaemon(true);
+		this.directory = directory;
+		this.nodeId = sanitize(nodeId);
+		this.serverNames = new LinkedList<String>(serverNames);
+		this.leaseTime = leaseTime;
+		this.listener = listener;
+		ownedServers = new HashMap<String, FileLock>();
+		running = true;
+	}
+	
+	/**
+	 * Joins the shard by creating and locking the node file.
+	 * 
+	 * @throws ShardCoordinatorException Will be thrown if the node file can not be created or is already in use.
+	 */
+	public void init() throws ShardCoordinatorException
+	{
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new ShardCoordinatorException("Shard directory can not be created ("+directory+").");
+		try
+		{
+			if(isLocked(getNodeFile(nodeId)))
+				throw new ShardCoordinatorException("Node ID '"+nodeId+"' is already in use.");
+			publishNodeFile();
+		} catch (IOException e)
+		{
+			throw new ShardCoordinatorException("Error while trying to create node file: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Replaces the list of Black Ops servers. Takes effect on the next rebalance.
+	 * @param serverNames labels of all Black Ops servers
+	 */
+	public synchronized void setServerNames(List<String> serverNames)
+	{
+		this.serverNames = new LinkedList<String>(serverNames);
+	}
+	
+	/**
+	 * Leaves the shard. All owned servers are released.
+	 */
+	public void stopCoordinator()
+	{
+		running = false;
+		interrupt();
+		try
+		{
+			join(leaseTime);
+		} catch (InterruptedException e) { }
+		
+		synchronized(this)
+		{
+			for(String server : new LinkedList<String>(ownedServers.keySet()))
+				release(server);
+			try
+			{
+				nodeLock.release();
+				nodeChannel.close();
+			} catch (IOException e) { }
+			getNodeFile(nodeId).delete();
+		}
+	}
+	
+	/**
+	 * Sends heartbeats and rebalances the servers periodically.
+	 */
+	@Override
+	public void run()
+	{
+		while(running)
+		{
+			try
+			{
+				heartbeat();
+				rebalance();
+			} catch (IOException e)
+			{
+				System.out.println("Error while trying to coordinate shard: "+e.getMessage());
+			}
+			
+			try
+			{
+				Thread.sleep(Math.max(1, leaseTime/3));
+			} catch (InterruptedException e) { }
+		}
+	}
+	
+	/**
+	 * Writes the current time into the node file.
+	 * If the node file has been removed by another node, it is created again.
+	 * @throws IOException Will be thrown if the node file can not be written.
+	 */
+	private synchronized void heartbeat() throws IOException
+	{
+		if(!running)
+			return;
+		if(!getNodeFile(nodeId).exists())
+		{
+			System.out.println("Node file of '"+nodeId+"' has been removed, joining the shard again.");
+			publishNodeFile();
+			return;
+		}
+		writeHeartbeat(nodeChannel);
+	}
+	
+	/**
+	 * Writes the current time into a node file
+	 * @param channel channel of the node file
+	 * @throws IOException Will be thrown if the node file can not be written.
+	 */
+	private static void writeHeartbeat(FileChannel channel) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.flip();
+		channel.write(buffer, 0);
+		channel.force(false);
+	}
+	
+	/**
+	 * Creates, locks and writes a new node file under a temporary name and renames it
+	 * to the node file of this node. An old node file of this node is replaced.
+	 * @throws IOException Will be thrown if the node file can not be created.
+	 */
+	private void publishNodeFile() throws IOException
+	{
+		File tempFile = File.createTempFile(JOIN_PREFIX, TEMP_SUFFIX, directory);
+		FileChannel channel = new RandomAccessFile(tempFile, "rw").getChannel();
+		FileLock lock;
+		try
+		{
+			lock = channel.tryLock(LOCK_POSITION, 1, false);
+			if(lock == null)
+				throw new IOException("Node file can not be locked ("+tempFile+").");
+			writeHeartbeat(channel);
+			if(!tempFile.renameTo(getNodeFile(nodeId)))
+				throw new IOException("Node file can not be created ("+getNodeFile(nodeId)+").");
+		} catch (IOException e)
+		{
+			channel.close();
+			tempFile.delete();
+			throw e;
+		}
+		
+		if(nodeChannel != null)
+			nodeChannel.close();
+		nodeChannel = channel;
+		nodeLock = lock;
+	}
+	
+	/**
+	 * Checks if a node file is locked by a living node
+	 * @param file the node file
+	 * @return true if the file exists and is locked
+	 * @throws IOException Will be thrown if the file can not be opened.
+	 */
+	private static boolean isLocked(File file) throws IOException
+	{
+		if(!file.exists())
+			return false;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileLock lock = raf.getChannel().tryLock(LOCK_POSITION, 1, false);
+			if(lock == null)
+				return true;
+			lock.release();
+			return false;
+		} finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Assigns all servers to the living nodes and acquires or releases
+	 * the servers of this node.
+	 * @throws IOException Will be thrown if the shard directory can not be read.
+	 */
+	private synchronized void rebalance() throws IOException
+	{
+		if(!running)
+			return;
+		
+		List<String> members = getMembers();
+		TreeMap<Long, String> ring = new TreeMap<Long, String>();
+		for(String member : members)
+		{
+			for(int i=0;i<VIRTUAL_NODES;++i)
+				ring.put(hash(member+"#"+i), member);
+		}
+		
+		for(String server : serverNames)
+		{
+			Map.Entry<Long, String> owner = ring.ceilingEntry(hash(server));
+			if(owner == null)
+				owner = ring.firstEntry();
+			
+			boolean mine = owner.getValue().equals(nodeId);
+			if(mine && !ownedServers.containsKey(server))
+				acquire(server);
+			else if(!mine && ownedServers.containsKey(server))
+				release(server);
+		}
+		for(String server : new LinkedList<String>(ownedServers.keySet()))
+		{
+			if(!serverNames.contains(server))
+				release(server);
+		}
+		
+		Metrics.set("shard.members", members.size());
+		Metrics.set("shard.ownedServers", ownedServers.size());
+	}
+	
+	/**
+	 * Returns the IDs of all living nodes. Node files of dead nodes and
+	 * temporary files left by nodes which died while joining are removed.
+	 * @return sorted list of node IDs
+	 * @throws IOException Will be thrown if the shard directory can not be read.
+	 */
+	private List<String> getMembers() throws IOException
+	{
+		TreeSet<String> members = new TreeSet<String>();
+		members.add(nodeId);
+		
+		File[] files = directory.listFiles();
+		if(files == null)
+			throw new IOException("Shard directory can not be read ("+directory+").");
+		
+		long now = System.currentTimeMillis();
+		for(File file : files)
+		{
+			String name = file.getName();
+			if(name.startsWith(JOIN_PREFIX) && name.endsWith(TEMP_SUFFIX))
+			{
+				// a joining node renames its file immediately
+				if(now - file.lastModified() > leaseTime)
+					file.delete();
+				continue;
+			}
+			if(!name.startsWith(NODE_PREFIX) || !name.endsWith(LOCK_SUFFIX))
+				continue;
+			String member = name.substring(NODE_PREFIX.length(), name.length()-LOCK_SUFFIX.length());
+			if(member.equals(nodeId))
+				continue;
+			
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				boolean alive = raf.length() >= 8 && now - raf.readLong() <= leaseTime;
+				FileLock lock = raf.getChannel().tryLock(LOCK_POSITION, 1, false);
+				if(lock != null)
+				{
+					// nobody holds the node file and there is no recent heartbeat -> the node is dead
+					lock.release();
+					raf.close();
+					if(!alive)
+						file.delete();
+					continue;
+				}
+				if(alive)
+					members.add(member);
+			} finally
+			{
+				raf.close();
+			}
+		}
+		return new LinkedList<String>(members);
+	}
+	
+	/**
+	 * Locks the server file and informs the listener.
+	 * If the previous owner still holds the lock, it will be tried again on the next rebalance.
+	 * @param server Label of the Black Ops server
+	 * @throws IOException Will be thrown if the server file can not be opened.
+	 */
+	private void acquire(String server) throws IOException
+	{
+		FileChannel channel = new RandomAccessFile(new File(directory, SERVER_PREFIX+sanitize(server)+LOCK_SUFFIX), "rw").getChannel();
+		FileLock lock = channel.tryLock();
+		if(lock == null)
+		{
+			channel.close();
+			return;
+		}
+		ownedServers.put(server, lock);
+		listener.serverAcquired(server);
+	}
+	
+	/**
+	 * Informs the listener and unlocks the server file.
+	 * @param server Label of the Black Ops server
+	 */
+	private void release(String server)
+	{
+		FileLock lock = ownedServers.remove(server);
+		if(lock == null)
+			return;
+		listener.serverReleased(server);
+		try
+		{
+			lock.release();
+			lock.channel().close();
+		} catch (IOException e) { }
+	}
+	
+	/**
+	 * Returns the node file of a node
+	 * @param node node ID
+	 * @return node file
+	 */
+	private File getNodeFile(String node)
+	{
+		return new File(directory, NODE_PREFIX+node+LOCK_SUFFIX);
+	}
+	
+	/**
+	 * Returns a position on the hash ring
+	 * @param key node or server label
+	 * @return first 8 bytes of the MD5 hash of <i>key</i>
+	 */
+	private static long hash(String key)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			return ByteBuffer.wrap(digest).getLong();
+		} catch (NoSuchAlgorithmException e)
+		{
+			return key.hashCode();
+		} catch (IOException e)
+		{
+			return key.hashCode();
+		}
+	}
+	
+	/**
+	 * Replaces all characters which may not be used in file names
+	 * @param name node ID or server label
+	 * @return the sanitized name
+	 */
+	private static String sanitize(String name)
+	{
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+	
+	private static final String NODE_PREFIX = "node-";
+	private static final String SERVER_PREFIX = "server-";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String JOIN_PREFIX = "join-";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final long LOCK_POSITION = 1L << 40;
+	private static final int VIRTUAL_NODES = 64;
+	
+	private volatile boolean running;
+	private File directory;
+	private String nodeId;
+	private List<String> serverNames;
+	private long leaseTime;
+	private ShardListener listener;
+	private HashMap<String, FileLock> ownedServers;
+	private FileChannel nodeChannel;
+	private FileLock nodeLock;
+}
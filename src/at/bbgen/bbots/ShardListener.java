@@ -0,0 +1,42 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+/**
+ * Interface used to inform a class about servers assigned to or taken away
+ * from this node by the {@link ShardCoordinator}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public interface ShardListener
+{
+	/**
+	 * Called when this node has become the owner of <i>server</i>.
+	 * @param server Label of the Black Ops server
+	 */
+	void serverAcquired(String server);
+	
+	/**
+	 * Called when this node is no longer the owner of <i>server</i>.
+	 * @param server Label of the Black Ops server
+	 */
+	void serverReleased(String server);
+}
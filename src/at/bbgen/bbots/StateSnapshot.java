@@ -0,0 +1,249 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * StateSnapshot periodically writes the state of bboTS into a binary file,
+ * so a restarted process can resume switching immediately.<br><br>
+ * The snapshot contains, for every {@link TSEndpoint}, the channel and client view of its
+ * {@link TSConnection} and the moves waiting in its {@link TSMoveDispatcher} and, for every running
+ * {@link BOTeamSwitcher}, the last Black Ops user list and the team transition states.<br>
+ * A restored user list keeps its receive time, so a switcher does not move anybody
+ * based on it if it is older than BOMaxRosterAge.<br>
+ * The TS part is restored by {@link #load()}, endpoints which are no longer configured are skipped. The part of a Black Ops server
+ * is handed to its switcher when it is started (see {@link #getServerState(String)}) and
+ * dropped once the switcher is running (see {@link #removeServerState(String)}).
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class StateSnapshot
+{
+	/**
+	 * Initializes all local data. Does not read or write anything.
+	 * @param file snapshot file
+	 * @param manager the manager of all running switchers
+	 * @param tsEndpoints all TS endpoints by name
+	 */
+	public StateSnapshot(File file, BOTeamSwitcherManager manager, Map<String, TSEndpoint> tsEndpoints)
+	{
+		this.file = file;
+		this.manager = manager;
+		this.tsEndpoints = tsEndpoints;
+		serverStates = new HashMap<String, byte[]>();
+		saveTimer = null;
+	}
+	
+	/**
+	 * Reads the snapshot file. Restores the TS state immediately and keeps the
+	 * state of the Black Ops servers until their switchers are started.
+	 * 
+	 * @throws IOException Will be thrown if the file can not be read or is invalid.
+	 */
+	public void load() throws IOException
+	{
+		if(!file.exists())
+			return;
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Invalid snapshot file ("+file+").");
+			in.readLong(); // time of the snapshot
+			
+			int endpointCount = in.readInt();
+			for(int i=0;i<endpointCount;++i)
+			{
+				String name = in.readUTF();
+				byte[] state = new byte[in.readInt()];
+				in.readFully(state);
+				TSEndpoint endpoint = tsEndpoints.get(name);
+				if(endpoint == null)
+					continue;
+				DataInputStream endpointIn = new DataInputStream(new ByteArrayInputStream(state));
+				endpoint.getConnection().readSnapshot(endpointIn);
+				endpoint.getMoveDispatcher().readSnapshot(endpointIn);
+			}
+			
+			int serverCount = in.readInt();
+			synchronized(this)
+			{
+				for(int i=0;i<serverCount;++i)
+				{
+					String server = in.readUTF();
+					byte[] state = new byte[in.readInt()];
+					in.readFully(state);
+					serverStates.put(server, state);
+				}
+			}
+		} finally
+		{
+			try { in.close(); } catch(IOException e) { }
+		}
+	}
+	
+	/**
+	 * Returns the restored state of a Black Ops server. It is kept until
+	 * {@link #removeServerState(String)} is called, so a failed start can use it again.
+	 * @param server Label of the Black Ops server
+	 * @return the state to be passed to {@link BOTeamSwitcher#init(DataInput)} or {@code null}
+	 */
+	public synchronized DataInput getServerState(String server)
+	{
+		byte[] state = serverStates.get(server);
+		if(state == null)
+			return null;
+		return new DataInputStream(new ByteArrayInputStream(state));
+	}
+	
+	/**
+	 * Drops the restored state of a Black Ops server whose switcher has been started.
+	 * @param server Label of the Black Ops server
+	 */
+	public synchronized void removeServerState(String server)
+	{
+		serverStates.remove(server);
+	}
+	
+	/**
+	 * Writes the current state. The file is replaced atomically.
+	 * 
+	 * @throws IOException Will be thrown if the file can not be written.
+	 */
+	public synchronized void save() throws IOException
+	{
+		File tempFile = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			
+			out.writeInt(tsEndpoints.size());
+			for(TSEndpoint endpoint : tsEndpoints.values())
+			{
+				ByteArrayOutputStream state = new ByteArrayOutputStream();
+				DataOutputStream endpointOut = new DataOutputStream(state);
+				endpoint.getConnection().writeSnapshot(endpointOut);
+				endpoint.getMoveDispatcher().writeSnapshot(endpointOut);
+				out.writeUTF(endpoint.getName());
+				out.writeInt(state.size());
+				state.writeTo(out);
+			}
+			
+			HashMap<String, byte[]> states = new HashMap<String, byte[]>();
+			for(String server : manager.getRunningServers())
+			{
+				BOTeamSwitcher bbots = manager.getSwitcher(server);
+				if(bbots == null)
+					continue;
+				ByteArrayOutputStream state = new ByteArrayOutputStream();
+				bbots.writeSnapshot(new DataOutputStream(state));
+				states.put(server, state.toByteArray());
+			}
+			// states of servers which have not been started yet are kept
+			for(String server : serverStates.keySet())
+			{
+				if(!states.containsKey(server))
+					states.put(server, serverStates.get(server));
+			}
+			
+			out.writeInt(states.size());
+			for(String server : states.keySet())
+			{
+				out.writeUTF(server);
+				out.writeInt(states.get(server).length);
+				out.write(states.get(server));
+			}
+		} finally
+		{
+			out.close();
+		}
+		
+		if(!tempFile.renameTo(file))
+		{
+			file.delete();
+			if(!tempFile.renameTo(file))
+				throw new IOException("Snapshot file can not be replaced ("+file+").");
+		}
+	}
+	
+	/**
+	 * Enables the timer, which writes the snapshot periodically
+	 * @param interval timer period (milliseconds)
+	 */
+	public synchronized void enableTimer(long interval)
+	{
+		if(saveTimer != null)
+			return;
+		saveTimer = new Timer("StateSnapshot", true);
+		saveTimer.scheduleAtFixedRate(new TimerTask()
+		{
+			public void run()
+			{
+				try
+				{
+					save();
+				} catch (IOException e)
+				{
+					System.out.println("Error while trying to write snapshot: "+e.getMessage());
+				}
+			}
+		}, interval, interval);
+	}
+	
+	/**
+	 * Stops the timer. See {@link #enableTimer(long)}
+	 */
+	public synchronized void disableTimer()
+	{
+		if(saveTimer == null)
+			return;
+		saveTimer.cancel();
+		saveTimer = null;
+	}
+	
+	private static final int MAGIC = 0x62624f54; // "bbOT"
+	private static final int VERSION = 5;
+	
+	private File file;
+	private BOTeamSwitcherManager manager;
+	private Map<String, TSEndpoint> tsEndpoints;
+	private HashMap<String, byte[]> serverStates;
+	private Timer saveTimer;
+}
@@ -0,0 +1,414 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SwitcherTickBenchmark measures how much memory a switcher pass allocates in steady state
+ * and fails if it is more than {@link #MAX_BYTES_PER_TICK} bytes per pass.<br><br>
+ * Two {@link BOTeamSwitcher}s run against a TS server simulated in memory, so no network
+ * is needed. Three steady states are measured:
+ * <ul>
+ * <li><i>idle</i>: every player is in the channel of their team, the pass is skipped</li>
+ * <li><i>held</i>: every player has to be moved, but the team dwell time holds the moves</li>
+ * <li><i>full</i>: every player has to be moved, but the team channels are full</li>
+ * </ul>
+ * The allocations are taken from the HotSpot thread MX bean. If it is not available,
+ * only the time per pass is printed.<br>
+ * A third switcher checks that the team dwell time still holds the moves of players who flap
+ * between two teams (see {@link #checkFlapping(BOTeamSwitcher, GuidPresenceIndex)}).<br><br>
+ * 
+ * Command Line arguments: [passes] (default: 200000)
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class SwitcherTickBenchmark
+{
+	/**
+	 * Initializes all local data.
+	 * @param passes number of measured passes per steady state
+	 */
+	public SwitcherTickBenchmark(int passes)
+	{
+		this.passes = passes;
+		results = new ArrayList<String>();
+		failed = false;
+	}
+	
+	/**
+	 * Sets up the switchers and measures all steady states.
+	 * @throws IOException Will be thrown if the temporary configuration can not be written.
+	 * @throws SPropertiesException Will be thrown if the configuration is invalid.
+	 * @throws UserPropertiesException Will be thrown if the user file is invalid.
+	 * @throws BOTeamSwitcherException Will be thrown if a switcher can not be started.
+	 * @throws InterruptedException Will be thrown if the benchmark is interrupted while waiting for the dwell time.
+	 */
+	public void run() throws IOException, SPropertiesException, UserPropertiesException, BOTeamSwitcherException, InterruptedException
+	{
+		File configFile = File.createTempFile("bbots-benchmark", ".properties");
+		File userFile = File.createTempFile("bbots-benchmark-users", ".properties");
+		configFile.deleteOnExit();
+		userFile.deleteOnExit();
+		
+		// clients 0..PLAYERS-1 wait in the lobby of "Held", the others are in the team channels of "Full" and "Flap"
+		StringBuilder clients = new StringBuilder();
+		StringBuilder users = new StringBuilder();
+		for(int i=0;i<3*PLAYERS;++i)
+		{
+			String uid = new TSUid(new long[] { 0x0123456789abcdefL*(i+1), 0x7766554433221100L+i, i }).toString();
+			int channel = i < PLAYERS ? 10 : (i < 2*PLAYERS ? 21 : 31) + i%3;
+			if(i > 0)
+				clients.append('|');
+			clients.append("clid=").append(i+1).append(" cid=").append(channel)
+				.append(" client_nickname=Player").append(i).append(" client_type=0 client_unique_identifier=").append(uid);
+			users.append(GUID_BASE+i).append(" = ").append(uid).append('\n');
+		}
+		write(userFile, users.toString());
+		write(configFile,
+				"BOServerNames = Held Full Flap\n"+
+				"TSServerHost = 127.0.0.1\nTSServerPort = 10011\nTSVServerID = 1\n"+
+				"TSUsername = benchmark\nTSPassword = benchmark\n"+
+				"TSScanningInterval = 3600000\nTSReconcileInterval = 3600000\nBOMaxRosterAge = 0\nLogLevel = error\n"+
+				"Held.ListeningChannels = 10 11 12 13\nHeld.Team0 = 11\nHeld.Team1 = 12\nHeld.Team2 = 13\n"+
+				"Held.BOServerHost = 127.0.0.1\nHeld.BOServerPort = 9\nHeld.BOServerPassword = benchmark\n"+
+				"Held.BOScanningInterval = 3600000\nHeld.MinimumSwitchingPlayers = 1\nHeld.TeamDwellTime = 3600000\n"+
+				"Full.ListeningChannels = 20 21 22 23\nFull.Team0 = 21\nFull.Team1 = 22\nFull.Team2 = 23\n"+
+				"Full.BOServerHost = 127.0.0.1\nFull.BOServerPort = 9\nFull.BOServerPassword = benchmark\n"+
+				"Full.BOScanningInterval = 3600000\nFull.MinimumSwitchingPlayers = 1\n"+
+				"Flap.ListeningChannels = 30 31 32 33\nFlap.Team0 = 31\nFlap.Team1 = 32\nFlap.Team2 = 33\n"+
+				"Flap.BOServerHost = 127.0.0.1\nFlap.BOServerPort = 9\nFlap.BOServerPassword = benchmark\n"+
+				"Flap.BOScanningInterval = 3600000\nFlap.MinimumSwitchingPlayers = 1\nFlap.TeamDwellTime = "+FLAP_DWELL_TIME+"\n");
+		
+		SProperties sProperties = new SProperties(configFile.getPath());
+		sProperties.parseProperties();
+		Log.configure(sProperties.getLogLevel(), sProperties.getLogLevels(), sProperties.getLogRepeatInterval());
+		UserProperties userProperties = new UserProperties(userFile.getPath());
+		userProperties.parseUsers();
+		
+		TSConnection tsConnection = new TSConnection("127.0.0.1", 10011, "benchmark", "benchmark", 1, new SimulatedTransport(clients.toString()));
+		TSMoveDispatcher moveDispatcher = new TSMoveDispatcher(tsConnection, 50, Long.MAX_VALUE); // not started
+		BOHandoffStage handoffStage = new BOHandoffStage(true, 4);
+		BOHostResolver hostResolver = new BOHostResolver(sProperties.getBoHostTTL());
+		GuidPresenceIndex presenceIndex = new GuidPresenceIndex();
+		
+		BOTeamSwitcher held = new BOTeamSwitcher(sProperties, userProperties, tsConnection, moveDispatcher, handoffStage, hostResolver, presenceIndex, "Held");
+		BOTeamSwitcher full = new BOTeamSwitcher(sProperties, userProperties, tsConnection, moveDispatcher, handoffStage, hostResolver, presenceIndex, "Full");
+		BOTeamSwitcher flap = new BOTeamSwitcher(sProperties, userProperties, tsConnection, moveDispatcher, handoffStage, hostResolver, presenceIndex, "Flap");
+		held.init();
+		full.init();
+		flap.init();
+		try
+		{
+			// the players of "Held" are in the lobby, so all of them have to be moved
+			presenceIndex.update("Held", roster(0, 0), System.currentTimeMillis());
+			
+			presenceIndex.update("Full", roster(PLAYERS, 0), System.currentTimeMillis());
+			measure("idle", full, "switcher.Full.skippedTicks", false);
+			
+			measure("held", held, "switcher.Held.heldMoves", true);
+			
+			// every player is in the channel of the next team, whose channel is full
+			presenceIndex.update("Full", roster(PLAYERS, 1), System.currentTimeMillis());
+			measure("full", full, "switcher.Full.rejectedMoves", false);
+			
+			checkFlapping(flap, presenceIndex);
+		} finally
+		{
+			held.stopService();
+			full.stopService();
+			flap.stopService();
+			hostResolver.stop();
+		}
+	}
+	
+	/**
+	 * Runs the passes of one steady state and records the result
+	 * @param name name of the steady state
+	 * @param switcher the switcher
+	 * @param metric counter which has to grow with every pass, proving that the expected path has been taken
+	 * @param gauge true if <i>metric</i> is a gauge which has to count every player instead
+	 */
+	private void measure(String name, BOTeamSwitcher switcher, String metric, boolean gauge)
+	{
+		// the first pass applies the changes, the others are warm-up
+		for(int i=0;i<WARMUP;++i)
+			switcher.tick();
+		
+		long metricBefore = Metrics.get(metric);
+		long bytesBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for(int i=0;i<passes;++i)
+			switcher.tick();
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes() - bytesBefore;
+		long metricDelta = Metrics.get(metric) - metricBefore;
+		
+		StringBuilder result = new StringBuilder();
+		result.append(name).append(": ").append(nanos/passes).append(" ns/pass");
+		if(bytes >= 0)
+		{
+			double bytesPerPass = (double)(bytes - allocatedBytesOverhead()) / passes;
+			result.append(", ").append(String.format("%.3f", Double.valueOf(bytesPerPass))).append(" bytes/pass");
+			if(bytesPerPass > MAX_BYTES_PER_TICK)
+			{
+				result.append(" FAILED (limit: ").append(MAX_BYTES_PER_TICK).append(")");
+				failed = true;
+			}
+		}
+		if(gauge && Metrics.get(metric) < PLAYERS)
+		{
+			result.append(" FAILED (").append(metric).append(" is only ").append(Metrics.get(metric)).append(")");
+			failed = true;
+		}
+		else if(!gauge && metricDelta < passes)
+		{
+			result.append(" FAILED (").append(metric).append(" has only grown by ").append(metricDelta).append(")");
+			failed = true;
+		}
+		results.add(result.toString());
+	}
+	
+	/**
+	 * Lets every player of "Flap" flap between the team of their channel and the next team
+	 * and records if the moves are held as expected. A return to the stable team has to reset
+	 * the candidate team, so the next flap is held for the full dwell time again.
+	 * @param switcher the switcher of "Flap"
+	 * @param presenceIndex the index which passes the user lists to the switcher
+	 * @throws InterruptedException Will be thrown if the benchmark is interrupted while waiting for the dwell time.
+	 */
+	private void checkFlapping(BOTeamSwitcher switcher, GuidPresenceIndex presenceIndex) throws InterruptedException
+	{
+		// team offset of each step, whether the dwell time passes before it and the expected held moves afterwards
+		int[] teamOffsets = { 0, 0, 1, 0, 1, 1 };
+		boolean[] waits = { false, true, false, false, true, true };
+		int[] expectedHeld = { 0, 0, PLAYERS, 0, PLAYERS, 0 };
+		
+		StringBuilder result = new StringBuilder("flapping: held moves");
+		boolean ok = true;
+		for(int i=0;i<teamOffsets.length;++i)
+		{
+			if(waits[i])
+				Thread.sleep(2*FLAP_DWELL_TIME);
+			presenceIndex.update("Flap", roster(2*PLAYERS, teamOffsets[i]), System.currentTimeMillis());
+			switcher.tick();
+			long held = Metrics.get("switcher.Flap.heldMoves");
+			result.append(' ').append(held);
+			ok &= held == expectedHeld[i];
+		}
+		if(!ok)
+		{
+			result.append(" FAILED (expected: 0 0 ").append(PLAYERS).append(" 0 ").append(PLAYERS).append(" 0)");
+			failed = true;
+		}
+		results.add(result.toString());
+	}
+	
+	/**
+	 * Builds a Black Ops user list
+	 * @param first index of the first player
+	 * @param teamOffset added to the team of every player
+	 * @return users by GUID
+	 */
+	private static Map<Integer, BOUser> roster(int first, int teamOffset)
+	{
+		Map<Integer, BOUser> users = new HashMap<Integer, BOUser>();
+		for(int i=first;i<first+PLAYERS;++i)
+		{
+			BOUser user = new BOUser();
+			user.setId(i-first+1);
+			user.setGuid(GUID_BASE+i);
+			user.setTeam((i+teamOffset)%3);
+			users.put(user.getGuid(), user);
+		}
+		return users;
+	}
+	
+	/**
+	 * Returns the number of bytes allocated by the current thread so far
+	 * @return allocated bytes or -1 if the JVM does not count them
+	 */
+	private static long allocatedBytes()
+	{
+		try
+		{
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return ((Long)method.invoke(ManagementFactory.getThreadMXBean(), Long.valueOf(Thread.currentThread().getId()))).longValue();
+		} catch (Exception e)
+		{
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes allocated by {@link #allocatedBytes()} itself
+	 * @return allocated bytes
+	 */
+	private static long allocatedBytesOverhead()
+	{
+		allocatedBytes();
+		long first = allocatedBytes();
+		return allocatedBytes() - first;
+	}
+	
+	/**
+	 * Writes a text file
+	 * @param file destination
+	 * @param content text
+	 * @throws IOException Will be thrown if the file can not be written.
+	 */
+	private static void write(File file, String content) throws IOException
+	{
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			out.write(content);
+		} finally
+		{
+			out.close();
+		}
+	}
+	
+	/**
+	 * Returns the results of all steady states
+	 * @return one line per steady state
+	 */
+	public List<String> getResults()
+	{
+		return results;
+	}
+	
+	/**
+	 * Returns if a steady state has allocated too much or has not taken the expected path
+	 * @return true if the benchmark has failed
+	 */
+	public boolean hasFailed()
+	{
+		return failed;
+	}
+	
+	/**
+	 * Runs the benchmark. Exits with status 1 if it has failed.
+	 * @param args [passes]
+	 */
+	public static void main(String[] args)
+	{
+		int passes = 200000;
+		if(args.length > 0)
+		{
+			try
+			{
+				passes = Integer.parseInt(args[0]);
+			} catch (NumberFormatException e)
+			{
+				System.out.println("Usage: SwitcherTickBenchmark [passes]");
+				return;
+			}
+		}
+		
+		SwitcherTickBenchmark benchmark = new SwitcherTickBenchmark(passes);
+		try
+		{
+			benchmark.run();
+		} catch (Exception e)
+		{
+			System.out.println("Error while trying to run benchmark: "+e.getMessage());
+			Log.shutdown();
+			System.exit(1);
+		}
+		for(String result : benchmark.getResults())
+			System.out.println(result);
+		Log.shutdown();
+		System.exit(benchmark.hasFailed() ? 1 : 0);
+	}
+	
+	/**
+	 * TS server in memory: always returns the same client list and channels,
+	 * the team channels of "Full" and "Flap" do not take any clients.
+	 */
+	private static class SimulatedTransport implements TSQueryTransport
+	{
+		public SimulatedTransport(String clientList)
+		{
+			this.clientList = clientList;
+		}
+		
+		public void connect(String host, int port) { }
+		public void login(String username, String password) { }
+		public void selectVirtualServer(int virtualServer) { }
+		public void setDisplayName(String displayName) { }
+		public void close() { }
+		public void keepAlive() { }
+		public void moveClients(int[] clientIds, int count, int channelId, String password) { }
+		
+		public boolean isConnected()
+		{
+			return true;
+		}
+		
+		public String getRawClientList()
+		{
+			return clientList;
+		}
+		
+		public List<HashMap<String, String>> getChannelList()
+		{
+			List<HashMap<String, String>> channels = new ArrayList<HashMap<String, String>>();
+			for(int channelId : new int[] { 10, 11, 12, 13, 20, 21, 22, 23, 30, 31, 32, 33 })
+			{
+				HashMap<String, String> channel = new HashMap<String, String>();
+				channel.put("cid", String.valueOf(channelId));
+				channel.put("channel_name", "Channel "+channelId);
+				channel.put("total_clients", "0");
+				channel.put("channel_maxclients", channelId > 20 ? "0" : "-1");
+				channel.put("channel_flag_maxclients_unlimited", channelId > 20 ? "0" : "1");
+				channels.add(channel);
+			}
+			return channels;
+		}
+		
+		private String clientList;
+	}
+	
+	/**
+	 * Maximum average allocation of a pass in steady state
+	 */
+	public static final double MAX_BYTES_PER_TICK = 1.0;
+	
+	private static final int PLAYERS = 150;
+	private static final int GUID_BASE = 50000000;
+	private static final int WARMUP = 20000;
+	private static final long FLAP_DWELL_TIME = 200;
+	
+	private int passes;
+	private List<String> results;
+	private boolean failed;
+}
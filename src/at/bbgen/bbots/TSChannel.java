@@ -0,0 +1,110 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.Serializable;
+
+/**
+ * A TSChannel object represents a Teamspeak3 channel as seen by the last channel list.
+ * It is immutable, so cached instances can be handed out without copying them.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSChannel implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Initializes internal data with provided parameters.
+	 * @param channelId ID of the channel
+	 * @param channelName name of the channel
+	 * @param totalClients number of clients currently in the channel
+	 * @param maxClients maximum number of clients or -1 if unlimited
+	 * @param passwordProtected true if the channel has a password
+	 */
+	public TSChannel(int channelId, String channelName, int totalClients, int maxClients, boolean passwordProtected)
+	{
+		super();
+		this.channelId = channelId;
+		this.channelName = channelName;
+		this.totalClients = totalClients;
+		this.maxClients = maxClients;
+		this.passwordProtected = passwordProtected;
+	}
+	
+	/**
+	 * Returns the number of clients which can still join the channel
+	 * @return free slots or {@link Integer#MAX_VALUE} if the channel is unlimited
+	 */
+	public int getFreeSlots()
+	{
+		if(maxClients < 0)
+			return Integer.MAX_VALUE;
+		return Math.max(0, maxClients - totalClients);
+	}
+
+	public int getChannelId()
+	{
+		return channelId;
+	}
+
+	public String getChannelName()
+	{
+		return channelName;
+	}
+
+	public int getTotalClients()
+	{
+		return totalClients;
+	}
+
+	/**
+	 * Returns a copy of this channel with another number of clients
+	 * @param totalClients number of clients in the channel
+	 * @return the new channel
+	 */
+	public TSChannel withTotalClients(int totalClients)
+	{
+		return new TSChannel(channelId, channelName, totalClients, maxClients, passwordProtected);
+	}
+
+	public int getMaxClients()
+	{
+		return maxClients;
+	}
+
+	public boolean isPasswordProtected()
+	{
+		return passwordProtected;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "cid="+channelId+" name="+channelName+" clients="+totalClients+"/"+maxClients+(passwordProtected ? " password" : "");
+	}
+
+	private final int channelId;
+	private final String channelName;
+	private final int totalClients;
+	private final int maxClients;
+	private final boolean passwordProtected;
+}
@@ -0,0 +1,123 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+/**
+ * TSClientList is a compact, immutable client list of the TS3 server.<br><br>
+ * Client ID, channel ID and UID are stored in parallel arrays instead of one
+ * {@link TSUser} per client. Only clients with a UID are contained.
+ * See {@link TSClientListParser}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSClientList
+{
+	/**
+	 * Initializes the list. The arrays are used directly and must not be changed afterwards.
+	 * @param clientIds client IDs
+	 * @param channelIds channel IDs
+	 * @param uniqueIds unique IDs
+	 * @param size number of clients
+	 */
+	TSClientList(int[] clientIds, int[] channelIds, TSUid[] uniqueIds, int size)
+	{
+		this.clientIds = clientIds;
+		this.channelIds = channelIds;
+		this.uniqueIds = uniqueIds;
+		this.size = size;
+	}
+	
+	/**
+	 * Returns the number of clients
+	 * @return number of clients
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Returns the client ID of the client at <i>index</i>
+	 * @param index index of the client
+	 * @return client ID
+	 */
+	public int getClientId(int index)
+	{
+		return clientIds[index];
+	}
+	
+	/**
+	 * Returns the channel ID of the client at <i>index</i>
+	 * @param index index of the client
+	 * @return channel ID
+	 */
+	public int getChannelId(int index)
+	{
+		return channelIds[index];
+	}
+	
+	/**
+	 * Returns the unique ID of the client at <i>index</i>
+	 * @param index index of the client
+	 * @return unique ID
+	 */
+	public TSUid getUniqueId(int index)
+	{
+		return uniqueIds[index];
+	}
+	
+	/**
+	 * Creates a {@link TSUser} for the client at <i>index</i>
+	 * @param index index of the client
+	 * @return new TSUser instance
+	 */
+	public TSUser getUser(int index)
+	{
+		TSUser tsUser = new TSUser();
+		tsUser.setClientId(clientIds[index]);
+		tsUser.setChannelId(channelIds[index]);
+		tsUser.setClientUniqueId(uniqueIds[index]);
+		return tsUser;
+	}
+	
+	/**
+	 * Searches for a client
+	 * @param clientId client ID to search for
+	 * @return index of the client or -1 if it is not contained
+	 */
+	public int indexOf(int clientId)
+	{
+		for(int i=0;i<size;++i)
+		{
+			if(clientIds[i] == clientId)
+				return i;
+		}
+		return -1;
+	}
+	
+	/** An empty client list */
+	public static final TSClientList EMPTY = new TSClientList(new int[0], new int[0], new TSUid[0], 0);
+	
+	private final int[] clientIds;
+	private final int[] channelIds;
+	private final TSUid[] uniqueIds;
+	private final int size;
+}
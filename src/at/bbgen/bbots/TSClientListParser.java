@@ -0,0 +1,160 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.Arrays;
+
+/**
+ * TSClientListParser parses the raw reply of <i>clientlist -uid</i> into a {@link TSClientList}.<br><br>
+ * The reply is read in one pass without splitting it into strings or maps. Client ID and
+ * channel ID are parsed directly into reusable arrays. UIDs are decoded without creating
+ * strings, a {@link TSUid} is only created if the client at the same position of the
+ * previous list has another UID, otherwise its reference is reused. If the whole list is unchanged, the previous list is returned.<br><br>
+ * Not thread safe, {@link TSConnection} uses it while holding its lock.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSClientListParser
+{
+	/**
+	 * Initializes the reusable arrays
+	 */
+	public TSClientListParser()
+	{
+		clientIds = new int[64];
+		channelIds = new int[64];
+		uniqueIds = new TSUid[64];
+		uidBits = new long[3];
+	}
+	
+	/**
+	 * Parses a raw client list
+	 * @param reply raw reply, records separated by '|', properties separated by ' '
+	 * @param previous the previously parsed list
+	 * @return <i>previous</i> if nothing has changed, otherwise a new list
+	 * @throws TSConnectionException Will be thrown if a client has no or an invalid client ID or channel ID.
+	 */
+	public TSClientList parse(String reply, TSClientList previous) throws TSConnectionException
+	{
+		int size = 0;
+		int length = reply.length();
+		int pos = 0;
+		while(pos < length)
+		{
+			int clientId = -1;
+			int channelId = -1;
+			int uidStart = -1;
+			int uidEnd = -1;
+			
+			// one record
+			while(pos < length && reply.charAt(pos) != '|')
+			{
+				int end = pos;
+				while(end < length && reply.charAt(end) != ' ' && reply.charAt(end) != '|')
+					end++;
+				if(reply.startsWith("clid=", pos))
+					clientId = parseInt(reply, pos+5, end, "clientId");
+				else if(reply.startsWith("cid=", pos))
+					channelId = parseInt(reply, pos+4, end, "channelId");
+				else if(reply.startsWith("client_unique_identifier=", pos))
+				{
+					uidStart = pos+25;
+					uidEnd = end;
+				}
+				pos = end;
+				if(pos < length && reply.charAt(pos) == ' ')
+					pos++;
+			}
+			pos++;
+			
+			if(clientId == -1)
+				throw new TSConnectionException("Error while trying to get client list: some client does not have a client id.");
+			if(uidStart == -1 || !TSUid.decode(reply, uidStart, uidEnd, uidBits))
+				continue; // only add client if there is a UID
+			
+			if(size == clientIds.length)
+			{
+				clientIds = Arrays.copyOf(clientIds, size*2);
+				channelIds = Arrays.copyOf(channelIds, size*2);
+				uniqueIds = Arrays.copyOf(uniqueIds, size*2);
+			}
+			clientIds[size] = clientId;
+			channelIds[size] = channelId;
+			if(size < previous.size() && previous.getUniqueId(size).equalsBits(uidBits))
+				uniqueIds[size] = previous.getUniqueId(size);
+			else
+				uniqueIds[size] = new TSUid(uidBits);
+			size++;
+		}
+		
+		if(isUnchanged(previous, size))
+			return previous;
+		return new TSClientList(Arrays.copyOf(clientIds, size), Arrays.copyOf(channelIds, size), Arrays.copyOf(uniqueIds, size), size);
+	}
+	
+	/**
+	 * Compares the parsed clients with <i>previous</i>
+	 * @param previous the previously parsed list
+	 * @param size number of parsed clients
+	 * @return true if client IDs, channel IDs and UIDs are equal
+	 */
+	private boolean isUnchanged(TSClientList previous, int size)
+	{
+		if(previous.size() != size)
+			return false;
+		for(int i=0;i<size;++i)
+		{
+			if(clientIds[i] != previous.getClientId(i) || channelIds[i] != previous.getChannelId(i)
+					|| uniqueIds[i] != previous.getUniqueId(i))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Parses a non negative decimal number
+	 * @param s source
+	 * @param start first character
+	 * @param end end (exclusive)
+	 * @param name name of the value for the error message
+	 * @return the number
+	 * @throws TSConnectionException Will be thrown if the value is not a number.
+	 */
+	private static int parseInt(String s, int start, int end, String name) throws TSConnectionException
+	{
+		if(start >= end)
+			throw new TSConnectionException("Error while trying to convert "+name+" () to Integer.");
+		int value = 0;
+		for(int i=start;i<end;++i)
+		{
+			char c = s.charAt(i);
+			if(c < '0' || c > '9' || value > (Integer.MAX_VALUE-9)/10)
+				throw new TSConnectionException("Error while trying to convert "+name+" ("+s.substring(start, end)+") to Integer.");
+			value = value*10 + (c-'0');
+		}
+		return value;
+	}
+	
+	private int[] clientIds;
+	private int[] channelIds;
+	private TSUid[] uniqueIds;
+	private long[] uidBits;
+}
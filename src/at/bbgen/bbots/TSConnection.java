@@ -19,13 +19,11 @@
 
 package at.bbgen.bbots;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Vector;
-
-import at.bbgen.ejts3serverquery.EJTS3ServerQuery;
-import at.bbgen.ejts3serverquery.EJTS3ServerQueryException;
 
 
 /**
@@ -35,7 +33,12 @@ import at.bbgen.ejts3serverquery.EJTS3ServerQueryException;
  * connect(). Otherwise the current connection status is checked at the
  * beginning of every method and - if needed - a new connection is
  * established.<br>
- * Please use the disconnect() method to disconnect from the server.
+ * If a {@link TSSessionManager} is set, the session manager reconnects in the
+ * background instead and all methods fail immediately while the connection is down.<br>
+ * Please use the disconnect() method to disconnect from the server.<br>
+ * The tokens of the flood protection are taken before the lock of the connection,
+ * so a thread waiting for the flood protection does not block the other threads.<br>
+ * The ServerQuery protocol itself is implemented by a {@link TSQueryTransport}.
  * 
  * @author Bernhard Eder <bbots@bbgen.net>
  * 
@@ -46,6 +49,7 @@ public class TSConnection
 	 * Initializes all internal data structures and all libraries used for
 	 * connecting to the server.
 	 * It does NOT connect to the server (use connect()).
+	 * The EJTS3ServerQuery library is used as transport.
 	 * 
 	 * @param tsHost					Hostname or IP of the TS3 server. (e.g. example.com or 127.0.0.1)
 	 * @param tsPort					Serverquery Port of the TS3 server. (e.g. 10011)
@@ -54,6 +58,22 @@ public class TSConnection
 	 * @param tsVirtualServer	TS3 VServer ID
 	 */
 	public TSConnection(String tsHost, int tsPort, String tsUsername, String tsPassword, int tsVirtualServer)
+	{
+		this(tsHost, tsPort, tsUsername, tsPassword, tsVirtualServer, new EJTS3QueryTransport());
+	}
+	
+	/**
+	 * Initializes all internal data structures.
+	 * It does NOT connect to the server (use connect()).
+	 * 
+	 * @param tsHost					Hostname or IP of the TS3 server. (e.g. example.com or 127.0.0.1)
+	 * @param tsPort					Serverquery Port of the TS3 server. (e.g. 10011)
+	 * @param tsUsername			Username of the TS3 Serverquery Account
+	 * @param tsPassword			Password of the TS3 Serverquery Account
+	 * @param tsVirtualServer	TS3 VServer ID
+	 * @param transport				ServerQuery transport to be used
+	 */
+	public TSConnection(String tsHost, int tsPort, String tsUsername, String tsPassword, int tsVirtualServer, TSQueryTransport transport)
 	{
 		super();
 		this.tsHost = tsHost;
@@ -62,7 +82,81 @@ public class TSConnection
 		this.tsPassword = tsPassword;
 		this.tsVirtualServer = tsVirtualServer;
 		
-		ts3Query = new EJTS3ServerQuery();
+		ts3Query = transport;
+		floodBucket = null;
+		channels = null;
+		channelsUpdated = 0;
+		channelRefreshInterval = 300000;
+		channelPasswords = new IntObjectMap<String>();
+		moveBuffer = new int[64];
+		lastClientList = TSClientList.EMPTY;
+		clientListParser = new TSClientListParser();
+		setMetricPrefix("ts");
+	}
+	
+	/**
+	 * Sets the prefix of the metrics of this connection (default: ts).
+	 * @param prefix metric prefix without trailing dot, e.g. ts.&lt;endpoint&gt;
+	 */
+	public synchronized void setMetricPrefix(String prefix)
+	{
+		failedFastMetric = prefix+".failedFast";
+		channelListRefreshesMetric = prefix+".channelListRefreshes";
+	}
+	
+	/**
+	 * Sets how often the cached channel list is refreshed.
+	 * @param channelRefreshInterval refresh interval in milliseconds
+	 */
+	public synchronized void setChannelRefreshInterval(long channelRefreshInterval)
+	{
+		this.channelRefreshInterval = channelRefreshInterval;
+	}
+	
+	/**
+	 * Sets the password of a channel. It will be used for all moves into
+	 * this channel if the channel is password protected.
+	 * @param channelId ID of the channel
+	 * @param password password of the channel
+	 */
+	public synchronized void setChannelPassword(int channelId, String password)
+	{
+		channelPasswords.put(channelId, password);
+	}
+	
+	/**
+	 * Sets the token bucket used to respect the flood protection of the TS3 server.
+	 * Every ServerQuery command takes one token.
+	 * 
+	 * @param floodBucket token bucket or {@code null} to send commands without limit
+	 */
+	public synchronized void setFloodBucket(TokenBucket floodBucket)
+	{
+		this.floodBucket = floodBucket;
+	}
+	
+	/**
+	 * Waits until <i>count</i> ServerQuery commands may be sent.
+	 * Must not be called while holding the lock of this connection.
+	 * 
+	 * @param count number of commands
+	 * @throws TSConnectionException Will be thrown if the thread is interrupted while waiting.
+	 */
+	private void acquireCommands(int count) throws TSConnectionException
+	{
+		lastCommandTime = System.currentTimeMillis();
+		TokenBucket floodBucket = this.floodBucket;
+		if(floodBucket == null)
+			return;
+		try
+		{
+			for(int i=0;i<count;++i)
+				floodBucket.acquire();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new TSConnectionException("Interrupted while waiting for the flood protection.");
+		}
 	}
 	
 	/**
@@ -72,21 +166,161 @@ public class TSConnection
 	 * 
 	 * @throws TSConnectionException	Will be thrown if any error occurred. (e.g. host not reachable, login data invalid, vserver not selectable, display name not settable)
 	 */
-	public synchronized void connect() throws TSConnectionException
+	public void connect() throws TSConnectionException
+	{
+		acquireCommands(4);
+		synchronized(this)
+		{
+			login();
+		}
+	}
+	
+	/**
+	 * Closes the current connection and connects again (see {@link #connect()}).
+	 * It is called by the {@link TSSessionManager} while the session is down. The
+	 * transport is only used while holding the lock of this connection, because it is
+	 * not thread-safe. Other threads are not blocked by the reconnect: they check the
+	 * session before taking the lock and fail immediately until the session is up again.
+	 * 
+	 * @throws TSConnectionException Will be thrown if the connection can not be established.
+	 */
+	public void reconnect() throws TSConnectionException
+	{
+		acquireCommands(4);
+		// waits for a command which has been started before the session was lost
+		synchronized(this)
+		{
+			try
+			{
+				ts3Query.close();
+			} catch (TSQueryException e) { }
+			login();
+			invalidateChannels();
+		}
+	}
+	
+	/**
+	 * Connects, logs in, selects the TS3 VServer and sets the display name.
+	 * The caller has to acquire the four commands (see {@link #acquireCommands(int)}).
+	 * 
+	 * @throws TSConnectionException Will be thrown if any step fails.
+	 */
+	private void login() throws TSConnectionException
 	{
 		try
 		{
-			ts3Query.connectTS3Query(tsHost, tsPort);
-			ts3Query.loginTS3(tsUsername, tsPassword);
+			ts3Query.connect(tsHost, tsPort);
+			ts3Query.login(tsUsername, tsPassword);
 			ts3Query.selectVirtualServer(tsVirtualServer);
 			ts3Query.setDisplayName("bblack ops team switcher");
-		} catch(EJTS3ServerQueryException e)
+		} catch(TSQueryException e)
 		{
 			throw new TSConnectionException("Error while trying to connect to TS3 server: "+e.getMessage());
 		}
 		
 	}
 
+	/**
+	 * Sets the session manager which keeps the connection alive and reconnects in the background.
+	 * @param session session manager or {@code null} to reconnect on demand
+	 */
+	public synchronized void setSessionManager(TSSessionManager session)
+	{
+		this.session = session;
+	}
+	
+	/**
+	 * Returns when the last ServerQuery command has been sent
+	 * @return time in milliseconds
+	 */
+	public long getLastCommandTime()
+	{
+		return lastCommandTime;
+	}
+	
+	/**
+	 * Sends a keepalive command (see {@link TSQueryTransport#keepAlive()}).
+	 * 
+	 * @throws TSConnectionException Will be thrown if the server does not answer.
+	 */
+	public void keepAlive() throws TSConnectionException
+	{
+		ensureConnected();
+		acquireCommands(1);
+		synchronized(this)
+		{
+			try
+			{
+				ts3Query.keepAlive();
+			} catch (TSQueryException e)
+			{
+				throw new TSConnectionException("Error while trying to send keepalive: "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure that the connection is established before a command is sent.
+	 * Without session manager, a new connection is established if needed.
+	 * Must not be called while holding the lock of this connection.
+	 * 
+	 * @throws TSConnectionException Will be thrown if there is no connection.
+	 */
+	private void ensureConnected() throws TSConnectionException
+	{
+		if(ts3Query == null)
+			throw new TSConnectionException("ts3query == null");
+		
+		// checked before taking the lock, which is held during a reconnect
+		TSSessionManager session = this.session;
+		if(session != null && !session.isUp())
+		{
+			Metrics.increment(failedFastMetric);
+			throw new TSConnectionException("Not connected to the TS3 server (reconnecting).");
+		}
+		
+		boolean connected;
+		synchronized(this)
+		{
+			connected = ts3Query.isConnected();
+		}
+		if(session == null)
+		{
+			if(!connected)
+			{
+				acquireCommands(4);
+				synchronized(this)
+				{
+					// another thread may have connected in the meantime
+					if(!ts3Query.isConnected())
+						login();
+				}
+			}
+			return;
+		}
+		if(session.isUp() && !connected)
+			session.connectionLost("connection closed");
+		if(!session.isUp())
+		{
+			Metrics.increment(failedFastMetric);
+			throw new TSConnectionException("Not connected to the TS3 server (reconnecting).");
+		}
+	}
+	
+	/**
+	 * Informs the session manager about a failed command, so a dead connection is noticed early.
+	 * Must be called while holding the lock of this connection.
+	 */
+	private void commandFailed()
+	{
+		if(session == null)
+			return;
+		if(!ts3Query.isConnected())
+			session.connectionLost("connection closed");
+		else
+			session.checkConnection();
+	}
+	
 	/**
 	 * Disconnects from the TS3 Server.
 	 * 
@@ -98,8 +332,8 @@ public class TSConnection
 			throw new TSConnectionException("Error while trying to disconnect: ts3Query == null");
 		try
 		{
-			ts3Query.closeTS3Connection();
-		} catch (EJTS3ServerQueryException e)
+			ts3Query.close();
+		} catch (TSQueryException e)
 		{
 			throw new TSConnectionException("Error while trying to disconnect: "+e.getMessage());
 		}
@@ -112,78 +346,177 @@ public class TSConnection
 	 * @return list of all clients connected to the TS3 Server
 	 * @throws TSConnectionException Will be thrown if the client list can not be retrieved or if the server sends illegal characters.
 	 */
-	public synchronized List<TSUser> getClientList() throws TSConnectionException
+	public TSClientList getClientList() throws TSConnectionException
 	{
-		if(ts3Query == null)
-			throw new TSConnectionException("ts3query == null");
-		
-		if(!ts3Query.isConnected())
-			connect();
-		
-		LinkedList<TSUser> tsUserList = new LinkedList<TSUser>();
-		
-		Vector<HashMap<String, String>> dataClientList;
-		try
-		{
-			dataClientList = ts3Query.getList(EJTS3ServerQuery.LISTMODE_CLIENTLIST, "-uid");
-		} catch (EJTS3ServerQueryException e1)
-		{
-			throw new TSConnectionException("Error while trying to get client list: "+e1.getMessage());
-		}
-		if(dataClientList  == null)
-			throw new TSConnectionException("Error while trying to get client list.");
-		
-		for(HashMap<String, String> user : dataClientList)
+		ensureConnected();
+		acquireCommands(1);
+		synchronized(this)
 		{
-			TSUser tsUser = new TSUser();
-			
-			String sClientId = user.get("clid");
-			if(sClientId == null)
-				throw new TSConnectionException("Error while trying to get client list: some client does not have a client id.");
-			int clientId;
+			String reply;
 			try
 			{
-				clientId = Integer.parseInt(sClientId);
-			} catch(NumberFormatException e)
+				reply = ts3Query.getRawClientList();
+			} catch (TSQueryException e1)
 			{
-				throw new TSConnectionException("Error while trying to convert clientId ("+sClientId+") to Integer: "+e.getMessage());
+				commandFailed();
+				throw new TSConnectionException("Error while trying to get client list: "+e1.getMessage());
 			}
-			tsUser.setClientId(clientId);
+			if(reply == null)
+				throw new TSConnectionException("Error while trying to get client list.");
 			
-			String sClientNickname = user.get("client_nickname");
-			if(sClientNickname != null)
+			TSClientList clients = clientListParser.parse(reply, lastClientList);
+			setLastClientList(clients);
+			return clients;
+		}
+	}
+	
+	/**
+	 * Returns the version of the client list. It is incremented whenever a retrieved
+	 * client list differs from the previous one in client ID, channel or UID.
+	 * To get a client list and its version consistently, call {@link #getCachedClientList()}
+	 * and this method while synchronized on this connection.
+	 * @return version of the last retrieved client list
+	 */
+	public synchronized long getClientListVersion()
+	{
+		return clientListVersion;
+	}
+	
+	/**
+	 * Stores the last client list and increments its version if it has changed
+	 * @param clients new client list, the same instance if unchanged (see {@link TSClientListParser})
+	 */
+	private void setLastClientList(TSClientList clients)
+	{
+		if(clients != lastClientList || clientListVersion == 0)
+			clientListVersion++;
+		lastClientList = clients;
+	}
+	
+	/**
+	 * Returns the cached data of a channel. The channel list is retrieved
+	 * again if it is older than the channel refresh interval or if it has been
+	 * invalidated (see {@link #invalidateChannels()}).<br>
+	 * The cached instance is returned, it is immutable and does not see later changes.
+	 * 
+	 * @param channelId ID of the channel
+	 * @return the channel or {@code null} if it does not exist
+	 * @throws TSConnectionException Will be thrown if the channel list can not be retrieved.
+	 */
+	public TSChannel getChannel(int channelId) throws TSConnectionException
+	{
+		IntObjectMap<TSChannel> current;
+		synchronized(this)
+		{
+			current = channels;
+			if(current != null && System.currentTimeMillis() - channelsUpdated > channelRefreshInterval)
+				current = null;
+		}
+		if(current == null)
+			current = refreshChannels();
+		
+		// channels are immutable, a cached one is replaced when its client count changes
+		synchronized(this)
+		{
+			return current.get(channelId);
+		}
+	}
+	
+	/**
+	 * Returns the password to be used for moves into a channel
+	 * 
+	 * @param channel the channel
+	 * @return the configured password or {@code null} if the channel is not password protected or no password is configured
+	 */
+	public synchronized String getChannelPassword(TSChannel channel)
+	{
+		if(!channel.isPasswordProtected())
+			return null;
+		return channelPasswords.get(channel.getChannelId());
+	}
+	
+	/**
+	 * Invalidates the cached channel list, e.g. because a move has failed.
+	 * It will be retrieved again on the next call of {@link #getChannel(int)}.
+	 */
+	public synchronized void invalidateChannels()
+	{
+		channels = null;
+	}
+	
+	/**
+	 * Retrieves the channel list and replaces the cached one.
+	 * Must not be called while holding the lock of this connection.
+	 * 
+	 * @return the new channel list
+	 * @throws TSConnectionException Will be thrown if the channel list can not be retrieved.
+	 */
+	private IntObjectMap<TSChannel> refreshChannels() throws TSConnectionException
+	{
+		ensureConnected();
+		
+		List<HashMap<String, String>> dataChannelList;
+		acquireCommands(1);
+		synchronized(this)
+		{
+			try
 			{
-				tsUser.setClientNickname(sClientNickname);
-			}
-			
-			String sClientUID = user.get("client_unique_identifier");
-			if(sClientUID != null)
+				dataChannelList = ts3Query.getChannelList();
+			} catch (TSQueryException e)
 			{
-				tsUser.setClientUniqueId(sClientUID);
+				commandFailed();
+				throw new TSConnectionException("Error while trying to get channel list: "+e.getMessage());
 			}
-			
-			String sChannelID = user.get("cid");
-			if(sChannelID != null)
+		}
+		
+		IntObjectMap<TSChannel> newChannels = new IntObjectMap<TSChannel>();
+		for(HashMap<String, String> channel : dataChannelList)
+		{
+			try
 			{
-				int channelId;
-				try
-				{
-					channelId = Integer.parseInt(sChannelID);
-				} catch(NumberFormatException e)
-				{
-					throw new TSConnectionException("Error while trying to convert channelId ("+sChannelID+") to Integer: "+e.getMessage());
-				}
-				tsUser.setChannelId(channelId);
-			}
-			
-			
-			if(sClientUID != null && sClientUID.length() == 28) // only add client if there is a UID
+				int channelId = Integer.parseInt(channel.get("cid"));
+				String sTotalClients = channel.get("total_clients");
+				String sMaxClients = channel.get("channel_maxclients");
+				int totalClients = sTotalClients != null ? Integer.parseInt(sTotalClients) : 0;
+				int maxClients = sMaxClients != null ? Integer.parseInt(sMaxClients) : -1;
+				if("1".equals(channel.get("channel_flag_maxclients_unlimited")))
+					maxClients = -1;
+				boolean password = "1".equals(channel.get("channel_flag_password"));
+				newChannels.put(channelId, new TSChannel(channelId, channel.get("channel_name"), totalClients, maxClients, password));
+			} catch (NumberFormatException e)
 			{
-				tsUserList.add(tsUser);
+				throw new TSConnectionException("Error while trying to convert channel list: "+e.getMessage());
 			}
 		}
-		
-		return tsUserList;
+		synchronized(this)
+		{
+			channels = newChannels;
+			channelsUpdated = System.currentTimeMillis();
+		}
+		Metrics.increment(channelListRefreshesMetric);
+		return newChannels;
+	}
+	
+	/**
+	 * Updates the cached client counts after a successful move.
+	 * Must be called while holding the lock of this connection.
+	 * 
+	 * @param tsUsers the moved users
+	 * @param channelId the ID of the destination channel
+	 */
+	private void updateChannelCounts(List<TSUser> tsUsers, int channelId)
+	{
+		if(channels == null)
+			return;
+		for(TSUser tsUser : tsUsers)
+		{
+			TSChannel from = channels.get(tsUser.getChannelId());
+			if(from != null)
+				channels.put(from.getChannelId(), from.withTotalClients(Math.max(0, from.getTotalClients() - 1)));
+			TSChannel to = channels.get(channelId);
+			if(to != null)
+				channels.put(channelId, to.withTotalClients(to.getTotalClients() + 1));
+		}
 	}
 	
 	/**
@@ -194,27 +527,29 @@ public class TSConnection
 	 * @param password	the password of the destination channel or {@code null} if no password needed.
 	 * @throws TSConnectionException Will be thrown if at least one user could not be moved.
 	 */
-	public synchronized void moveUserList(List<TSUser> tsUsers, int channelId, String password) throws TSConnectionException
+	public void moveUserList(List<TSUser> tsUsers, int channelId, String password) throws TSConnectionException
 	{
-		if(ts3Query == null)
-			throw new TSConnectionException("ts3query == null");
-		
-		if(!ts3Query.isConnected())
-			connect();
-		
-		
-		List<Integer> clientIDs = new LinkedList<Integer>();
-		for(TSUser tsUser : tsUsers)
-			clientIDs.add(tsUser.getClientId());
-
-		try
+		ensureConnected();
+		acquireCommands(1);
+		synchronized(this)
 		{
-			ts3Query.moveClientList(clientIDs, channelId, password);
-		} catch(EJTS3ServerQueryException e)
-		{
-			throw new TSConnectionException("Warning: Error while trying to move clients: "+e.getMessage());
+			if(moveBuffer.length < tsUsers.size())
+				moveBuffer = new int[Math.max(tsUsers.size(), moveBuffer.length*2)];
+			int count = 0;
+			for(TSUser tsUser : tsUsers)
+				moveBuffer[count++] = tsUser.getClientId();
+			
+			try
+			{
+				ts3Query.moveClients(moveBuffer, count, channelId, password);
+			} catch(TSQueryException e)
+			{
+				commandFailed();
+				invalidateChannels();
+				throw new TSConnectionException("Warning: Error while trying to move clients: "+e.getMessage());
+			}
+			updateChannelCounts(tsUsers, channelId);
 		}
-		
 	}
 	
 	/**
@@ -225,21 +560,106 @@ public class TSConnection
 	 * @param password	the password of the destination channel or {@code null} if no password needed.
 	 * @throws TSConnectionException Will be thrown if the user could not be moved.
 	 */
-	public synchronized void moveUser(TSUser tsUser, int channelId, String password) throws TSConnectionException
+	public void moveUser(TSUser tsUser, int channelId, String password) throws TSConnectionException
 	{
-		if(ts3Query == null)
-			throw new TSConnectionException("ts3query == null");
-		
-		if(!ts3Query.isConnected())
-			connect();
+		ensureConnected();
+		acquireCommands(1);
+		synchronized(this)
+		{
+			try
+			{
+				moveBuffer[0] = tsUser.getClientId();
+				ts3Query.moveClients(moveBuffer, 1, channelId, password);
+			} catch(TSQueryException e)
+			{
+				commandFailed();
+				invalidateChannels();
+				Log.warn("ts", "Error while trying to move client {}: {}", Integer.valueOf(tsUser.getClientId()), e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the client list retrieved by the last call of {@link #getClientList()}
+	 * @return list of clients (do not modify)
+	 */
+	public synchronized TSClientList getCachedClientList()
+	{
+		return lastClientList;
+	}
+	
+	/**
+	 * Writes the cached channel list and client list (see {@link StateSnapshot})
+	 * @param out destination
+	 * @throws IOException Will be thrown if the lists can not be written.
+	 */
+	public synchronized void writeSnapshot(DataOutput out) throws IOException
+	{
+		if(channels == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			out.writeInt(channels.size());
+			out.writeLong(channelsUpdated);
+			for(int slot=0;slot<channels.capacity();++slot)
+			{
+				TSChannel channel = channels.valueAt(slot);
+				if(channel == null)
+					continue;
+				out.writeInt(channel.getChannelId());
+				out.writeUTF(channel.getChannelName() != null ? channel.getChannelName() : "");
+				out.writeInt(channel.getTotalClients());
+				out.writeInt(channel.getMaxClients());
+				out.writeBoolean(channel.isPasswordProtected());
+			}
+		}
 		
-		try
+		out.writeInt(lastClientList.size());
+		for(int i=0;i<lastClientList.size();++i)
 		{
-			ts3Query.moveClient(tsUser.getClientId(), channelId, password);
-		} catch(EJTS3ServerQueryException e)
+			out.writeInt(lastClientList.getClientId(i));
+			out.writeInt(lastClientList.getChannelId(i));
+			out.writeUTF(lastClientList.getUniqueId(i).toString());
+		}
+	}
+	
+	/**
+	 * Restores the lists written by {@link #writeSnapshot(DataOutput)}
+	 * @param in source
+	 * @throws IOException Will be thrown if the lists can not be read.
+	 */
+	public synchronized void readSnapshot(DataInput in) throws IOException
+	{
+		int channelCount = in.readInt();
+		if(channelCount >= 0)
+		{
+			long updated = in.readLong();
+			IntObjectMap<TSChannel> newChannels = new IntObjectMap<TSChannel>();
+			for(int i=0;i<channelCount;++i)
+			{
+				TSChannel channel = new TSChannel(in.readInt(), in.readUTF(), in.readInt(), in.readInt(), in.readBoolean());
+				newChannels.put(channel.getChannelId(), channel);
+			}
+			channels = newChannels;
+			channelsUpdated = updated;
+		}
+		
+		int clientCount = in.readInt();
+		int[] clientIds = new int[clientCount];
+		int[] channelIds = new int[clientCount];
+		TSUid[] uniqueIds = new TSUid[clientCount];
+		int size = 0;
+		for(int i=0;i<clientCount;++i)
 		{
-			System.out.println("Warning: Error while trying to move client "+tsUser.getClientNickname()+" to channel "+channelId+": "+e.getMessage());
+			clientIds[size] = in.readInt();
+			channelIds[size] = in.readInt();
+			uniqueIds[size] = TSUid.parse(in.readUTF());
+			if(uniqueIds[size] != null)
+				size++;
 		}
+		setLastClientList(new TSClientList(clientIds, channelIds, uniqueIds, size));
 	}
 	
 	/**
@@ -265,7 +685,20 @@ public class TSConnection
 		return error;
 	}*/
 
-	private EJTS3ServerQuery ts3Query;
+	private TSQueryTransport ts3Query;
+	private volatile TSSessionManager session;
+	private volatile long lastCommandTime;
+	private volatile TokenBucket floodBucket;
+	private IntObjectMap<TSChannel> channels;
+	private long channelsUpdated;
+	private long channelRefreshInterval;
+	private IntObjectMap<String> channelPasswords;
+	private int[] moveBuffer;
+	private TSClientList lastClientList;
+	private TSClientListParser clientListParser;
+	private long clientListVersion;
+	private volatile String failedFastMetric;
+	private volatile String channelListRefreshesMetric;
 	private String tsHost;
 	private int tsPort;
 	
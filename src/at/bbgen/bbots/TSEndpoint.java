@@ -0,0 +1,132 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+/**
+ * TSEndpoint holds everything needed to talk to one TS3 virtual server:
+ * its {@link TSConnection}, the {@link TSSessionManager} keeping it alive and the
+ * {@link TSMoveDispatcher} sending the moves.<br><br>
+ * Every endpoint has its own ServerQuery session, because the flood protection of
+ * the TS3 server applies to each session. All endpoints share the Black Ops side,
+ * i.e. the switchers, the handoff stage and the metrics.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSEndpoint
+{
+	/**
+	 * Creates the connection of the endpoint. Does not connect.
+	 * @param config configuration of the endpoint
+	 * @param sProperties settings shared by all endpoints (transport, flood protection, ...)
+	 */
+	public TSEndpoint(TSEndpointConfig config, SProperties sProperties)
+	{
+		this.config = config;
+		this.sProperties = sProperties;
+		
+		TSQueryTransport transport;
+		if(sProperties.getTsTransport().equals("nio"))
+			transport = new NIOQueryTransport(sProperties.getTsCommandTimeout());
+		else
+			transport = new EJTS3QueryTransport();
+		connection = new TSConnection(config.getHost(), config.getPort(), config.getUsername(), config.getPassword(), config.getVirtualServer(), transport);
+		connection.setMetricPrefix(TSEndpointConfig.getMetricPrefix("ts", config.getName()));
+		connection.setFloodBucket(new TokenBucket(sProperties.getTsFloodCommands(), sProperties.getTsFloodTime(), sProperties.getTsFloodBurst()));
+		connection.setChannelRefreshInterval(sProperties.getTsChannelRefreshInterval());
+		moveDispatcher = new TSMoveDispatcher(connection, config.getName(), sProperties.getTsMoveBatchSize(), 2L*sProperties.getTsScanInterval());
+	}
+	
+	/**
+	 * Connects to the TS3 server and starts the session manager and the move dispatcher.
+	 * If the first connect fails, the threads are started anyway and the session manager
+	 * keeps connecting in the background.
+	 * @throws TSConnectionException Will be thrown if the first connect fails.
+	 */
+	public void start() throws TSConnectionException
+	{
+		session = new TSSessionManager(connection, config.getName(), sProperties.getTsKeepaliveInterval(), sProperties.getTsReconnectMaxBackoff());
+		connection.setSessionManager(session);
+		TSConnectionException error = null;
+		try
+		{
+			connection.connect();
+		} catch (TSConnectionException e)
+		{
+			session.connectionLost(e.getMessage());
+			error = e;
+		}
+		session.start();
+		moveDispatcher.start();
+		if(error != null)
+			throw error;
+	}
+	
+	/**
+	 * Stops the move dispatcher and the session manager and disconnects.
+	 * Waiting moves are dropped.
+	 */
+	public void stop()
+	{
+		moveDispatcher.stopDispatcher();
+		if(session != null)
+			session.stopSession();
+		try
+		{
+			connection.disconnect();
+		} catch (TSConnectionException e)
+		{
+			System.out.println("Error while trying to disconnect from the TS3 server "+config.getName()+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the name of this endpoint
+	 * @return name of the endpoint (see {@link TSEndpointConfig#getName()})
+	 */
+	public String getName()
+	{
+		return config.getName();
+	}
+	
+	/**
+	 * Returns the connection of this endpoint
+	 * @return connection to the TS3 virtual server
+	 */
+	public TSConnection getConnection()
+	{
+		return connection;
+	}
+	
+	/**
+	 * Returns the move dispatcher of this endpoint
+	 * @return dispatcher which sends the moves to the TS3 virtual server
+	 */
+	public TSMoveDispatcher getMoveDispatcher()
+	{
+		return moveDispatcher;
+	}
+	
+	private TSEndpointConfig config;
+	private SProperties sProperties;
+	private TSConnection connection;
+	private TSSessionManager session;
+	private TSMoveDispatcher moveDispatcher;
+}
@@ -0,0 +1,129 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+/**
+ * TSEndpointConfig is the immutable configuration of one TS3 virtual server.<br><br>
+ * The endpoint {@link #DEFAULT} is configured by the global TS settings (TSServerHost, ...),
+ * further endpoints are listed in TSServers and configured by &lt;name&gt;.TSServerHost, ...
+ * A Black Ops server selects its endpoint with &lt;server&gt;.TSServer.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public final class TSEndpointConfig
+{
+	/**
+	 * Initializes all data.
+	 * @param name name of the endpoint
+	 * @param host Hostname or IP of the TS3 server
+	 * @param port ServerQuery port
+	 * @param virtualServer TS3 VServer ID
+	 * @param username ServerQuery username
+	 * @param password ServerQuery password
+	 */
+	public TSEndpointConfig(String name, String host, int port, int virtualServer, String username, String password)
+	{
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.virtualServer = virtualServer;
+		this.username = username;
+		this.password = password;
+	}
+	
+	/**
+	 * Returns the prefix of the metrics of an endpoint, e.g. "ts" for the default
+	 * endpoint and "ts.&lt;name&gt;" for the others, so single server setups keep their metric names.
+	 * @param base prefix used by the default endpoint
+	 * @param name name of the endpoint
+	 * @return metric prefix without trailing dot
+	 */
+	public static String getMetricPrefix(String base, String name)
+	{
+		return DEFAULT.equals(name) ? base : base+"."+name;
+	}
+	
+	/**
+	 * Returns the name of the endpoint, referenced by &lt;server&gt;.TSServer
+	 * @return name of the endpoint
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Returns the host of the TS3 server
+	 * @return Hostname or IP of the TS3 server
+	 */
+	public String getHost()
+	{
+		return host;
+	}
+	
+	/**
+	 * Returns the ServerQuery port
+	 * @return ServerQuery port of the TS3 server
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+	
+	/**
+	 * Returns the TS3 VServer ID
+	 * @return ID of the virtual server
+	 */
+	public int getVirtualServer()
+	{
+		return virtualServer;
+	}
+	
+	/**
+	 * Returns the ServerQuery username
+	 * @return username of the ServerQuery account
+	 */
+	public String getUsername()
+	{
+		return username;
+	}
+	
+	/**
+	 * Returns the ServerQuery password
+	 * @return password of the ServerQuery account
+	 */
+	public String getPassword()
+	{
+		return password;
+	}
+	
+	/**
+	 * Name of the endpoint configured by the global TS settings
+	 */
+	public static final String DEFAULT = "default";
+	
+	private final String name;
+	private final String host;
+	private final int port;
+	private final int virtualServer;
+	private final String username;
+	private final String password;
+}
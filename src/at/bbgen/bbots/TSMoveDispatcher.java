@@ -0,0 +1,442 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * TSMoveDispatcher queues the moves of all {@link BOTeamSwitcher}s in front of
+ * the {@link TSConnection}.<br><br>
+ * Moves are sent by the dispatcher thread, so the ServerQuery flood
+ * protection (see {@link TokenBucket}) does not stall the switchers.
+ * Every Black Ops server has its own queue (see {@link MoveClass}). While several
+ * queues are waiting, the ServerQuery commands are shared between them in proportion
+ * to their weights (stride scheduling): a queue with weight 3 gets three commands for
+ * every command of a queue with weight 1, so a busy server can not delay an important one.
+ * Within a queue, the client which has been waiting longest is always moved first, together
+ * with all other waiting clients of the queue which have the same destination channel,
+ * so one ServerQuery command moves as many clients as possible.<br>
+ * If a client is submitted again while it is still waiting, only its destination
+ * (and queue) is updated. Moves which have not been submitted again within <i>maxPendingAge</i>
+ * milliseconds are dropped, because the next switcher tick will decide again.<br><br>
+ * Metrics of each queue: switcher.&lt;server&gt;.dispatchedMoves, .moveWaitMillis (sum of the
+ * waiting times of all dispatched moves), .lastMaxMoveWaitMillis and .failedMoves.
+ * Moves whose command has failed are only counted as failedMoves.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSMoveDispatcher extends Thread
+{
+	/**
+	 * Initializes all local data, but does not start the dispatcher thread.
+	 * @param tsConnection connection to the TS server
+	 * @param maxBatchSize maximum number of clients moved by one command
+	 * @param maxPendingAge time (milliseconds) after which a waiting move is dropped
+	 */
+	public TSMoveDispatcher(TSConnection tsConnection, int maxBatchSize, long maxPendingAge)
+	{
+		this(tsConnection, TSEndpointConfig.DEFAULT, maxBatchSize, maxPendingAge);
+	}
+	
+	/**
+	 * Initializes all local data, but does not start the dispatcher thread.
+	 * The metrics of endpoints other than {@link TSEndpointConfig#DEFAULT}
+	 * are prefixed with dispatcher.&lt;endpoint&gt;.
+	 * @param tsConnection connection to the TS server
+	 * @param name name of the TS endpoint, used for metrics and messages
+	 * @param maxBatchSize maximum number of clients moved by one command
+	 * @param maxPendingAge time (milliseconds) after which a waiting move is dropped
+	 */
+	public TSMoveDispatcher(TSConnection tsConnection, String name, int maxBatchSize, long maxPendingAge)
+	{
+		super("TSMoveDispatcher-"+name);
+		setDaemon(true);
+		this.tsConnection = tsConnection;
+		this.name = name;
+		String prefix = TSEndpointConfig.getMetricPrefix("dispatcher", name);
+		pendingMetric = prefix+".pending";
+		commandsMetric = prefix+".commands";
+		movedClientsMetric = prefix+".movedClients";
+		lastMaxWaitMetric = prefix+".lastMaxWaitMillis";
+		failedCommandsMetric = prefix+".failedCommands";
+		expiredMetric = prefix+".expired";
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.maxPendingAge = maxPendingAge;
+		pendingMoves = new HashMap<Integer, PendingMove>();
+		moveClasses = new LinkedHashMap<String, MoveClass>();
+		virtualTime = 0;
+		running = true;
+	}
+	
+	/**
+	 * Returns the queue of a Black Ops server. It is created with weight 1 if needed.
+	 * @param server Label of the Black Ops server
+	 * @return the queue to be passed to {@link #submit(MoveClass, TSUser, int, String)}
+	 */
+	public MoveClass getMoveClass(String server)
+	{
+		synchronized(pendingMoves)
+		{
+			MoveClass moveClass = moveClasses.get(server);
+			if(moveClass == null)
+			{
+				moveClass = new MoveClass(server);
+				moveClasses.put(server, moveClass);
+			}
+			return moveClass;
+		}
+	}
+	
+	/**
+	 * Queues a move of <i>tsUser</i> to the channel <i>channelId</i>.
+	 * 
+	 * @param moveClass the queue of the submitting server
+	 * @param tsUser the user to be moved
+	 * @param channelId ID of the destination channel
+	 * @param password the password of the destination channel or {@code null} if no password needed.
+	 */
+	public void submit(MoveClass moveClass, TSUser tsUser, int channelId, String password)
+	{
+		long now = System.currentTimeMillis();
+		synchronized(pendingMoves)
+		{
+			PendingMove move = pendingMoves.get(tsUser.getClientId());
+			if(move == null)
+			{
+				move = new PendingMove();
+				move.tsUser = tsUser;
+				move.since = now;
+				pendingMoves.put(tsUser.getClientId(), move);
+			}
+			if(move.moveClass != moveClass)
+			{
+				if(move.moveClass != null)
+					move.moveClass.moves.remove(tsUser.getClientId());
+				enqueue(moveClass, move);
+			}
+			move.channelId = channelId;
+			move.password = password;
+			move.lastSubmit = now;
+			Metrics.set(pendingMetric, pendingMoves.size());
+			pendingMoves.notifyAll();
+		}
+	}
+	
+	/**
+	 * Appends <i>move</i> to the queue <i>moveClass</i>. A queue which has been empty
+	 * starts at the current virtual time, so it can not save up commands while idle.
+	 * Must be called while holding the lock of {@link #pendingMoves}.
+	 * @param moveClass destination queue
+	 * @param move the move
+	 */
+	private void enqueue(MoveClass moveClass, PendingMove move)
+	{
+		if(moveClass.moves.isEmpty())
+			moveClass.pass = Math.max(moveClass.pass, virtualTime);
+		moveClass.moves.put(move.tsUser.getClientId(), move);
+		move.moveClass = moveClass;
+	}
+	
+	/**
+	 * Writes all waiting moves (see {@link StateSnapshot}). Passwords are not written.
+	 * @param out destination
+	 * @throws IOException Will be thrown if the moves can not be written.
+	 */
+	public void writeSnapshot(DataOutput out) throws IOException
+	{
+		synchronized(pendingMoves)
+		{
+			out.writeInt(pendingMoves.size());
+			for(MoveClass moveClass : moveClasses.values())
+			{
+				for(PendingMove move : moveClass.moves.values())
+				{
+					out.writeUTF(moveClass.server);
+					out.writeInt(move.tsUser.getClientId());
+					TSUid uid = move.tsUser.getClientUniqueId();
+					out.writeUTF(uid != null ? uid.toString() : "");
+					out.writeInt(move.channelId);
+					out.writeLong(move.since);
+					out.writeLong(move.lastSubmit);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Restores the moves written by {@link #writeSnapshot(DataOutput)}.
+	 * A current client list is retrieved from <i>tsConnection</i> and only clients which
+	 * are still connected with the same client ID and UID are restored, because client IDs
+	 * are reused by the TS3 server. If the client list can not be retrieved, no move is restored.
+	 * Passwords are taken from the channel cache. Moves which are too old are dropped
+	 * by the dispatcher thread.
+	 * 
+	 * @param in source
+	 * @throws IOException Will be thrown if the moves can not be read.
+	 */
+	public void readSnapshot(DataInput in) throws IOException
+	{
+		TSClientList clients;
+		try
+		{
+			clients = tsConnection.getClientList();
+		} catch (TSConnectionException e)
+		{
+			Log.warn("ts", "Waiting moves of the TS3 server {} are not restored: {}", name, e.getMessage());
+			clients = TSClientList.EMPTY;
+		}
+		
+		int count = in.readInt();
+		for(int i=0;i<count;++i)
+		{
+			String server = in.readUTF();
+			int clientId = in.readInt();
+			String uid = in.readUTF();
+			int channelId = in.readInt();
+			long since = in.readLong();
+			long lastSubmit = in.readLong();
+			int index = clients.indexOf(clientId);
+			if(index == -1 || clients.getUniqueId(index) == null || !uid.equals(clients.getUniqueId(index).toString()))
+				continue;
+			TSUser tsUser = clients.getUser(index);
+			
+			String password = null;
+			try
+			{
+				TSChannel channel = tsConnection.getChannel(channelId);
+				if(channel != null)
+					password = tsConnection.getChannelPassword(channel);
+			} catch (TSConnectionException e) { }
+			
+			MoveClass moveClass = getMoveClass(server);
+			synchronized(pendingMoves)
+			{
+				if(pendingMoves.containsKey(clientId))
+					continue;
+				PendingMove move = new PendingMove();
+				move.tsUser = tsUser;
+				move.channelId = channelId;
+				move.password = password;
+				move.since = since;
+				move.lastSubmit = lastSubmit;
+				pendingMoves.put(clientId, move);
+				enqueue(moveClass, move);
+				pendingMoves.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Stops the dispatcher thread. Waiting moves are dropped.
+	 */
+	public void stopDispatcher()
+	{
+		running = false;
+		interrupt();
+	}
+	
+	/**
+	 * Sends the waiting moves. The queue with the lowest pass is served first.
+	 */
+	@Override
+	public void run()
+	{
+		List<TSUser> batch = new LinkedList<TSUser>();
+		while(running)
+		{
+			MoveClass moveClass;
+			int channelId;
+			String password;
+			long oldest;
+			long waitSum;
+			batch.clear();
+			try
+			{
+				synchronized(pendingMoves)
+				{
+					removeExpired();
+					while(pendingMoves.isEmpty())
+					{
+						pendingMoves.wait();
+						removeExpired();
+					}
+					
+					moveClass = null;
+					for(MoveClass candidate : moveClasses.values())
+					{
+						if(!candidate.moves.isEmpty() && (moveClass == null || candidate.pass < moveClass.pass))
+							moveClass = candidate;
+					}
+					virtualTime = moveClass.pass;
+					moveClass.pass += STRIDE / moveClass.weight;
+					
+					PendingMove first = moveClass.moves.values().iterator().next();
+					channelId = first.channelId;
+					password = first.password;
+					oldest = first.since;
+					
+					long now = System.currentTimeMillis();
+					waitSum = 0;
+					Iterator<PendingMove> it = moveClass.moves.values().iterator();
+					while(it.hasNext() && batch.size() < maxBatchSize)
+					{
+						PendingMove move = it.next();
+						if(move.channelId == channelId && (password == null ? move.password == null : password.equals(move.password)))
+						{
+							batch.add(move.tsUser);
+							waitSum += now - move.since;
+							it.remove();
+							pendingMoves.remove(move.tsUser.getClientId());
+						}
+					}
+					Metrics.set(pendingMetric, pendingMoves.size());
+				}
+				
+				try
+				{
+					tsConnection.moveUserList(batch, channelId, password);
+				} catch (TSConnectionException e)
+				{
+					Metrics.add(moveClass.failedMovesMetric, batch.size());
+					throw e;
+				}
+				Metrics.add(moveClass.dispatchedMovesMetric, batch.size());
+				Metrics.add(moveClass.moveWaitMetric, waitSum);
+				Metrics.set(moveClass.lastMaxMoveWaitMetric, System.currentTimeMillis() - oldest);
+				Metrics.increment(commandsMetric);
+				Metrics.add(movedClientsMetric, batch.size());
+				Metrics.set(lastMaxWaitMetric, System.currentTimeMillis() - oldest);
+			} catch (InterruptedException e)
+			{
+				if(!running)
+					return;
+			} catch (TSConnectionException e)
+			{
+				Metrics.increment(failedCommandsMetric);
+				Log.error("ts", "Error while trying to move users on the TS3 server {}: {}", name, e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Drops all moves which have not been submitted within {@link #maxPendingAge}.
+	 * Must be called while holding the lock of {@link #pendingMoves}.
+	 */
+	private void removeExpired()
+	{
+		long now = System.currentTimeMillis();
+		for(MoveClass moveClass : moveClasses.values())
+		{
+			Iterator<PendingMove> it = moveClass.moves.values().iterator();
+			while(it.hasNext())
+			{
+				PendingMove move = it.next();
+				if(now - move.lastSubmit > maxPendingAge)
+				{
+					it.remove();
+					pendingMoves.remove(move.tsUser.getClientId());
+					Metrics.increment(expiredMetric);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * MoveClass is the queue of one Black Ops server.
+	 * Its weight is set from &lt;server&gt;.MovePriority by the switcher of the server.
+	 */
+	public static class MoveClass
+	{
+		/**
+		 * Initializes an empty queue with weight 1.
+		 * @param server Label of the Black Ops server
+		 */
+		private MoveClass(String server)
+		{
+			this.server = server;
+			weight = 1;
+			pass = 0;
+			moves = new LinkedHashMap<Integer, PendingMove>();
+			dispatchedMovesMetric = "switcher."+server+".dispatchedMoves";
+			moveWaitMetric = "switcher."+server+".moveWaitMillis";
+			lastMaxMoveWaitMetric = "switcher."+server+".lastMaxMoveWaitMillis";
+			failedMovesMetric = "switcher."+server+".failedMoves";
+		}
+		
+		/**
+		 * Sets the share of the ServerQuery commands this queue gets while other queues are waiting.
+		 * @param weight weight of the queue (at least 1)
+		 */
+		public void setWeight(int weight)
+		{
+			this.weight = Math.max(1, weight);
+		}
+		
+		private final String server;
+		private volatile int weight;
+		private double pass;
+		private LinkedHashMap<Integer, PendingMove> moves;
+		private final String dispatchedMovesMetric;
+		private final String moveWaitMetric;
+		private final String lastMaxMoveWaitMetric;
+		private final String failedMovesMetric;
+	}
+	
+	/**
+	 * A move waiting to be sent
+	 */
+	private static class PendingMove
+	{
+		TSUser tsUser;
+		MoveClass moveClass;
+		int channelId;
+		String password;
+		long since;
+		long lastSubmit;
+	}
+	
+	/**
+	 * Virtual time one command costs a queue with weight 1
+	 */
+	private static final double STRIDE = 1.0;
+	
+	private volatile boolean running;
+	private HashMap<Integer, PendingMove> pendingMoves;
+	private LinkedHashMap<String, MoveClass> moveClasses;
+	private double virtualTime;
+	private TSConnection tsConnection;
+	private String name;
+	private String pendingMetric;
+	private String commandsMetric;
+	private String movedClientsMetric;
+	private String lastMaxWaitMetric;
+	private String failedCommandsMetric;
+	private String expiredMetric;
+	private int maxBatchSize;
+	private long maxPendingAge;
+}
@@ -0,0 +1,137 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future for the reply of one ServerQuery command sent by {@link NIOQueryTransport}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSQueryFuture implements Future<TSQueryReply>
+{
+	/**
+	 * Initializes a pending future
+	 * @param command the command this future waits for
+	 * @param raw true if the data lines of the reply are kept unparsed
+	 */
+	TSQueryFuture(String command, boolean raw)
+	{
+		this.command = command;
+		this.reply = new TSQueryReply(raw);
+		this.failure = null;
+		done = new CountDownLatch(1);
+	}
+	
+	/**
+	 * Returns the command this future waits for
+	 * @return ServerQuery command
+	 */
+	public String getCommand()
+	{
+		return command;
+	}
+
+	/**
+	 * Commands can not be cancelled once they are queued.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public TSQueryReply get() throws InterruptedException, ExecutionException
+	{
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public TSQueryReply get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if(!done.await(timeout, unit))
+			throw new TimeoutException("No reply to '"+command+"' within "+unit.toMillis(timeout)+"ms");
+		return getResult();
+	}
+	
+	/**
+	 * Returns the (partial) reply. Used by the transport to add records while they are parsed.
+	 * @return the reply
+	 */
+	TSQueryReply getReply()
+	{
+		return reply;
+	}
+	
+	/**
+	 * Completes the future successfully
+	 */
+	void complete()
+	{
+		done.countDown();
+	}
+	
+	/**
+	 * Completes the future with an error
+	 * @param failure reason
+	 */
+	void fail(TSQueryException failure)
+	{
+		this.failure = failure;
+		done.countDown();
+	}
+	
+	/**
+	 * Returns the reply or throws the failure
+	 * @return the reply
+	 * @throws ExecutionException Will be thrown if the command failed.
+	 */
+	private TSQueryReply getResult() throws ExecutionException
+	{
+		if(failure != null)
+			throw new ExecutionException(failure.getMessage(), failure);
+		return reply;
+	}
+
+	private String command;
+	private TSQueryReply reply;
+	private volatile TSQueryException failure;
+	private CountDownLatch done;
+}
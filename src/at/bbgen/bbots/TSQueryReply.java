@@ -0,0 +1,118 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The reply of the TS3 server to one ServerQuery command.<br>
+ * It contains all data records and the closing <i>error</i> line.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSQueryReply
+{
+	/**
+	 * Initializes an empty reply
+	 * @param raw true if the data lines are kept unparsed instead of being parsed into records
+	 */
+	public TSQueryReply(boolean raw)
+	{
+		this.raw = raw;
+		records = new ArrayList<HashMap<String, String>>();
+		lines = new ArrayList<String>();
+		errorId = -1;
+		errorMessage = null;
+	}
+	
+	/**
+	 * Returns all data records of the reply
+	 * @return list of records
+	 */
+	public List<HashMap<String, String>> getRecords()
+	{
+		return records;
+	}
+	
+	/**
+	 * Returns the unparsed data lines of a raw reply
+	 * @return list of lines
+	 */
+	public List<String> getLines()
+	{
+		return lines;
+	}
+	
+	/**
+	 * Returns true if the data lines are kept unparsed
+	 * @return true for a raw reply
+	 */
+	public boolean isRaw()
+	{
+		return raw;
+	}
+	
+	/**
+	 * Returns the error ID of the reply. 0 means success.
+	 * @return error ID
+	 */
+	public int getErrorId()
+	{
+		return errorId;
+	}
+	
+	/**
+	 * Returns the error message of the reply
+	 * @return error message
+	 */
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+	
+	/**
+	 * Returns true if the server has accepted the command
+	 * @return true if the error ID is 0
+	 */
+	public boolean isOk()
+	{
+		return errorId == 0;
+	}
+	
+	/**
+	 * Sets the values of the closing <i>error</i> line
+	 * @param errorId error ID
+	 * @param errorMessage error message
+	 */
+	void setError(int errorId, String errorMessage)
+	{
+		this.errorId = errorId;
+		this.errorMessage = errorMessage;
+	}
+	
+	private boolean raw;
+	private List<HashMap<String, String>> records;
+	private List<String> lines;
+	private int errorId;
+	private String errorMessage;
+}
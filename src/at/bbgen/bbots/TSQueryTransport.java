@@ -0,0 +1,109 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A TSQueryTransport sends ServerQuery commands to the TS3 server.<br><br>
+ * {@link TSConnection} uses this interface, so it does not depend on the
+ * implementation of the ServerQuery protocol. See {@link EJTS3QueryTransport}
+ * and {@link NIOQueryTransport}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public interface TSQueryTransport
+{
+	/**
+	 * Opens the connection to the ServerQuery interface
+	 * @param host Hostname or IP of the TS3 server
+	 * @param port ServerQuery port
+	 * @throws TSQueryException Will be thrown if the connection can not be established.
+	 */
+	void connect(String host, int port) throws TSQueryException;
+	
+	/**
+	 * Logs in with the ServerQuery account
+	 * @param username ServerQuery username
+	 * @param password ServerQuery password
+	 * @throws TSQueryException Will be thrown if the login fails.
+	 */
+	void login(String username, String password) throws TSQueryException;
+	
+	/**
+	 * Selects the virtual server
+	 * @param virtualServer TS3 VServer ID
+	 * @throws TSQueryException Will be thrown if the VServer can not be selected.
+	 */
+	void selectVirtualServer(int virtualServer) throws TSQueryException;
+	
+	/**
+	 * Sets the display name of the query client
+	 * @param displayName new display name
+	 * @throws TSQueryException Will be thrown if the name can not be set.
+	 */
+	void setDisplayName(String displayName) throws TSQueryException;
+	
+	/**
+	 * Closes the connection
+	 * @throws TSQueryException Will be thrown if the connection can not be closed.
+	 */
+	void close() throws TSQueryException;
+	
+	/**
+	 * Returns the connection status
+	 * @return true if connected, otherwise false.
+	 */
+	boolean isConnected();
+	
+	/**
+	 * Sends a command without any effect (<i>whoami</i>), so an idle connection
+	 * is not closed by the server and a dead connection is noticed.
+	 * @throws TSQueryException Will be thrown if the server does not answer.
+	 */
+	void keepAlive() throws TSQueryException;
+	
+	/**
+	 * Retrieves the unparsed client list including the unique IDs (<i>clientlist -uid</i>).
+	 * See {@link TSClientListParser}.
+	 * @return the escaped records separated by '|', empty if there are no clients
+	 * @throws TSQueryException Will be thrown if the list can not be retrieved.
+	 */
+	String getRawClientList() throws TSQueryException;
+	
+	/**
+	 * Retrieves the channel list including flags and limits (<i>channellist -flags -limits</i>)
+	 * @return one map of properties for each channel
+	 * @throws TSQueryException Will be thrown if the list can not be retrieved.
+	 */
+	List<HashMap<String, String>> getChannelList() throws TSQueryException;
+	
+	/**
+	 * Moves clients to a channel
+	 * @param clientIds client IDs to be moved
+	 * @param count number of client IDs used from <i>clientIds</i>
+	 * @param channelId ID of the destination channel
+	 * @param password the password of the destination channel or {@code null} if no password needed.
+	 * @throws TSQueryException Will be thrown if the clients can not be moved.
+	 */
+	void moveClients(int[] clientIds, int count, int channelId, String password) throws TSQueryException;
+}
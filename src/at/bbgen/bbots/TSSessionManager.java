@@ -0,0 +1,210 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.util.Random;
+
+/**
+ * TSSessionManager keeps the ServerQuery session of a {@link TSConnection} alive.<br><br>
+ * While the session is up, a keepalive command is sent whenever the connection has been
+ * idle for <i>keepaliveInterval</i> milliseconds, and right after a failed command, so a dead
+ * connection is noticed early. A lost session is reconnected by this thread. Failed attempts
+ * are retried after a pause which doubles after every attempt (up to <i>maxBackoff</i>) and is
+ * randomized by up to one half. Meanwhile all commands of the {@link TSConnection} fail
+ * immediately instead of waiting for the reconnect.<br><br>
+ * Metrics: ts.sessionUp (1 while the session is up), ts.connectionLost, ts.reconnects,
+ * ts.reconnectFailures and ts.keepalives. The metrics of endpoints other than
+ * {@link TSEndpointConfig#DEFAULT} are prefixed with ts.&lt;endpoint&gt;.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TSSessionManager extends Thread
+{
+	/**
+	 * Initializes all local data, but does not start the thread.
+	 * The connection has to be connected already.
+	 * @param connection the connection to be kept alive
+	 * @param keepaliveInterval idle time (milliseconds) after which a keepalive is sent (0 = no keepalives)
+	 * @param maxBackoff maximum pause between two reconnect attempts (milliseconds)
+	 */
+	public TSSessionManager(TSConnection connection, long keepaliveInterval, long maxBackoff)
+	{
+		this(connection, TSEndpointConfig.DEFAULT, keepaliveInterval, maxBackoff);
+	}
+	
+	/**
+	 * Initializes all local data, but does not start the thread.
+	 * The connection has to be connected already.
+	 * @param connection the connection to be kept alive
+	 * @param name name of the TS endpoint, used for metrics and messages
+	 * @param keepaliveInterval idle time (milliseconds) after which a keepalive is sent (0 = no keepalives)
+	 * @param maxBackoff maximum pause between two reconnect attempts (milliseconds)
+	 */
+	public TSSessionManager(TSConnection connection, String name, long keepaliveInterval, long maxBackoff)
+	{
+		super("TSSessionManager-"+name);
+		setDaemon(true);
+		this.connection = connection;
+		this.name = name;
+		String prefix = TSEndpointConfig.getMetricPrefix("ts", name);
+		sessionUpMetric = prefix+".sessionUp";
+		connectionLostMetric = prefix+".connectionLost";
+		keepalivesMetric = prefix+".keepalives";
+		reconnectsMetric = prefix+".reconnects";
+		reconnectFailuresMetric = prefix+".reconnectFailures";
+		this.keepaliveInterval = keepaliveInterval;
+		this.maxBackoff = Math.max(MIN_BACKOFF, maxBackoff);
+		this.random = new Random();
+		up = true;
+		running = true;
+		Metrics.set(sessionUpMetric, 1);
+	}
+	
+	/**
+	 * Returns the state of the session
+	 * @return true if the session is up, false while reconnecting
+	 */
+	public boolean isUp()
+	{
+		return up;
+	}
+	
+	/**
+	 * Marks the session as lost. It will be reconnected in the background.
+	 * @param reason description of the error
+	 */
+	public synchronized void connectionLost(String reason)
+	{
+		if(!up)
+			return;
+		up = false;
+		Metrics.set(sessionUpMetric, 0);
+		Metrics.increment(connectionLostMetric);
+		Log.warn("ts", "Connection to the TS3 server {} lost ({}), reconnecting.", name, reason);
+		notifyAll();
+	}
+	
+	/**
+	 * Requests a keepalive as soon as possible, e.g. because a command has failed.
+	 */
+	public synchronized void checkConnection()
+	{
+		checkRequested = true;
+		notifyAll();
+	}
+	
+	/**
+	 * Stops the thread. Does not close the connection.
+	 */
+	public void stopSession()
+	{
+		running = false;
+		interrupt();
+	}
+	
+	/**
+	 * Sends the keepalives and reconnects.
+	 */
+	@Override
+	public void run()
+	{
+		long backoff = 0;
+		while(running)
+		{
+			long wait;
+			boolean wasUp = up;
+			if(wasUp)
+			{
+				boolean check;
+				synchronized(this)
+				{
+					check = checkRequested;
+					checkRequested = false;
+				}
+				long idle = System.currentTimeMillis() - connection.getLastCommandTime();
+				if(check || (keepaliveInterval > 0 && idle >= keepaliveInterval))
+				{
+					try
+					{
+						connection.keepAlive();
+						Metrics.increment(keepalivesMetric);
+					} catch (TSConnectionException e)
+					{
+						connectionLost(e.getMessage());
+					}
+					idle = 0;
+				}
+				wait = keepaliveInterval > 0 ? keepaliveInterval - idle : 0; // 0 = until the session is lost
+			}
+			else
+			{
+				try
+				{
+					connection.reconnect();
+					backoff = 0;
+					synchronized(this)
+					{
+						up = true;
+						checkRequested = false;
+					}
+					Metrics.set(sessionUpMetric, 1);
+					Metrics.increment(reconnectsMetric);
+					Log.info("ts", "Reconnected to the TS3 server {}.", name);
+					continue;
+				} catch (TSConnectionException e)
+				{
+					backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff*2, maxBackoff);
+					wait = backoff - (long)(random.nextDouble()*backoff/2);
+					Metrics.increment(reconnectFailuresMetric);
+					Log.warn("ts", "Error while trying to reconnect to the TS3 server {}: {}", name, e.getMessage());
+				}
+			}
+			
+			synchronized(this)
+			{
+				// don't sleep if the state has changed in the meantime
+				if(running && up == wasUp && !checkRequested)
+				{
+					try
+					{
+						wait(wait);
+					} catch (InterruptedException e) { }
+				}
+			}
+		}
+	}
+	
+	private static final long MIN_BACKOFF = 1000;
+	
+	private TSConnection connection;
+	private String name;
+	private String sessionUpMetric;
+	private String connectionLostMetric;
+	private String keepalivesMetric;
+	private String reconnectsMetric;
+	private String reconnectFailuresMetric;
+	private long keepaliveInterval;
+	private long maxBackoff;
+	private Random random;
+	private volatile boolean up;
+	private volatile boolean running;
+	private boolean checkRequested;
+}
@@ -0,0 +1,212 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.Serializable;
+
+/**
+ * TSUid is the unique ID of a Teamspeak3 identity.<br><br>
+ * A UID is the base64 encoding of 20 bytes (27 characters and one '=').
+ * TSUid stores the decoded bytes in three primitive fields and precomputes
+ * its hash code, so it can be compared and used as map key without string hashing.
+ * Instances are immutable.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public final class TSUid implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Initializes the UID with the decoded bytes
+	 * @param high bytes 0-7
+	 * @param middle bytes 8-15
+	 * @param low bytes 16-19
+	 */
+	private TSUid(long high, long middle, int low)
+	{
+		this.high = high;
+		this.middle = middle;
+		this.low = low;
+		long h = high*31 + middle;
+		h = h*31 + low;
+		this.hash = (int)(h ^ (h >>> 32));
+	}
+	
+	/**
+	 * Creates a UID from decoded bytes (see {@link #decode(CharSequence, int, int, long[])})
+	 * @param bits decoded bytes: high, middle and low
+	 */
+	TSUid(long[] bits)
+	{
+		this(bits[0], bits[1], (int)bits[2]);
+	}
+	
+	/**
+	 * Parses a UID
+	 * @param uid the base64 encoded UID
+	 * @return the UID or {@code null} if <i>uid</i> is not a valid UID
+	 */
+	public static TSUid parse(String uid)
+	{
+		if(uid == null)
+			return null;
+		uid = uid.trim();
+		long[] bits = new long[3];
+		if(!decode(uid, 0, uid.length(), bits))
+			return null;
+		return new TSUid(bits);
+	}
+	
+	/**
+	 * Decodes a UID escaped as defined by the ServerQuery protocol ('/' is sent as "\/").
+	 * @param s source
+	 * @param start first character
+	 * @param end end (exclusive)
+	 * @param bits destination for high, middle and low bytes
+	 * @return true if the characters are a valid UID
+	 */
+	static boolean decode(CharSequence s, int start, int end, long[] bits)
+	{
+		long high = 0;
+		long middle = 0;
+		long low = 0;
+		int chars = 0;
+		long buffer = 0;
+		int bufferBits = 0;
+		int bytes = 0;
+		for(int i=start;i<end;++i)
+		{
+			char c = s.charAt(i);
+			if(c == '\\' && i+1 < end)
+				c = s.charAt(++i);
+			if(chars == UID_CHARS-1)
+			{
+				if(c != '=' || i+1 != end)
+					return false;
+				chars++;
+				break;
+			}
+			int value = c < 128 ? BASE64_VALUES[c] : -1;
+			if(value == -1)
+				return false;
+			buffer = (buffer << 6) | value;
+			bufferBits += 6;
+			chars++;
+			if(bufferBits >= 8)
+			{
+				bufferBits -= 8;
+				long b = (buffer >>> bufferBits) & 0xff;
+				if(bytes < 8)
+					high = (high << 8) | b;
+				else if(bytes < 16)
+					middle = (middle << 8) | b;
+				else
+					low = (low << 8) | b;
+				bytes++;
+			}
+		}
+		// the 2 remaining bits of the last character are padding and ignored
+		if(chars != UID_CHARS || bytes != UID_BYTES)
+			return false;
+		bits[0] = high;
+		bits[1] = middle;
+		bits[2] = low;
+		return true;
+	}
+	
+	/**
+	 * Compares this UID with decoded bytes (see {@link #decode(CharSequence, int, int, long[])})
+	 * @param bits decoded bytes: high, middle and low
+	 * @return true if the bytes are equal
+	 */
+	boolean equalsBits(long[] bits)
+	{
+		return high == bits[0] && middle == bits[1] && low == (int)bits[2];
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(this == obj)
+			return true;
+		if(!(obj instanceof TSUid))
+			return false;
+		TSUid other = (TSUid)obj;
+		return hash == other.hash && high == other.high && middle == other.middle && low == other.low;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+	
+	/**
+	 * Returns the base64 encoded UID
+	 * @return UID as shown by the Teamspeak client
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(UID_CHARS);
+		long buffer = 0;
+		int bufferBits = 0;
+		for(int i=0;i<UID_BYTES;++i)
+		{
+			long b;
+			if(i < 8)
+				b = high >>> (56 - 8*i);
+			else if(i < 16)
+				b = middle >>> (56 - 8*(i-8));
+			else
+				b = low >>> (24 - 8*(i-16));
+			buffer = (buffer << 8) | (b & 0xff);
+			bufferBits += 8;
+			while(bufferBits >= 6)
+			{
+				bufferBits -= 6;
+				sb.append(BASE64_CHARS.charAt((int)(buffer >>> bufferBits) & 0x3f));
+			}
+		}
+		sb.append(BASE64_CHARS.charAt((int)(buffer << (6-bufferBits)) & 0x3f));
+		sb.append('=');
+		return sb.toString();
+	}
+	
+	private static final int UID_CHARS = 28;
+	private static final int UID_BYTES = 20;
+	private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+	private static final int[] BASE64_VALUES = new int[128];
+	
+	static
+	{
+		for(int i=0;i<BASE64_VALUES.length;++i)
+			BASE64_VALUES[i] = -1;
+		for(int i=0;i<BASE64_CHARS.length();++i)
+			BASE64_VALUES[BASE64_CHARS.charAt(i)] = i;
+	}
+	
+	private final long high;
+	private final long middle;
+	private final int low;
+	private final int hash;
+}
@@ -84,7 +84,7 @@ public class TSUser implements Serializable, Cloneable
 	 * Warning: Users can change their UID, so don't expect too much stability.
 	 * @return Teamspeak UID
 	 */
-	public String getClientUniqueId()
+	public TSUid getClientUniqueId()
 	{
 		return clientUniqueId;
 	}
@@ -93,7 +93,7 @@ public class TSUser implements Serializable, Cloneable
 	 * sets the client UID
 	 * @param clientUniqueId the UID to be set
 	 */
-	public void setClientUniqueId(String clientUniqueId)
+	public void setClientUniqueId(TSUid clientUniqueId)
 	{
 		this.clientUniqueId = clientUniqueId;
 	}
@@ -142,5 +142,5 @@ public class TSUser implements Serializable, Cloneable
 	private int channelId;
 
 	private String clientNickname;
-	private String clientUniqueId;
+	private TSUid clientUniqueId;
 }
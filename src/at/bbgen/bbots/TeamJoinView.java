@@ -0,0 +1,452 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+
+/**
+ * TeamJoinView keeps the join TS client &rarr; {@link PUser} &rarr; GUID &rarr; {@link BOUser}
+ * &rarr; team &rarr; target channel of one server up to date.<br><br>
+ * Instead of joining all clients on every tick, only the clients affected by a change
+ * are joined again: new, removed or moved TS clients, players whose team has changed in
+ * the Black Ops user list, and all clients if the user file or the configuration has changed.
+ * The playing clients and, among them, the clients whose current channel differs from the
+ * channel of their current team (pending moves) are kept in two lists. They are linked through
+ * the entries themselves, so walking them does not allocate (see {@link #getFirstPlaying()}
+ * and {@link #getFirstPendingMove()}).<br>
+ * The clients are kept in {@link IntObjectMap}s and the clients of the same GUID are linked
+ * through the entries as well, so applying a change does not box or iterate. It only allocates
+ * for clients which join (a new entry) or whose channel or UID changes (a new {@link TSUser},
+ * because the previous one may still be queued in the {@link TSMoveDispatcher}).<br><br>
+ * Not thread safe, it is only used by the timer thread of {@link BOTeamSwitcher}.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TeamJoinView
+{
+	/**
+	 * Initializes an empty view
+	 */
+	public TeamJoinView()
+	{
+		entries = new IntObjectMap<Entry>();
+		guidIndex = new IntObjectMap<Entry>();
+		invalidate();
+	}
+	
+	/**
+	 * Forgets all joined data, the next {@link #update(TSClientList, long, IntObjectMap, long, UserProperties, long, ServerConfig)}
+	 * joins all clients again.
+	 */
+	public void invalidate()
+	{
+		entries.clear();
+		guidIndex.clear();
+		firstPending = null;
+		lastPending = null;
+		firstPlaying = null;
+		lastPlaying = null;
+		interestingCount = 0;
+		playingCount = 0;
+		clients = TSClientList.EMPTY;
+		clientsVersion = -1;
+		roster = EMPTY_ROSTER;
+		rosterVersion = -1;
+		userVersion = -1;
+		config = null;
+	}
+	
+	/**
+	 * Applies all changes since the last update.
+	 * 
+	 * @param newClients current client list of the TS server
+	 * @param newClientsVersion version of <i>newClients</i>, see {@link TSConnection#getClientListVersion()}
+	 * @param newRoster current Black Ops users by GUID, see {@link GuidPresenceIndex#getRoster(String)}
+	 * @param newRosterVersion version of <i>newRoster</i>, see {@link GuidPresenceIndex#getVersion(String)}
+	 * @param userProperties the user links
+	 * @param newUserVersion version of <i>userProperties</i>
+	 * @param newConfig configuration of this server
+	 * @return true if anything has changed
+	 */
+	public boolean update(TSClientList newClients, long newClientsVersion, IntObjectMap<BOUser> newRoster, long newRosterVersion,
+			UserProperties userProperties, long newUserVersion, ServerConfig newConfig)
+	{
+		boolean relinkAll = newUserVersion != userVersion;
+		boolean recomputeAll = relinkAll || newConfig != config;
+		boolean clientsChanged = newClientsVersion != clientsVersion;
+		boolean rosterChanged = newRosterVersion != rosterVersion;
+		if(!recomputeAll && !clientsChanged && !rosterChanged)
+			return false;
+		
+		IntObjectMap<BOUser> oldRoster = roster;
+		clients = newClients;
+		clientsVersion = newClientsVersion;
+		roster = newRoster;
+		rosterVersion = newRosterVersion;
+		userVersion = newUserVersion;
+		config = newConfig;
+		
+		if(clientsChanged)
+			applyClients(userProperties);
+		
+		if(recomputeAll)
+		{
+			for(int slot=0;slot<entries.capacity();++slot)
+			{
+				Entry entry = entries.valueAt(slot);
+				if(entry == null)
+					continue;
+				if(relinkAll)
+					link(entry, userProperties);
+				recompute(entry);
+			}
+		}
+		else if(rosterChanged)
+		{
+			// only players whose team has changed
+			for(int slot=0;slot<roster.capacity();++slot)
+			{
+				BOUser boUser = roster.valueAt(slot);
+				if(boUser == null)
+					continue;
+				BOUser oldUser = oldRoster.get(roster.keyAt(slot));
+				if(oldUser == null || oldUser.getTeam() != boUser.getTeam())
+					recomputeGuid(roster.keyAt(slot));
+			}
+			for(int slot=0;slot<oldRoster.capacity();++slot)
+			{
+				if(oldRoster.valueAt(slot) != null && roster.get(oldRoster.keyAt(slot)) == null)
+					recomputeGuid(oldRoster.keyAt(slot));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the first client which is linked, in a listening channel and playing on the Black Ops server.
+	 * The following ones are returned by {@link Entry#getNextPlaying()}.
+	 * @return first playing client or {@code null} if there is none
+	 */
+	public Entry getFirstPlaying()
+	{
+		return firstPlaying;
+	}
+	
+	/**
+	 * Returns the first client which is not in the channel of its team.
+	 * The following ones are returned by {@link Entry#getNextPendingMove()}, oldest first.
+	 * @return first pending move or {@code null} if there is none
+	 */
+	public Entry getFirstPendingMove()
+	{
+		return firstPending;
+	}
+	
+	/**
+	 * Returns if there are clients which are not in the channel of their team
+	 * @return true if there are pending moves
+	 */
+	public boolean hasPendingMoves()
+	{
+		return firstPending != null;
+	}
+	
+	/**
+	 * Returns the number of linked clients in a listening channel
+	 * @return number of clients
+	 */
+	public int getInterestingCount()
+	{
+		return interestingCount;
+	}
+	
+	/**
+	 * Returns the number of linked clients in a listening channel which are playing on the Black Ops server
+	 * @return number of clients
+	 */
+	public int getPlayingCount()
+	{
+		return playingCount;
+	}
+	
+	/**
+	 * Adds, updates and removes entries for the current client list.
+	 * @param userProperties the user links
+	 */
+	private void applyClients(UserProperties userProperties)
+	{
+		generation++;
+		for(int i=0;i<clients.size();++i)
+		{
+			Entry entry = entries.get(clients.getClientId(i));
+			if(entry == null)
+			{
+				entry = new Entry();
+				entry.tsUser = clients.getUser(i);
+				entries.put(clients.getClientId(i), entry);
+				link(entry, userProperties);
+				recompute(entry);
+			}
+			else if(!entry.tsUser.getClientUniqueId().equals(clients.getUniqueId(i)))
+			{
+				entry.tsUser = clients.getUser(i);
+				link(entry, userProperties);
+				recompute(entry);
+			}
+			else if(entry.tsUser.getChannelId() != clients.getChannelId(i))
+			{
+				entry.tsUser = clients.getUser(i);
+				recompute(entry);
+			}
+			entry.generation = generation;
+		}
+		
+		for(int slot=0;slot<entries.capacity();++slot)
+		{
+			Entry entry = entries.valueAt(slot);
+			// a removed slot is filled by the following entries, so it is checked again
+			while(entry != null && entry.generation != generation)
+			{
+				entries.removeAt(slot);
+				unlink(entry);
+				setState(entry, false, false, false);
+				entry = entries.valueAt(slot);
+			}
+		}
+	}
+	
+	/**
+	 * Looks up the GUID of the client and updates the GUID index.
+	 * The clients of a GUID are linked through the entries, the index holds the first one.
+	 * @param entry the client
+	 * @param userProperties the user links
+	 */
+	private void link(Entry entry, UserProperties userProperties)
+	{
+		unlink(entry);
+		entry.guid = userProperties.getBoGUID(entry.tsUser.getClientUniqueId());
+		if(entry.guid == -1)
+			return;
+		Entry first = guidIndex.put(entry.guid, entry);
+		entry.prevSameGuid = null;
+		entry.nextSameGuid = first;
+		if(first != null)
+			first.prevSameGuid = entry;
+	}
+	
+	/**
+	 * Removes the client from the GUID index.
+	 * @param entry the client
+	 */
+	private void unlink(Entry entry)
+	{
+		if(entry.guid == -1)
+			return;
+		if(entry.nextSameGuid != null)
+			entry.nextSameGuid.prevSameGuid = entry.prevSameGuid;
+		if(entry.prevSameGuid != null)
+			entry.prevSameGuid.nextSameGuid = entry.nextSameGuid;
+		else if(entry.nextSameGuid != null)
+			guidIndex.put(entry.guid, entry.nextSameGuid);
+		else
+			guidIndex.remove(entry.guid);
+		entry.prevSameGuid = null;
+		entry.nextSameGuid = null;
+		entry.guid = -1;
+	}
+	
+	/**
+	 * Joins all clients linked to <i>guid</i> again
+	 * @param guid Black Ops GUID
+	 */
+	private void recomputeGuid(int guid)
+	{
+		for(Entry entry = guidIndex.get(guid); entry != null; entry = entry.nextSameGuid)
+			recompute(entry);
+	}
+	
+	/**
+	 * Joins the client with the Black Ops user list and the configuration.
+	 * @param entry the client
+	 */
+	private void recompute(Entry entry)
+	{
+		boolean interesting = entry.guid != -1 && config.isListeningChannel(entry.tsUser.getChannelId());
+		BOUser boUser = interesting ? roster.get(entry.guid) : null;
+		entry.team = boUser != null ? boUser.getTeam() : -1;
+		int target = boUser != null ? config.getTeamChannel(entry.team) : -1;
+		setState(entry, interesting, boUser != null, target != -1 && target != entry.tsUser.getChannelId());
+	}
+	
+	/**
+	 * Updates the flags of a client, the counters, the playing clients and the pending moves
+	 * @param entry the client
+	 * @param interesting true if the client is linked and in a listening channel
+	 * @param playing true if the client is interesting and playing
+	 * @param move true if the client is playing and not in the channel of its team
+	 */
+	private void setState(Entry entry, boolean interesting, boolean playing, boolean move)
+	{
+		if(interesting != entry.interesting)
+			interestingCount += interesting ? 1 : -1;
+		if(playing != entry.playing)
+		{
+			playingCount += playing ? 1 : -1;
+			if(playing)
+			{
+				// append
+				entry.prevPlaying = lastPlaying;
+				entry.nextPlaying = null;
+				if(lastPlaying != null)
+					lastPlaying.nextPlaying = entry;
+				else
+					firstPlaying = entry;
+				lastPlaying = entry;
+			}
+			else
+			{
+				// unlink
+				if(entry.prevPlaying != null)
+					entry.prevPlaying.nextPlaying = entry.nextPlaying;
+				else
+					firstPlaying = entry.nextPlaying;
+				if(entry.nextPlaying != null)
+					entry.nextPlaying.prevPlaying = entry.prevPlaying;
+				else
+					lastPlaying = entry.prevPlaying;
+				entry.prevPlaying = null;
+				entry.nextPlaying = null;
+			}
+		}
+		entry.interesting = interesting;
+		entry.playing = playing;
+		if(move && !entry.pending)
+		{
+			// append
+			entry.pending = true;
+			entry.prevPending = lastPending;
+			entry.nextPending = null;
+			if(lastPending != null)
+				lastPending.nextPending = entry;
+			else
+				firstPending = entry;
+			lastPending = entry;
+		}
+		else if(!move && entry.pending)
+		{
+			// unlink
+			entry.pending = false;
+			if(entry.prevPending != null)
+				entry.prevPending.nextPending = entry.nextPending;
+			else
+				firstPending = entry.nextPending;
+			if(entry.nextPending != null)
+				entry.nextPending.prevPending = entry.prevPending;
+			else
+				lastPending = entry.prevPending;
+			entry.prevPending = null;
+			entry.nextPending = null;
+		}
+	}
+	
+	/**
+	 * One TS client of the view
+	 */
+	public static class Entry
+	{
+		/**
+		 * Returns the TS client
+		 * @return TS client with its current channel
+		 */
+		public TSUser getTsUser()
+		{
+			return tsUser;
+		}
+		
+		/**
+		 * Returns the Black Ops GUID linked to the client
+		 * @return GUID or -1 if the client is not linked
+		 */
+		public int getGuid()
+		{
+			return guid;
+		}
+		
+		/**
+		 * Returns the current Black Ops team of the client
+		 * @return team or -1 if the client is not playing
+		 */
+		public int getTeam()
+		{
+			return team;
+		}
+		
+		/**
+		 * Returns the next playing client, see {@link TeamJoinView#getFirstPlaying()}
+		 * @return next playing client or {@code null} if this is the last one
+		 */
+		public Entry getNextPlaying()
+		{
+			return nextPlaying;
+		}
+		
+		/**
+		 * Returns the next pending move, see {@link TeamJoinView#getFirstPendingMove()}
+		 * @return next pending move or {@code null} if this is the last one
+		 */
+		public Entry getNextPendingMove()
+		{
+			return nextPending;
+		}
+		
+		private TSUser tsUser;
+		private int guid = -1;
+		private int team = -1;
+		private boolean interesting;
+		private boolean playing;
+		private long generation;
+		private boolean pending;
+		private Entry prevPending;
+		private Entry nextPending;
+		private Entry prevPlaying;
+		private Entry nextPlaying;
+		private Entry prevSameGuid;
+		private Entry nextSameGuid;
+	}
+	
+	private static final IntObjectMap<BOUser> EMPTY_ROSTER = new IntObjectMap<BOUser>();
+	
+	private IntObjectMap<Entry> entries;
+	private IntObjectMap<Entry> guidIndex;
+	private Entry firstPending;
+	private Entry lastPending;
+	private Entry firstPlaying;
+	private Entry lastPlaying;
+	private int interestingCount;
+	private int playingCount;
+	private long generation;
+	
+	private TSClientList clients;
+	private long clientsVersion;
+	private IntObjectMap<BOUser> roster;
+	private long rosterVersion;
+	private long userVersion;
+	private ServerConfig config;
+}
@@ -0,0 +1,195 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * TeamTransitionFilter debounces the team changes of Black Ops players.<br><br>
+ * During the pre-match time and while the map changes, players flap between
+ * Team 0 and Teams 1 and 2. A player is only considered to be in a new team
+ * after they have been seen in it for at least the dwell time of that team.
+ * Until then the last stable team is reported, so no move is generated
+ * for transient states. Every candidate team which is not accepted immediately
+ * is counted once in the metric <i>suppressedMetric</i>.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TeamTransitionFilter
+{
+	/**
+	 * Initializes all local data.
+	 * @param dwellTimes dwell time (milliseconds) for each team, indexed by the team ID
+	 * @param retention time (milliseconds) after which an unseen player is forgotten
+	 * @param suppressedMetric name of the metric counting the suppressed transitions
+	 */
+	public TeamTransitionFilter(long[] dwellTimes, long retention, String suppressedMetric)
+	{
+		this.dwellTimes = dwellTimes.clone();
+		this.retention = retention;
+		this.suppressedMetric = suppressedMetric;
+		states = new IntObjectMap<TransitionState>();
+	}
+	
+	/**
+	 * Replaces the dwell times. States of all players are kept.
+	 * @param dwellTimes dwell time (milliseconds) for each team, indexed by the team ID
+	 * @param retention time (milliseconds) after which an unseen player is forgotten
+	 */
+	public synchronized void setDwellTimes(long[] dwellTimes, long retention)
+	{
+		this.dwellTimes = dwellTimes.clone();
+		this.retention = retention;
+	}
+	
+	/**
+	 * Feeds an observed team into the state machine of the player <i>guid</i>.
+	 * 
+	 * @param guid Black Ops GUID of the player
+	 * @param team team the player has been seen in
+	 * @param now current time in milliseconds
+	 * @return the stable team of the player or -1 if there is none yet
+	 */
+	public synchronized int update(int guid, int team, long now)
+	{
+		TransitionState state = states.get(guid);
+		boolean newCandidate = false;
+		if(state == null)
+		{
+			state = new TransitionState();
+			state.stableTeam = -1;
+			state.candidateTeam = team;
+			state.candidateSince = now;
+			states.put(guid, state);
+			newCandidate = true;
+		}
+		state.lastSeen = now;
+		
+		if(team == state.stableTeam)
+		{
+			state.candidateTeam = team;
+			return state.stableTeam;
+		}
+		
+		if(team != state.candidateTeam)
+		{
+			state.candidateTeam = team;
+			state.candidateSince = now;
+			newCandidate = true;
+		}
+		
+		if(now - state.candidateSince >= getDwellTime(team))
+			state.stableTeam = team;
+		else if(newCandidate)
+			Metrics.increment(suppressedMetric);
+		
+		return state.stableTeam;
+	}
+	
+	/**
+	 * Forgets all players which have not been seen for longer than the retention time.
+	 * @param now current time in milliseconds
+	 */
+	public synchronized void removeUnseen(long now)
+	{
+		for(int slot=0;slot<states.capacity();++slot)
+		{
+			TransitionState state = states.valueAt(slot);
+			// a removed slot is filled by the following states, so it is checked again
+			while(state != null && now - state.lastSeen > retention)
+			{
+				states.removeAt(slot);
+				state = states.valueAt(slot);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the state of all players (see {@link StateSnapshot})
+	 * @param out destination
+	 * @throws IOException Will be thrown if the state can not be written.
+	 */
+	public synchronized void writeSnapshot(DataOutput out) throws IOException
+	{
+		out.writeInt(states.size());
+		for(int slot=0;slot<states.capacity();++slot)
+		{
+			TransitionState state = states.valueAt(slot);
+			if(state == null)
+				continue;
+			out.writeInt(states.keyAt(slot));
+			out.writeByte(state.stableTeam);
+			out.writeByte(state.candidateTeam);
+			out.writeLong(state.candidateSince);
+			out.writeLong(state.lastSeen);
+		}
+	}
+	
+	/**
+	 * Restores the state of all players written by {@link #writeSnapshot(DataOutput)}
+	 * @param in source
+	 * @throws IOException Will be thrown if the state can not be read.
+	 */
+	public synchronized void readSnapshot(DataInput in) throws IOException
+	{
+		int count = in.readInt();
+		for(int i=0;i<count;++i)
+		{
+			TransitionState state = new TransitionState();
+			int guid = in.readInt();
+			state.stableTeam = in.readByte();
+			state.candidateTeam = in.readByte();
+			state.candidateSince = in.readLong();
+			state.lastSeen = in.readLong();
+			states.put(guid, state);
+		}
+	}
+	
+	/**
+	 * Returns the dwell time of <i>team</i>
+	 * @param team team ID
+	 * @return dwell time in milliseconds or 0 if <i>team</i> is unknown
+	 */
+	private long getDwellTime(int team)
+	{
+		if(team < 0 || team >= dwellTimes.length)
+			return 0;
+		return dwellTimes[team];
+	}
+	
+	/**
+	 * Transition state of one player
+	 */
+	private static class TransitionState
+	{
+		int stableTeam;
+		int candidateTeam;
+		long candidateSince;
+		long lastSeen;
+	}
+	
+	private IntObjectMap<TransitionState> states;
+	private long[] dwellTimes;
+	private long retention;
+	private String suppressedMetric;
+}
@@ -0,0 +1,107 @@
+/*
+ *    This file is part of bboTS.
+ *    
+ *    Copyright 2010 Bernhard Eder
+ * 
+ *    bboTS is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    bboTS is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with bboTS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package at.bbgen.bbots;
+
+/**
+ * TokenBucket limits the rate of ServerQuery commands.<br><br>
+ * The TS3 server bans query clients which send more than <i>floodCommands</i>
+ * commands within <i>floodTime</i> milliseconds. The bucket holds up to
+ * <i>burst</i> tokens and refills the rest of the budget evenly over the
+ * flood time, so no window of <i>floodTime</i> milliseconds can ever contain
+ * more than <i>floodCommands</i> commands.
+ * 
+ * @author Bernhard Eder <bbots@bbgen.net>
+ *
+ */
+public class TokenBucket
+{
+	/**
+	 * Initializes a full bucket.
+	 * @param floodCommands number of commands allowed by the server within <i>floodTime</i> (at least 2)
+	 * @param floodTime flood time of the server (milliseconds, at least 1)
+	 * @param burst number of commands which may be sent at once (at least 1 and lower than <i>floodCommands</i>)
+	 */
+	public TokenBucket(int floodCommands, long floodTime, int burst)
+	{
+		if(floodCommands < 2 || floodTime < 1 || burst < 1 || burst >= floodCommands)
+			throw new IllegalArgumentException("Invalid flood settings: "+floodCommands+" commands in "+floodTime+" ms, burst "+burst);
+		this.burst = burst;
+		this.tokensPerMilli = (double)(floodCommands - burst) / floodTime;
+		this.tokens = this.burst;
+		this.lastRefill = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Takes one token. Blocks until a token is available.
+	 * @throws InterruptedException Will be thrown if the waiting thread is interrupted.
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		refill();
+		while(tokens < 1.0)
+		{
+			long wait = (long)Math.ceil((1.0 - tokens) / tokensPerMilli);
+			wait(Math.max(1, wait));
+			refill();
+		}
+		tokens -= 1.0;
+	}
+	
+	/**
+	 * Takes one token if one is available.
+	 * @return true if a token has been taken, otherwise false.
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		refill();
+		if(tokens < 1.0)
+			return false;
+		tokens -= 1.0;
+		return true;
+	}
+	
+	/**
+	 * Returns the number of whole tokens currently available.
+	 * @return available tokens
+	 */
+	public synchronized int available()
+	{
+		refill();
+		return (int)tokens;
+	}
+	
+	/**
+	 * Adds the tokens earned since the last refill.
+	 */
+	private void refill()
+	{
+		long now = System.currentTimeMillis();
+		if(now > lastRefill)
+		{
+			tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMilli);
+			lastRefill = now;
+		}
+	}
+	
+	private int burst;
+	private double tokensPerMilli;
+	private double tokens;
+	private long lastRefill;
+}
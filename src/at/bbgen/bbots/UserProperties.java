@@ -19,6 +19,7 @@
 
 package at.bbgen.bbots;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -59,7 +60,7 @@ public class UserProperties
 		this.filename = filename;
 		synchronized(this)
 		{
-			users = new HashMap<String, PUser>();
+			users = new HashMap<TSUid, PUser>();
 		}
 	}
 	
@@ -70,7 +71,7 @@ public class UserProperties
 	 */
 	public void parseUsers() throws UserPropertiesException
 	{
-		HashMap<String, PUser> newUsers = new HashMap<String, PUser>();
+		HashMap<TSUid, PUser> newUsers = new HashMap<TSUid, PUser>();
 		InputStream is;
 		try
 		{
@@ -100,7 +101,13 @@ public class UserProperties
 					throw new UserPropertiesException("GUID contains non numeric values: "+ee.getMessage());
 				}
 				
-				String tsUid = (String)props.getProperty(sguid);
+				String sTsUid = (String)props.getProperty(sguid);
+				TSUid tsUid = TSUid.parse(sTsUid);
+				if(tsUid == null)
+				{
+					System.out.println("Warning: ignoring user "+sguid+", invalid Teamspeak UID ("+sTsUid+").");
+					continue;
+				}
 				newUsers.put(tsUid, new PUser(tsUid, guid));
 			}
 		} catch (IOException e)
@@ -115,15 +122,25 @@ public class UserProperties
 		synchronized(this)
 		{
 			users = newUsers;
+			version++;
 		}
 	}
 	
+	/**
+	 * Returns the version of the user list. It is incremented every time the file is parsed.
+	 * @return version of the user list
+	 */
+	public synchronized long getVersion()
+	{
+		return version;
+	}
+	
 	/**
 	 * Returns a {@link PUser} for the specified Teamspeak UID
 	 * @param tsUID the teamspeak UID to search for
 	 * @return {@link PUser} or null if user could not be found
 	 */
-	public PUser getUser(String tsUID)
+	public PUser getUser(TSUid tsUID)
 	{
 		PUser fUser, retUser;
 		synchronized(this)
@@ -140,6 +157,28 @@ public class UserProperties
 		return retUser;
 	}
 	
-	private HashMap<String, PUser> users;
+	/**
+	 * Returns the Black Ops GUID linked to the specified Teamspeak UID.
+	 * Unlike {@link #getUser(TSUid)} it does not copy the user.
+	 * @param tsUID the teamspeak UID to search for
+	 * @return GUID or -1 if user could not be found
+	 */
+	public synchronized int getBoGUID(TSUid tsUID)
+	{
+		PUser user = users.get(tsUID);
+		return user != null ? user.getBoGUID() : -1;
+	}
+	
+	/**
+	 * Returns the user .properties file
+	 * @return the file given by the constructor
+	 */
+	public File getFile()
+	{
+		return new File(filename);
+	}
+	
+	private HashMap<TSUid, PUser> users;
 	private String filename;
+	private long version;
 }